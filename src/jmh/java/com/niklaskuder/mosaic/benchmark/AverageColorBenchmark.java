@@ -0,0 +1,78 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.rectangle.RectangleCalculator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cell averages by walking the region compared to the integral image, plus building the integral image.
+ * Averages only read the input, so the size of the tile library does not change them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AverageColorBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @Param({"20", "41", "80"})
+    private int tileSize;
+
+    @Param({"1", "4"})
+    private int threads;
+
+    private BufferedArtImage image;
+    private IntegralImage integral;
+    private int x;
+    private int y;
+
+    @Setup
+    public void setUp() {
+        image = new BufferedArtImage(SyntheticImages.photo(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB, 1));
+        integral = new IntegralImage(image, threads);
+    }
+
+    private void nextCell() {
+        x += tileSize;
+        if (x + tileSize > WIDTH) {
+            x = 0;
+            y = y + 2 * tileSize > HEIGHT ? 0 : y + tileSize;
+        }
+    }
+
+    @Benchmark
+    public int walkRegion() {
+        nextCell();
+        return RectangleCalculator.getInstance().averageColor(image.getSubimage(x, y, tileSize, tileSize));
+    }
+
+    @Benchmark
+    public int integralImage() {
+        nextCell();
+        return RectangleCalculator.getInstance()
+                .averageColor(image.getSubimage(x, y, tileSize, tileSize), integral, x, y);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IntegralImage buildIntegralImage() {
+        return new IntegralImage(image, threads);
+    }
+}
@@ -0,0 +1,46 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrapping a decoded input image, which converts everything that is not TYPE_INT_ARGB.
+ * Only the image type matters here: the input is wrapped once per mosaic on one thread, before any tile is
+ * touched, so neither the tile size, the library size nor the number of threads change the work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferedArtImageBenchmark {
+
+    @Param({"1", "2", "5"})
+    private int imageType;
+
+    private BufferedImage input;
+
+    @Setup
+    public void setUp() {
+        input = SyntheticImages.photo(1920, 1080, imageType, 1);
+    }
+
+    @Benchmark
+    public BufferedArtImage construct() {
+        return new BufferedArtImage(input);
+    }
+}
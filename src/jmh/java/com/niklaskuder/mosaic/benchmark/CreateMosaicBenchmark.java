@@ -0,0 +1,56 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicEasel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A complete mosaic of a full HD input with prepared tiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateMosaicBenchmark {
+
+    @Param({"20", "41"})
+    private int tileSize;
+
+    @Param({"100", "1000"})
+    private int librarySize;
+
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+
+    private BufferedImage input;
+    private RectangleMosaicArtist artist;
+    private RectangleMosaicEasel easel;
+
+    @Setup
+    public void setUp() {
+        input = SyntheticImages.photo(1920, 1080, BufferedImage.TYPE_3BYTE_BGR, 1);
+        artist = new RectangleMosaicArtist(SyntheticImages.shapes(librarySize, tileSize, tileSize, 2));
+        easel = new RectangleMosaicEasel(threads, CellScheduler.Order.ROWS);
+    }
+
+    @Benchmark
+    public BufferedImage createMosaic() {
+        return easel.createMosaic(input, artist);
+    }
+}
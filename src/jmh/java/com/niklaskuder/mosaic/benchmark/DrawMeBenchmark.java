@@ -0,0 +1,75 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing color corrected tiles into the cells of the input image. The cells take the tiles of the library in
+ * turns, so larger libraries read thumbnails from more memory, and the cells are spread over the threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawMeBenchmark {
+    private static final int GRID = 16;
+
+    @Param({"20", "41", "80"})
+    private int tileSize;
+
+    @Param({"1", "1000"})
+    private int librarySize;
+
+    @Param({"1", "4"})
+    private int threads;
+
+    private List<MosaicShape> shapes;
+    private BufferedArtImage image;
+    private Workers workers;
+
+    @Setup
+    public void setUp() {
+        shapes = SyntheticImages.shapes(librarySize, tileSize, tileSize, 1);
+        image = new BufferedArtImage(SyntheticImages.photo(GRID * tileSize, GRID * tileSize,
+                BufferedImage.TYPE_INT_ARGB, 2));
+        workers = new Workers(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public BufferedArtImage drawMe() {
+        workers.run(GRID * GRID, new Workers.Task() {
+            @Override
+            public void run(int worker, int cell) {
+                BufferedArtImage region = image.getSubimage((cell % GRID) * tileSize, (cell / GRID) * tileSize,
+                        tileSize, tileSize);
+                shapes.get(cell % shapes.size()).drawMe(region);
+            }
+        });
+        return image;
+    }
+}
@@ -0,0 +1,147 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.CachedColorIndex;
+import com.niklaskuder.mosaic.base.KdTreeColorIndex;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.NearestColorIndex;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tile lookup for cell colors, depending on the size of the tile library and the number of threads matching at
+ * the same time. Every thread has its own artist sharing the index, like concurrent jobs of the daemon, and
+ * advances its cooldown after every match like the easels do. The tile size does not change the lookup, which
+ * only compares average colors.
+ * <p>
+ * The artist puts a cache of the nearest tiles per quantized color in front of its k-d tree, which answers almost
+ * every lookup once warmed up, so {@link #matchColor()} hardly depends on the library size. {@link #kdTree()}
+ * queries the k-d tree alone to measure the nearest color search itself, {@link #cachedKdTree()} the same tree
+ * behind the cache. Every
+ * invocation takes the next batch of targets from a larger pool, so the same colors do not come back in every
+ * invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindNearestBenchmark {
+    private static final int TARGETS = 4096;
+    private static final int POOL = 64 * TARGETS;
+    /**
+     * The query of the artist: up to 20 candidates, a tolerance of 10 and at least 2 candidates.
+     */
+    private static final int LIST_SIZE = 20;
+    private static final int TOLERANCE = 10 * 10;
+    private static final int MIN_RESULTS = 2;
+    private static final NearestColorIndex.Filter ALL = new NearestColorIndex.Filter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    @Param({"100", "1000", "10000", "50000"})
+    private int librarySize;
+
+    @Param({"1", "4"})
+    private int threads;
+
+    private RectangleMosaicArtist[] artists;
+    private NearestColorIndex kdTree;
+    private NearestColorIndex cachedKdTree;
+    private int[][] results;
+    private int[] targets;
+    private int next;
+    private int[] matches;
+    private Workers workers;
+
+    @Setup
+    public void setUp() {
+        List<MosaicShape> shapes = SyntheticImages.shapes(librarySize, 4, 4, 1);
+        RectangleMosaicArtist prototype = new RectangleMosaicArtist(shapes);
+        artists = new RectangleMosaicArtist[threads];
+        for (int i = 0; i < threads; i++) {
+            artists[i] = new RectangleMosaicArtist(prototype);
+        }
+        Random random = new Random(2);
+        targets = new int[POOL];
+        for (int i = 0; i < POOL; i++) {
+            targets[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        int[] colors = new int[shapes.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = shapes.get(i).getAverageColor();
+        }
+        kdTree = new KdTreeColorIndex(colors);
+        cachedKdTree = new CachedColorIndex(new KdTreeColorIndex(colors), colors);
+        results = new int[threads][LIST_SIZE];
+        matches = new int[TARGETS];
+        workers = new Workers(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TARGETS)
+    public int[] matchColor() {
+        final int first = nextBatch();
+        workers.run(TARGETS, new Workers.Task() {
+            @Override
+            public void run(int worker, int i) {
+                matches[i] = artists[worker].matchColor(targets[first + i]);
+            }
+        });
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TARGETS)
+    public int[] kdTree() {
+        return findNearest(kdTree);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TARGETS)
+    public int[] cachedKdTree() {
+        return findNearest(cachedKdTree);
+    }
+
+    private int[] findNearest(final NearestColorIndex index) {
+        final int first = nextBatch();
+        workers.run(TARGETS, new Workers.Task() {
+            @Override
+            public void run(int worker, int i) {
+                matches[i] = index.findNearest(targets[first + i], LIST_SIZE, TOLERANCE, MIN_RESULTS, ALL,
+                        results[worker]);
+            }
+        });
+        return matches;
+    }
+
+    private int nextBatch() {
+        int first = next;
+        next = (next + TARGETS) % POOL;
+        return first;
+    }
+}
@@ -0,0 +1,127 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.ImageUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing tile thumbnails from a decoded photo, a batch of them spread over the threads like the tile loader
+ * does. Preparing one thumbnail does not depend on the size of the library, which only sets the number of
+ * thumbnails.
+ * <p>
+ * {@link #scaledInstance()} runs the former {@code Image.getScaledInstance} path as the baseline. Before measuring,
+ * the setup checks for every common input type that both paths agree within {@link #TOLERANCE} levels per channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScaleAndCropBenchmark {
+    private static final int BATCH = 16;
+    private static final int TOLERANCE = 2;
+    private static final int[] CHECKED_TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR};
+
+    @Param({"20", "41", "80"})
+    private int tileSize;
+
+    @Param({"400", "1600"})
+    private int sourceWidth;
+
+    @Param({"1", "4"})
+    private int threads;
+
+    private BufferedImage source;
+    private BufferedImage[] thumbnails;
+    private Workers workers;
+
+    @Setup
+    public void setUp() {
+        source = SyntheticImages.photo(sourceWidth, sourceWidth * 3 / 4, BufferedImage.TYPE_3BYTE_BGR, 1);
+        thumbnails = new BufferedImage[BATCH];
+        workers = new Workers(threads);
+        for (int type : CHECKED_TYPES) {
+            BufferedImage input = SyntheticImages.photo(sourceWidth, sourceWidth * 3 / 4, type, 1);
+            checkEqual(ImageUtils.scaleAndCrop(input, tileSize, tileSize),
+                    scaleAndCropScaledInstance(input, tileSize, tileSize), type);
+        }
+    }
+
+    private static void checkEqual(BufferedImage actual, BufferedImage expected, int type) {
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int a = actual.getRGB(x, y);
+                int e = expected.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    if (Math.abs((a >>> shift & 0xFF) - (e >>> shift & 0xFF)) > TOLERANCE) {
+                        throw new IllegalStateException("scaleAndCrop of type " + type + " differs at (" + x + ", "
+                                + y + "): " + Integer.toHexString(a) + " instead of " + Integer.toHexString(e));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The former implementation of {@link ImageUtils#scaleAndCrop}.
+     */
+    private static BufferedImage scaleAndCropScaledInstance(BufferedImage input, int width, int height) {
+        float factorX = 1.0F * (float) width / (float) input.getWidth();
+        float factorY = 1.0F * (float) height / (float) input.getHeight();
+        Image scaled = factorX > factorY ? input.getScaledInstance(width, -1, Image.SCALE_AREA_AVERAGING)
+                : input.getScaledInstance(-1, height, Image.SCALE_AREA_AVERAGING);
+        BufferedImage result = new BufferedImage(scaled.getWidth(null), scaled.getHeight(null), input.getType());
+        Graphics2D g2d = result.createGraphics();
+        g2d.drawImage(scaled, 0, 0, null);
+        g2d.dispose();
+        return result.getSubimage((result.getWidth() - width) / 2, (result.getHeight() - height) / 2, width,
+                height);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public BufferedImage[] scaleAndCrop() {
+        workers.run(BATCH, new Workers.Task() {
+            @Override
+            public void run(int worker, int index) {
+                thumbnails[index] = ImageUtils.scaleAndCrop(source, tileSize, tileSize);
+            }
+        });
+        return thumbnails;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public BufferedImage[] scaledInstance() {
+        workers.run(BATCH, new Workers.Task() {
+            @Override
+            public void run(int worker, int index) {
+                thumbnails[index] = scaleAndCropScaledInstance(source, tileSize, tileSize);
+            }
+        });
+        return thumbnails;
+    }
+}
@@ -0,0 +1,73 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.rectangle.RectangleCalculator;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicShape;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic, photo-like test images, so benchmark results are reproducible without any image files.
+ */
+final class SyntheticImages {
+
+    private SyntheticImages() {
+        throw new IllegalAccessError();
+    }
+
+    /**
+     * Creates an image with a diagonal color gradient, a soft wave pattern and some noise.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param type the BufferedImage type.
+     * @param seed the seed, equal seeds yield equal images.
+     * @return returns the image.
+     */
+    static BufferedImage photo(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        int[] from = {random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+        int[] to = {random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+        double frequency = 0.01 + random.nextDouble() * 0.05;
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double t = (double) (x + y) / (width + height);
+                double wave = 24 * Math.sin(x * frequency) * Math.cos(y * frequency);
+                int noise = random.nextInt(16) - 8;
+                int r = clamp(from[0] + (to[0] - from[0]) * t + wave + noise);
+                int g = clamp(from[1] + (to[1] - from[1]) * t - wave + noise);
+                int b = clamp(from[2] + (to[2] - from[2]) * t + noise);
+                pixels[y * width + x] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        BufferedImage image = new BufferedImage(width, height, type);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    /**
+     * Creates prepared shapes with synthetic thumbnails, without going through scaling.
+     * @param count the number of shapes.
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     * @param seed the seed of the first thumbnail.
+     * @return returns the shapes.
+     */
+    static List<MosaicShape> shapes(int count, int tileWidth, int tileHeight, long seed) {
+        List<MosaicShape> shapes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BufferedImage thumbnail = photo(tileWidth, tileHeight, BufferedImage.TYPE_INT_ARGB, seed + i);
+            int average = RectangleCalculator.getInstance().averageColor(new BufferedArtImage(thumbnail));
+            shapes.add(new RectangleMosaicShape(thumbnail, average));
+        }
+        return shapes;
+    }
+
+    private static int clamp(double value) {
+        return Math.max(0, Math.min(255, (int) value));
+    }
+}
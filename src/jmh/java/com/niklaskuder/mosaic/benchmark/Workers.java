@@ -0,0 +1,64 @@
+package com.niklaskuder.mosaic.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fixed pool of threads that splits a batch of work items evenly, so benchmarks can vary the thread count without
+ * measuring the creation of threads.
+ */
+final class Workers {
+
+    /**
+     * One work item of a batch.
+     */
+    interface Task {
+        void run(int worker, int index);
+    }
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    Workers(int threads) {
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Runs the items 0 to count - 1, every thread taking one consecutive slice.
+     * @param count the number of items.
+     * @param task the work for every item.
+     */
+    void run(final int count, final Task task) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int worker = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int index = count * worker / threads; index < count * (worker + 1) / threads; index++) {
+                        task.run(worker, index);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,15 +1,19 @@
 package com.niklaskuder.mosaic.base;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Abstract calculator class used for calculating the average color of a given region.
+ * Every calculator describes its shape by a {@link ShapeMask} per size, which is created once and then reused
+ * for every region of that size.
  *
  * @author Niklas Kuder
  * @version 1.0
  */
 public abstract class AbstractCalculator {
+    private final ConcurrentMap<Long, ShapeMask> masks = new ConcurrentHashMap<>();
 
     /**
      * calculates the average color for a given region.
@@ -17,50 +21,122 @@ public abstract class AbstractCalculator {
      * @return returns the average color as an integer.
      */
     public int averageColor(BufferedImage region) {
+        return averageColor(new BufferedArtImage(region));
+    }
+
+    /**
+     * calculates the average color for a given region, reading the pixels straight from its backing array.
+     * @param region the given region.
+     * @return returns the average color as an integer.
+     */
+    public int averageColor(BufferedArtImage region) {
+        ShapeMask mask = getMask(region.getWidth(), region.getHeight());
+        int[] data = region.getData();
         long r = 0;
         long g = 0;
         long b = 0;
         long a = 0;
-        int ctr = 0;
-
-        for (int x = xStart(region); x < getXBound(region); x++) {
-            float yBound = getYBound(region, x);
-            for (int y = yStart(region, x); y < yBound; y++) {
-                int correct = getCorrectRow(region, y);
-                int col = region.getRGB(x, correct);
 
-                Color c = new Color(col, true);
-                r += c.getRed();
-                g += c.getGreen();
-                b += c.getBlue();
-                a += c.getAlpha();
-                ctr++;
+        for (int y = 0; y < mask.getHeight(); y++) {
+            int length = mask.getLength(y);
+            if (length == 0) {
+                continue;
+            }
+            int index = region.getIndex(mask.getStart(y), y, length);
+            for (int i = index; i < index + length; i++) {
+                int col = data[i];
+                a += col >>> 24;
+                r += (col >> 16) & 0xFF;
+                g += (col >> 8) & 0xFF;
+                b += col & 0xFF;
             }
         }
-        return new Color((int) (r / ctr), (int) (g / ctr), (int) (b / ctr), (int) (a / ctr)).getRGB();
+        int ctr = Math.max(1, mask.getPixelCount());
+        return ImageUtils.argb((int) (a / ctr), (int) (r / ctr), (int) (g / ctr), (int) (b / ctr));
     }
 
-    public abstract int xStart(BufferedImage region);
+    /**
+     * calculates the average color for a region of the image the integral image was built from.
+     * Rectangular calculators answer this in constant time from the integral image, all others sum up the
+     * spans of their shape, one row at a time.
+     * @param region the given region.
+     * @param integral the integral image of the image containing the region.
+     * @param x the x-coordinate of the region in that image.
+     * @param y the y-coordinate of the region in that image.
+     * @return returns the average color as an integer.
+     */
+    public int averageColor(BufferedArtImage region, IntegralImage integral, int x, int y) {
+        if (isRectangular()) {
+            return integral.averageColor(x, y, region.getWidth(), region.getHeight());
+        }
+        return averageColor(integral, x, y, region.getWidth(), region.getHeight());
+    }
 
-    public abstract int yStart(BufferedImage region, int x);
+    /**
+     * calculates the average color of the shape of the given size placed at (x, y) in the image the integral image
+     * was built from. Parts of the shape outside of the image are left out.
+     * @param integral the integral image.
+     * @param x the x-coordinate of the bounding box of the shape, which may be negative.
+     * @param y the y-coordinate of the bounding box of the shape, which may be negative.
+     * @param width the width of the shape.
+     * @param height the height of the shape.
+     * @return returns the average color as an integer, or 0 if no pixel of the shape is inside the image.
+     */
+    public int averageColor(IntegralImage integral, int x, int y, int width, int height) {
+        ShapeMask mask = getMask(width, height);
+        long[] channels = new long[4];
+        long ctr = 0;
+        int firstRow = Math.max(0, -y);
+        int endRow = Math.min(height, integral.getHeight() - y);
+        for (int row = firstRow; row < endRow; row++) {
+            int start = Math.max(x + mask.getStart(row), 0);
+            int end = Math.min(x + mask.getStart(row) + mask.getLength(row), integral.getWidth());
+            if (start < end) {
+                integral.addSums(start, y + row, end - start, 1, channels);
+                ctr += end - start;
+            }
+        }
+        if (ctr == 0) {
+            return 0;
+        }
+        return ImageUtils.argb((int) (channels[0] / ctr), (int) (channels[1] / ctr), (int) (channels[2] / ctr),
+                (int) (channels[3] / ctr));
+    }
 
     /**
-     * This abstract method returns the correct y-value that will be used for iterating through the region.
-     * Different triangles need different y-values.
-     * @param region the given region.
-     * @param y the current y-value
-     * @return returns the correct y-value
+     * @return returns true if this calculator covers every pixel of the region, so region averages can be
+     * taken from an integral image.
      */
-    public abstract int getCorrectRow(BufferedImage region, int y);
+    public boolean isRectangular() {
+        return false;
+    }
 
-    public abstract int getXBound(BufferedImage region);
+    /**
+     * Returns the mask of the shape for the given size, creating it on first use.
+     * @param width the width of the bounding box.
+     * @param height the height of the bounding box.
+     * @return returns the mask.
+     */
+    public final ShapeMask getMask(int width, int height) {
+        Long key = (long) width << 32 | height;
+        ShapeMask mask = masks.get(key);
+        if (mask == null) {
+            mask = createMask(width, height);
+            ShapeMask other = masks.putIfAbsent(key, mask);
+            if (other != null) {
+                mask = other;
+            }
+        }
+        return mask;
+    }
 
     /**
-     * This abstract method lets the individual calculators return the right yBounds for their purpose.
-     * @param region the given region
-     * @param x the current row index
-     * @return returns the yBound for the given row
+     * This abstract method lets the individual calculators describe their shape for the given size.
+     * Adjacent shapes have to share no pixel, so that they can be drawn independently of each other.
+     * @param width the width of the bounding box.
+     * @param height the height of the bounding box.
+     * @return returns the mask of the shape.
      */
-    public abstract float getYBound(BufferedImage region, int x);
+    protected abstract ShapeMask createMask(int width, int height);
 
 }
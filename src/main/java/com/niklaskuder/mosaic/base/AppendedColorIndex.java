@@ -0,0 +1,90 @@
+package com.niklaskuder.mosaic.base;
+
+import java.util.Arrays;
+
+/**
+ * Color index over the entries of another index followed by further colors. The k-d tree cannot take new
+ * entries, so the appended colors get a tree of their own and queries search both, merging their results.
+ * Appending to a library then only builds a tree over the appended colors, while the index of the library
+ * is shared.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class AppendedColorIndex implements NearestColorIndex {
+    private final NearestColorIndex base;
+    private final int[] colors;
+    private final KdTreeColorIndex appended;
+
+    /**
+     * @param base the index over the first colors.
+     * @param colors all colors as argb: those of the base index, followed by the appended ones.
+     */
+    public AppendedColorIndex(NearestColorIndex base, int[] colors) {
+        if (colors.length < base.size()) {
+            throw new IllegalArgumentException("colors do not cover the base index");
+        }
+        this.base = base;
+        this.colors = colors.clone();
+        this.appended = new KdTreeColorIndex(Arrays.copyOfRange(colors, base.size(), colors.length));
+    }
+
+    @Override
+    public int size() {
+        return colors.length;
+    }
+
+    @Override
+    public int findNearest(int target, int maxResults, int tolerance, int minResults, final Filter filter,
+                           int[] result) {
+        if (maxResults <= 0) {
+            return 0;
+        }
+        final int offset = base.size();
+        //Both parts keep their nearest entries within the tolerance and at least their minResults nearest ones,
+        //so the union holds everything the merged result can consist of
+        int[] found = new int[2 * maxResults];
+        int count = base.findNearest(target, maxResults, tolerance, minResults, filter, found);
+        int[] appendedFound = new int[maxResults];
+        int appendedCount = appended.findNearest(target, maxResults, tolerance, minResults, new Filter() {
+            @Override
+            public boolean accept(int index) {
+                return filter.accept(offset + index);
+            }
+        }, appendedFound);
+        for (int i = 0; i < appendedCount; i++) {
+            found[count++] = offset + appendedFound[i];
+        }
+
+        int[] distances = new int[count];
+        for (int i = 0; i < count; i++) {
+            int id = found[i];
+            int dist = distance(target, colors[id]);
+            int j = i;
+            while (j > 0 && distances[j - 1] > dist) {
+                found[j] = found[j - 1];
+                distances[j] = distances[j - 1];
+                j--;
+            }
+            found[j] = id;
+            distances[j] = dist;
+        }
+        count = Math.min(count, maxResults);
+        int withinTolerance = 0;
+        while (withinTolerance < count && distances[withinTolerance] <= tolerance) {
+            withinTolerance++;
+        }
+        count = Math.max(withinTolerance, Math.min(count, minResults));
+        System.arraycopy(found, 0, result, 0, count);
+        return count;
+    }
+
+    private static int distance(int a, int b) {
+        int dist = 0;
+        for (int channel = 24; channel >= 0; channel -= 8) {
+            int d = ((a >>> channel) & 0xFF) - ((b >>> channel) & 0xFF);
+            dist += d * d;
+        }
+        return dist;
+    }
+}
@@ -0,0 +1,191 @@
+package com.niklaskuder.mosaic.base;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Scales an image with an area averaging (box) filter and crops it in the same pass. Every output pixel is the
+ * average of the source pixels under it, weighted by how much of each source pixel it covers, which is what
+ * {@code Image.SCALE_AREA_AVERAGING} computes. Only the source rows under the crop are read, and of each of them
+ * only the span of columns under the crop.
+ * <p>
+ * Coordinates are kept as exact fractions: the scaled image of size {@code scaled} covers the source of size
+ * {@code source}, so output pixel {@code X} covers source positions {@code [X * source, (X + 1) * source)} in
+ * units of {@code 1 / scaled} source pixels.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+final class AreaAveragingScaler {
+    private static final int CHANNELS = 4;
+
+    private final BufferedImage input;
+    private final int width;
+    private final int height;
+    private final Axis columns;
+    private final Axis rows;
+    private final long area;
+
+    /**
+     * @param input the source image, of any type.
+     * @param scaledWidth the width of the whole scaled image.
+     * @param scaledHeight the height of the whole scaled image.
+     * @param cropX the x-coordinate of the crop in the scaled image.
+     * @param cropY the y-coordinate of the crop in the scaled image.
+     * @param width the width of the crop.
+     * @param height the height of the crop.
+     */
+    AreaAveragingScaler(BufferedImage input, int scaledWidth, int scaledHeight, int cropX, int cropY, int width,
+                        int height) {
+        if (cropX < 0 || cropY < 0 || width <= 0 || height <= 0 || cropX + width > scaledWidth
+                || cropY + height > scaledHeight) {
+            throw new IllegalArgumentException("crop (" + cropX + ", " + cropY + ", " + width + ", " + height
+                    + ") is outside of " + scaledWidth + "x" + scaledHeight);
+        }
+        this.input = input;
+        this.width = width;
+        this.height = height;
+        this.columns = new Axis(input.getWidth(), scaledWidth, cropX, width);
+        this.rows = new Axis(input.getHeight(), scaledHeight, cropY, height);
+        this.area = (long) input.getWidth() * input.getHeight();
+    }
+
+    /**
+     * Scales the image.
+     * @return returns the scaled and cropped image as TYPE_INT_ARGB.
+     */
+    BufferedImage scale() {
+        BufferedArtImage output = new BufferedArtImage(width, height);
+        int firstColumn = columns.first[0];
+        RowReader reader = new RowReader(input, firstColumn, columns.last[width - 1] - firstColumn + 1);
+        long[] sums = new long[width * CHANNELS];
+        int[] data = output.getData();
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(sums, 0);
+            int rowWeights = rows.start[y];
+            for (int sourceY = rows.first[y]; sourceY <= rows.last[y]; sourceY++) {
+                long rowWeight = rows.weights[rowWeights++];
+                int[] line = reader.read(sourceY);
+                int entry = 0;
+                for (int x = 0; x < width; x++) {
+                    long a = 0;
+                    long r = 0;
+                    long g = 0;
+                    long b = 0;
+                    int columnWeights = columns.start[x];
+                    for (int sourceX = columns.first[x]; sourceX <= columns.last[x]; sourceX++) {
+                        long weight = columns.weights[columnWeights++];
+                        int col = line[sourceX - firstColumn];
+                        a += weight * (col >>> 24);
+                        r += weight * ((col >> 16) & 0xFF);
+                        g += weight * ((col >> 8) & 0xFF);
+                        b += weight * (col & 0xFF);
+                    }
+                    sums[entry] += rowWeight * a;
+                    sums[entry + 1] += rowWeight * r;
+                    sums[entry + 2] += rowWeight * g;
+                    sums[entry + 3] += rowWeight * b;
+                    entry += CHANNELS;
+                }
+            }
+            int index = output.getIndex(0, y, width);
+            long half = area / 2;
+            for (int x = 0, entry = 0; x < width; x++, entry += CHANNELS) {
+                data[index + x] = ImageUtils.argb(
+                        (int) ((sums[entry] + half) / area),
+                        (int) ((sums[entry + 1] + half) / area),
+                        (int) ((sums[entry + 2] + half) / area),
+                        (int) ((sums[entry + 3] + half) / area));
+            }
+        }
+        return output.toBufferedImage();
+    }
+
+    /**
+     * The source pixels and their weights for every output position along one axis. The weights of one output
+     * position add up to the source size.
+     */
+    private static final class Axis {
+        private final int[] first;
+        private final int[] last;
+        private final int[] start;
+        private final int[] weights;
+
+        Axis(int source, int scaled, int crop, int length) {
+            this.first = new int[length];
+            this.last = new int[length];
+            this.start = new int[length];
+            int total = 0;
+            for (int i = 0; i < length; i++) {
+                long from = (long) (crop + i) * source;
+                long to = from + source;
+                first[i] = (int) (from / scaled);
+                last[i] = (int) ((to - 1) / scaled);
+                start[i] = total;
+                total += last[i] - first[i] + 1;
+            }
+            this.weights = new int[total];
+            for (int i = 0, w = 0; i < length; i++) {
+                long from = (long) (crop + i) * source;
+                long to = from + source;
+                for (int pixel = first[i]; pixel <= last[i]; pixel++) {
+                    long pixelFrom = (long) pixel * scaled;
+                    weights[w++] = (int) (Math.min(to, pixelFrom + scaled) - Math.max(from, pixelFrom));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a span of columns of source rows as argb. The common decoded types are read straight from the
+     * raster, everything else goes through the color model of the image.
+     */
+    private static final class RowReader {
+        private final BufferedImage image;
+        private final Raster raster;
+        private final int x;
+        private final int[] line;
+        private final byte[] bytes;
+
+        /**
+         * @param image the image.
+         * @param x the first column of the span.
+         * @param length the number of columns in the span.
+         */
+        RowReader(BufferedImage image, int x, int length) {
+            this.image = image;
+            this.raster = image.getRaster();
+            this.x = x;
+            this.line = new int[length];
+            this.bytes = image.getType() == BufferedImage.TYPE_3BYTE_BGR ? new byte[line.length * 3] : null;
+        }
+
+        /**
+         * @param y the row.
+         * @return returns the span of the row, the first column at index 0. The array is reused by the next call.
+         */
+        int[] read(int y) {
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_ARGB:
+                    raster.getDataElements(x, y, line.length, 1, line);
+                    break;
+                case BufferedImage.TYPE_INT_RGB:
+                    raster.getDataElements(x, y, line.length, 1, line);
+                    for (int i = 0; i < line.length; i++) {
+                        line[i] |= 0xFF000000;
+                    }
+                    break;
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    raster.getDataElements(x, y, line.length, 1, bytes);
+                    for (int i = 0, b = 0; i < line.length; i++, b += 3) {
+                        line[i] = ImageUtils.argb(0xFF, bytes[b] & 0xFF, bytes[b + 1] & 0xFF, bytes[b + 2] & 0xFF);
+                    }
+                    break;
+                default:
+                    image.getRGB(x, y, line.length, 1, line, 0, line.length);
+            }
+            return line;
+        }
+    }
+}
@@ -1,70 +1,227 @@
 package com.niklaskuder.mosaic.base;
 
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
 import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
-import java.awt.image.RasterFormatException;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
+/**
+ * TYPE_INT_ARGB image whose pixels can also be accessed directly through the backing int array.
+ * The pixel (x, y) is stored at {@code getData()[getOffset() + y * getScanlineStride() + x]}.
+ * Subimages are views sharing the backing array of their parent and only differ in offset and size. Creating one
+ * allocates nothing but the view, the {@link BufferedImage} of a subimage is only created when it is asked for.
+ */
 public class BufferedArtImage {
+    private static final int OPAQUE = 0xFF000000;
+
     private final BufferedImage image;
+    private final int[] data;
+    private final int offset;
+    private final int scanlineStride;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
 
     public BufferedArtImage(int width, int height) {
-        BufferedImage image = new BufferedImage(width, height, 2);
-        int[] transparent = new int[width * height * 4];
-        image.setRGB(0, 0, width, height, transparent, 0, 4);
-        this.image = image;
+        this(new BufferedImage(width, height, 2));
     }
 
     public BufferedArtImage(BufferedImage image) {
-        if (image.getType() == 2) {
-            this.image = image;
-        } else {
-            BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), 2);
+        this.image = image.getType() == 2 ? image : toArgb(image);
+
+        WritableRaster raster = this.image.getRaster();
+        DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+        this.data = buffer.getData();
+        this.scanlineStride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        this.offset = buffer.getOffset() - raster.getSampleModelTranslateY() * this.scanlineStride
+                - raster.getSampleModelTranslateX();
+        this.x = 0;
+        this.y = 0;
+        this.width = this.image.getWidth();
+        this.height = this.image.getHeight();
+    }
+
+    /**
+     * Creates a view of a region of the given image.
+     */
+    private BufferedArtImage(BufferedArtImage parent, int x, int y, int width, int height) {
+        this.image = parent.image;
+        this.data = parent.data;
+        this.scanlineStride = parent.scanlineStride;
+        this.offset = parent.offset + y * parent.scanlineStride + x;
+        this.x = parent.x + x;
+        this.y = parent.y + y;
+        this.width = width;
+        this.height = height;
+    }
 
-            for(int x = 0; x < image.getWidth(); ++x) {
-                for(int y = 0; y < image.getHeight(); ++y) {
-                    argb.setRGB(x, y, image.getRGB(x, y));
+    /**
+     * Converts an image of another type, reading the backing arrays of the common rgb types directly and
+     * falling back to one {@code getRGB} call per row for all others.
+     */
+    private static BufferedImage toArgb(BufferedImage image) {
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), 2);
+        int[] target = ((DataBufferInt)argb.getRaster().getDataBuffer()).getData();
+        WritableRaster raster = image.getRaster();
+        int translateX = raster.getSampleModelTranslateX();
+        int translateY = raster.getSampleModelTranslateY();
+        int width = image.getWidth();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+            int[] source = buffer.getData();
+            int stride = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+            for (int y = 0; y < image.getHeight(); y++) {
+                int index = buffer.getOffset() + (y - translateY) * stride - translateX;
+                for (int x = 0; x < width; x++) {
+                    target[y * width + x] = OPAQUE | source[index + x];
                 }
             }
-
-            this.image = argb;
+        } else if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                || image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+            byte[] source = buffer.getData();
+            ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+            int stride = model.getScanlineStride();
+            int pixelStride = model.getPixelStride();
+            int[] bands = model.getBandOffsets();
+            boolean alpha = bands.length == 4;
+            for (int y = 0; y < image.getHeight(); y++) {
+                int index = buffer.getOffset() + (y - translateY) * stride - translateX * pixelStride;
+                for (int x = 0; x < width; x++, index += pixelStride) {
+                    int a = alpha ? source[index + bands[3]] & 0xFF : 0xFF;
+                    target[y * width + x] = ImageUtils.argb(a, source[index + bands[0]] & 0xFF,
+                            source[index + bands[1]] & 0xFF, source[index + bands[2]] & 0xFF);
+                }
+            }
+        } else {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRGB(0, y, width, 1, target, y * width, width);
+            }
         }
-
+        return argb;
     }
 
     public BufferedArtImage createBlankImage() {
         return new BufferedArtImage(this.getWidth(), this.getHeight());
     }
 
+    /**
+     * @return returns the image, for a subimage one sharing the pixels with its parent.
+     */
     public BufferedImage toBufferedImage() {
-        return this.image;
+        if (this.x == 0 && this.y == 0 && this.width == this.image.getWidth()
+                && this.height == this.image.getHeight()) {
+            return this.image;
+        }
+        return this.image.getSubimage(this.x, this.y, this.width, this.height);
     }
 
+    /**
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param width the width of the region.
+     * @param height the height of the region.
+     * @return returns a view of the region, sharing the pixels with this image.
+     * @throws IllegalArgumentException if the region is not inside this image.
+     */
     public BufferedArtImage getSubimage(int x, int y, int width, int height) {
-        try {
-            BufferedImage rect = this.image.getSubimage(x, y, width, height);
-            return new BufferedArtImage(rect);
-        } catch (RasterFormatException var6) {
-            throw new IllegalArgumentException(var6);
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height) {
+            throw new IllegalArgumentException("region (" + x + ", " + y + ", " + width + ", " + height
+                    + ") is outside of " + this.width + "x" + this.height);
         }
+        return new BufferedArtImage(this, x, y, width, height);
     }
 
+    /**
+     * Draws an image over this image like {@code Graphics.drawImage} with the default SrcOver composite: opaque
+     * pixels replace those below and translucent pixels are blended with them. Parts outside of this image are
+     * left out.
+     * @param x the x-coordinate of the image in this image.
+     * @param y the y-coordinate of the image in this image.
+     * @param rectangle the image.
+     */
     public void setSubimage(int x, int y, BufferedArtImage rectangle) {
-        this.image.getGraphics().drawImage(rectangle.image, x, y, (ImageObserver)null);
+        PhaseEvent event = Metrics.begin(Phase.SET_SUBIMAGE);
+        int firstRow = Math.max(0, -y);
+        int endRow = Math.min(rectangle.height, this.height - y);
+        int firstColumn = Math.max(0, -x);
+        int length = Math.min(rectangle.width, this.width - x) - firstColumn;
+        int[] source = rectangle.data;
+        for (int row = firstRow; row < endRow && length > 0; row++) {
+            int sourceIndex = rectangle.offset + row * rectangle.scanlineStride + firstColumn;
+            int targetIndex = this.offset + (y + row) * this.scanlineStride + x + firstColumn;
+            int opaque = 0;
+            while (opaque < length && source[sourceIndex + opaque] >>> 24 == 0xFF) {
+                opaque++;
+            }
+            if (opaque == length) {
+                System.arraycopy(source, sourceIndex, this.data, targetIndex, length);
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                this.data[targetIndex + i] = ImageUtils.srcOver(source[sourceIndex + i], this.data[targetIndex + i]);
+            }
+        }
+        Metrics.end(event);
+    }
+
+    /**
+     * @return returns the int array backing this image, shared with its parent and all subimages.
+     */
+    public int[] getData() {
+        return this.data;
+    }
+
+    /**
+     * @return returns the index of the pixel (0, 0) in the backing array.
+     */
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return returns the distance between two vertically adjacent pixels in the backing array.
+     */
+    public int getScanlineStride() {
+        return this.scanlineStride;
+    }
+
+    /**
+     * Returns the index of the first pixel of a row segment after checking that the whole segment lies
+     * inside this image.
+     * @param x the x-coordinate of the first pixel.
+     * @param y the row.
+     * @param length the number of pixels in the segment.
+     * @return returns the index of the pixel (x, y) in the backing array.
+     */
+    public int getIndex(int x, int y, int length) {
+        if (x < 0 || y < 0 || length < 0 || x + length > this.getWidth() || y >= this.getHeight()) {
+            throw new ArrayIndexOutOfBoundsException("row segment (" + x + ", " + y + ") + " + length
+                    + " is outside of " + this.getWidth() + "x" + this.getHeight());
+        }
+        return this.offset + y * this.scanlineStride + x;
     }
 
     public int getRGB(int x, int y) {
-        return this.image.getRGB(x, y);
+        return this.data[this.getIndex(x, y, 1)];
     }
 
     public void setRGB(int x, int y, int rgb) {
-        this.image.setRGB(x, y, rgb);
+        this.data[this.getIndex(x, y, 1)] = rgb;
     }
 
     public int getWidth() {
-        return this.image.getWidth();
+        return this.width;
     }
 
     public int getHeight() {
-        return this.image.getHeight();
+        return this.height;
     }
 }
@@ -0,0 +1,269 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Counter;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache in front of another color index. Photos have large areas of nearly the same color, like sky or
+ * backgrounds, so most queries repeat one just answered for a similar color.
+ * <p>
+ * Target colors are quantized to the given number of bits per channel. For every quantized color, the
+ * {@value #CANDIDATES} entries nearest to the center of its range are looked up once and kept, ignoring any filter.
+ * A query is then answered from these candidates: they are ranked by their distance to the exact target, and the
+ * filter and the tolerance are applied to them like the index would. Entries missing from the candidates are at
+ * least as far from the target as the last candidate is from the center, minus the distance of the target to the
+ * center. Whenever such an entry could still have changed the result, the query goes to the index instead, so the
+ * results are always those of the index, apart from the order of entries at the same distance.
+ * <p>
+ * The cache holds a fixed number of slots, each quantized color mapping to one of them, and can be used from
+ * several threads. It belongs to the index it was built for: a new index, for example after the tiles changed,
+ * needs a new cache, or {@link #invalidate()} has to be called.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class CachedColorIndex implements NearestColorIndex {
+    /**
+     * Number of candidates kept per quantized color.
+     */
+    public static final int CANDIDATES = 64;
+    /**
+     * Default number of bits per channel of the quantized colors.
+     */
+    public static final int DEFAULT_BITS = 5;
+    /**
+     * Default number of slots.
+     */
+    public static final int DEFAULT_SLOTS = 1 << 14;
+
+    private static final Filter ALL = new Filter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    private final NearestColorIndex index;
+    private final int[] colors;
+    private final int shift;
+    private final AtomicReferenceArray<Entry> slots;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache with {@value #DEFAULT_BITS} bits per channel and {@value #DEFAULT_SLOTS} slots.
+     * @param index the index.
+     * @param colors the colors the index was built from, as argb.
+     */
+    public CachedColorIndex(NearestColorIndex index, int[] colors) {
+        this(index, colors, DEFAULT_BITS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param index the index.
+     * @param colors the colors the index was built from, as argb.
+     * @param bits the number of bits per channel of the quantized colors (1-8).
+     * @param slots the number of slots, rounded up to a power of two.
+     */
+    public CachedColorIndex(NearestColorIndex index, int[] colors, int bits, int slots) {
+        if (bits < 1 || bits > 8 || slots <= 0 || slots > 1 << 30) {
+            throw new IllegalArgumentException("bits must be 1-8 and slots 1-2^30");
+        }
+        if (colors.length != index.size()) {
+            throw new IllegalArgumentException("colors do not match the index");
+        }
+        this.index = index;
+        this.colors = colors.clone();
+        this.shift = 8 - bits;
+        int capacity = Integer.highestOneBit(slots);
+        this.slots = new AtomicReferenceArray<>(capacity < slots ? capacity << 1 : capacity);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public int findNearest(int target, int maxResults, int tolerance, int minResults, Filter filter, int[] result) {
+        if (maxResults <= 0) {
+            return 0;
+        }
+        if (maxResults > CANDIDATES) {
+            return index.findNearest(target, maxResults, tolerance, minResults, filter, result);
+        }
+        int key = quantize(target);
+        int slot = mix(key) & (slots.length() - 1);
+        Entry entry = slots.get(slot);
+        boolean cached = entry != null && entry.key == key;
+        if (!cached) {
+            entry = createEntry(key);
+            slots.set(slot, entry);
+        }
+        int count = entry.findNearest(target, maxResults, tolerance, Math.min(minResults, maxResults), filter,
+                result);
+        if (cached && count >= 0) {
+            hits.increment();
+            Counter.MATCH_CACHE_HITS.increment();
+            return count;
+        }
+        misses.increment();
+        Counter.MATCH_CACHE_MISSES.increment();
+        return count >= 0 ? count : index.findNearest(target, maxResults, tolerance, minResults, filter, result);
+    }
+
+    /**
+     * Drops all cached candidates.
+     */
+    public void invalidate() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * @return returns the number of queries answered from candidates cached before.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return returns the number of queries whose candidates had to be looked up first or did not suffice.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return returns the share of queries answered from candidates cached before, 0 before the first query.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private int quantize(int argb) {
+        return ((argb >>> 24) >> shift) << 24 | (((argb >> 16) & 0xFF) >> shift) << 16
+                | (((argb >> 8) & 0xFF) >> shift) << 8 | (argb & 0xFF) >> shift;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Entry createEntry(int key) {
+        //The center of the range of every channel
+        int half = (1 << shift) >> 1;
+        int center = 0;
+        for (int channel = 24; channel >= 0; channel -= 8) {
+            center |= ((((key >>> channel) & 0xFF) << shift) + half) << channel;
+        }
+        int[] ids = new int[CANDIDATES];
+        int count = index.findNearest(center, CANDIDATES, 0, CANDIDATES, ALL, ids);
+        //With fewer candidates than requested, the candidates are all entries and nothing can be missing
+        double reach = Double.POSITIVE_INFINITY;
+        if (count == CANDIDATES && count < index.size()) {
+            reach = Math.sqrt(distance(center, colors[ids[count - 1]]));
+        }
+        int[] candidates = new int[count];
+        System.arraycopy(ids, 0, candidates, 0, count);
+        return new Entry(key, center, candidates, reach);
+    }
+
+    private static int distance(int a, int b) {
+        int dist = 0;
+        for (int channel = 24; channel >= 0; channel -= 8) {
+            int d = ((a >>> channel) & 0xFF) - ((b >>> channel) & 0xFF);
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    /**
+     * The candidates of one quantized color, ordered by their distance to its center.
+     */
+    private final class Entry {
+        private final int key;
+        private final int center;
+        private final int[] candidates;
+        private final int[] candidateColors;
+        /**
+         * Distances of the candidates to the center.
+         */
+        private final double[] radii;
+        private final double reach;
+
+        Entry(int key, int center, int[] candidates, double reach) {
+            this.key = key;
+            this.center = center;
+            this.candidates = candidates;
+            this.candidateColors = new int[candidates.length];
+            this.radii = new double[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                candidateColors[i] = colors[candidates[i]];
+                radii[i] = Math.sqrt(distance(center, candidateColors[i]));
+            }
+            this.reach = reach;
+        }
+
+        /**
+         * Collects the nearest accepted candidates like {@link NearestColorIndex#findNearest}.
+         * @return returns the number of entries written to result, or -1 if an entry that is not a candidate
+         *     could be part of the result.
+         */
+        int findNearest(int target, int maxResults, int tolerance, int minResults, Filter filter, int[] result) {
+            double offset = Math.sqrt(distance(target, center));
+            int[] distances = new int[maxResults];
+            int count = 0;
+            long bound = Long.MAX_VALUE;
+            int examined = 0;
+            for (int c = 0; c < candidates.length; c++) {
+                //The remaining candidates are at least this far from the target
+                double nearest = radii[c] - offset;
+                if (nearest > 0 && nearest * nearest > bound) {
+                    break;
+                }
+                examined++;
+                int dist = distance(target, candidateColors[c]);
+                if (dist > bound || (count == maxResults && dist >= distances[count - 1])) {
+                    continue;
+                }
+                int id = candidates[c];
+                if (!filter.accept(id)) {
+                    continue;
+                }
+                int i = count == maxResults ? count - 1 : count++;
+                while (i > 0 && distances[i - 1] > dist) {
+                    result[i] = result[i - 1];
+                    distances[i] = distances[i - 1];
+                    i--;
+                }
+                result[i] = id;
+                distances[i] = dist;
+                //Entries further away than the bound can neither be one of the results nor survive the tolerance cut
+                if (count >= minResults) {
+                    bound = minResults == 0 ? tolerance : Math.max(tolerance, distances[minResults - 1]);
+                    if (count == maxResults) {
+                        bound = Math.min(bound, distances[count - 1]);
+                    }
+                }
+            }
+            Counter.CANDIDATES_EXAMINED.add(examined);
+
+            double nearestMissing = reach - offset;
+            if (nearestMissing <= 0 || bound >= nearestMissing * nearestMissing) {
+                return -1;
+            }
+            int withinTolerance = 0;
+            while (withinTolerance < count && distances[withinTolerance] <= tolerance) {
+                withinTolerance++;
+            }
+            return Math.max(withinTolerance, Math.min(count, minResults));
+        }
+    }
+}
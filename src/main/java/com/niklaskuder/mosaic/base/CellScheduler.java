@@ -0,0 +1,286 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the cells of a mosaic grid to worker threads in chunks. Every worker claims the next chunk with a
+ * single atomic increment, so fast workers simply take more chunks. Each scheduler belongs to one mosaic.
+ * <p>
+ * {@link #run(int, CellTask)} runs the workers of a mosaic on a pool of its own and waits for them, so that the
+ * easels only have to say what happens to a single cell.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class CellScheduler {
+
+    /**
+     * The order in which chunks are handed out.
+     */
+    public enum Order {
+        /**
+         * One chunk per row of cells, top to bottom.
+         */
+        ROWS,
+        /**
+         * Square blocks of cells, visited along a Z-order curve so that consecutive chunks lie close together.
+         */
+        Z_ORDER
+    }
+
+    /**
+     * Work done for a single cell.
+     */
+    public interface CellTask {
+        /**
+         * @param column the column of the cell.
+         * @param row the row of the cell.
+         */
+        void run(int column, int row);
+    }
+
+    /**
+     * Work done by one of several worker threads.
+     */
+    public interface WorkerTask {
+        /**
+         * @param worker the number of the worker, from 0 to the number of workers - 1.
+         */
+        void run(int worker);
+    }
+
+    private static final int BLOCK_SIZE = 8;
+
+    private final int width;
+    private final int height;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int columns;
+    private final int rows;
+    private final Chunk[] chunks;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param width the width of the image to cover.
+     * @param height the height of the image to cover.
+     * @param cellWidth the width of a cell.
+     * @param cellHeight the height of a cell.
+     * @param order the order in which chunks are handed out.
+     */
+    public CellScheduler(int width, int height, int cellWidth, int cellHeight, Order order) {
+        if (cellWidth <= 0 || cellHeight <= 0) {
+            throw new IllegalArgumentException("cell dimensions must be > 0");
+        }
+        this.width = width;
+        this.height = height;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.columns = (width + cellWidth - 1) / cellWidth;
+        this.rows = (height + cellHeight - 1) / cellHeight;
+        this.chunks = order == Order.Z_ORDER ? zOrderChunks() : rowChunks();
+    }
+
+    private Chunk[] rowChunks() {
+        Chunk[] result = new Chunk[rows];
+        for (int row = 0; row < rows; row++) {
+            result[row] = new Chunk(0, row, columns, 1);
+        }
+        return result;
+    }
+
+    private Chunk[] zOrderChunks() {
+        int blockColumns = (columns + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        Chunk[] result = new Chunk[blockColumns * blockRows];
+        int i = 0;
+        for (int by = 0; by < blockRows; by++) {
+            for (int bx = 0; bx < blockColumns; bx++) {
+                int column = bx * BLOCK_SIZE;
+                int row = by * BLOCK_SIZE;
+                result[i++] = new Chunk(column, row, Math.min(BLOCK_SIZE, columns - column),
+                        Math.min(BLOCK_SIZE, rows - row));
+            }
+        }
+        Arrays.sort(result, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk a, Chunk b) {
+                return Long.compare(mortonCode(a), mortonCode(b));
+            }
+        });
+        return result;
+    }
+
+    private static long mortonCode(Chunk chunk) {
+        return spreadBits(chunk.firstColumn / BLOCK_SIZE) | spreadBits(chunk.firstRow / BLOCK_SIZE) << 1;
+    }
+
+    /**
+     * Inserts a zero bit between every two bits of the value.
+     */
+    private static long spreadBits(int value) {
+        long x = value & 0xFFFFFFFFL;
+        x = (x | x << 16) & 0x0000FFFF0000FFFFL;
+        x = (x | x << 8) & 0x00FF00FF00FF00FFL;
+        x = (x | x << 4) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x << 2) & 0x3333333333333333L;
+        x = (x | x << 1) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * Claims the next chunk of cells. Every chunk is handed out exactly once.
+     * @return returns the claimed chunk, or null if all chunks have been handed out.
+     */
+    public Chunk next() {
+        int index = next.getAndIncrement();
+        return index < chunks.length ? chunks[index] : null;
+    }
+
+    /**
+     * Runs the task for every cell not handed out yet on the given number of worker threads, each taking chunks
+     * until none are left, and returns once all cells are done.
+     * @param numThreads the number of worker threads.
+     * @param task the task.
+     * @throws IllegalStateException if the calling thread is interrupted or the task fails.
+     */
+    public void run(int numThreads, final CellTask task) {
+        runWorkers(numThreads, "creating mosaic", new WorkerTask() {
+            @Override
+            public void run(int worker) {
+                Chunk chunk;
+                while ((chunk = next()) != null) {
+                    for (int row = chunk.getFirstRow(); row < chunk.getEndRow(); row++) {
+                        for (int column = chunk.getFirstColumn(); column < chunk.getEndColumn(); column++) {
+                            task.run(column, row);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the task once per worker on a pool of the given number of threads, which lives as long as the call,
+     * and returns once all workers are done.
+     * @param numThreads the number of worker threads.
+     * @param description what the workers do, for the message of the exception.
+     * @param task the task.
+     * @throws IllegalStateException if the calling thread is interrupted or the task fails.
+     */
+    public static void runWorkers(int numThreads, String description, final WorkerTask task) {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                final int worker = i;
+                workers.add(executor.submit(Metrics.bind(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(worker);
+                    }
+                })));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while " + description, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(description + " failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCellCount() {
+        return columns * rows;
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    /**
+     * @param column the column of the cell.
+     * @return returns the x-coordinate of the cells in the given column.
+     */
+    public int getCellX(int column) {
+        return column * cellWidth;
+    }
+
+    /**
+     * @param row the row of the cell.
+     * @return returns the y-coordinate of the cells in the given row.
+     */
+    public int getCellY(int row) {
+        return row * cellHeight;
+    }
+
+    /**
+     * @param column the column of the cell.
+     * @return returns the width of the cells in the given column, which is smaller at the right border.
+     */
+    public int getCellWidth(int column) {
+        return Math.min(cellWidth, width - getCellX(column));
+    }
+
+    /**
+     * @param row the row of the cell.
+     * @return returns the height of the cells in the given row, which is smaller at the bottom border.
+     */
+    public int getCellHeight(int row) {
+        return Math.min(cellHeight, height - getCellY(row));
+    }
+
+    /**
+     * A rectangular block of cells, given in cell coordinates.
+     */
+    public static final class Chunk {
+        private final int firstColumn;
+        private final int firstRow;
+        private final int columns;
+        private final int rows;
+
+        private Chunk(int firstColumn, int firstRow, int columns, int rows) {
+            this.firstColumn = firstColumn;
+            this.firstRow = firstRow;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        public int getFirstColumn() {
+            return firstColumn;
+        }
+
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        public int getEndColumn() {
+            return firstColumn + columns;
+        }
+
+        public int getEndRow() {
+            return firstRow + rows;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.niklaskuder.mosaic.base;
+
+/**
+ * Compact description of the color layout of a region: the region is split into a 3x3 grid and the average
+ * color of every grid cell is stored in CIE Lab, so euclidean distances between signatures follow perceived
+ * color differences. Signatures are stored in flat float arrays, {@value #LENGTH} values each.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class ColorSignature {
+    /**
+     * Number of grid cells per row and column.
+     */
+    public static final int GRID = 3;
+    /**
+     * Number of floats per signature.
+     */
+    public static final int LENGTH = GRID * GRID * 3;
+
+    private static final float[] LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < LINEAR.length; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    private ColorSignature() {
+        throw new IllegalAccessError();
+    }
+
+    /**
+     * Computes the signature of a region of the image an integral image was built from.
+     * Every grid cell is at least one pixel large, so even tiny regions yield a full signature.
+     * @param integral the integral image.
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param w the width of the region.
+     * @param h the height of the region.
+     * @param out the array the signature is written to.
+     * @param offset the index of the first value of the signature in out.
+     */
+    public static void compute(IntegralImage integral, int x, int y, int w, int h, float[] out, int offset) {
+        int i = offset;
+        for (int gy = 0; gy < GRID; gy++) {
+            int y0 = Math.min(y + gy * h / GRID, y + h - 1);
+            int y1 = Math.max(y0 + 1, y + (gy + 1) * h / GRID);
+            for (int gx = 0; gx < GRID; gx++) {
+                int x0 = Math.min(x + gx * w / GRID, x + w - 1);
+                int x1 = Math.max(x0 + 1, x + (gx + 1) * w / GRID);
+                toLab(integral.averageColor(x0, y0, x1 - x0, y1 - y0), out, i);
+                i += 3;
+            }
+        }
+    }
+
+    /**
+     * Computes the signature of a whole image.
+     * @param image the image.
+     * @param out the array the signature is written to.
+     * @param offset the index of the first value of the signature in out.
+     */
+    public static void compute(BufferedArtImage image, float[] out, int offset) {
+        compute(new IntegralImage(image), 0, 0, image.getWidth(), image.getHeight(), out, offset);
+    }
+
+    /**
+     * Converts an sRGB color to CIE Lab (D65 white point). Alpha is ignored.
+     * @param argb the color as argb.
+     * @param out the array L, a and b are written to.
+     * @param offset the index of L in out.
+     */
+    public static void toLab(int argb, float[] out, int offset) {
+        float r = LINEAR[(argb >> 16) & 0xFF];
+        float g = LINEAR[(argb >> 8) & 0xFF];
+        float b = LINEAR[argb & 0xFF];
+        float fx = labF((0.4124f * r + 0.3576f * g + 0.1805f * b) / 0.95047f);
+        float fy = labF(0.2126f * r + 0.7152f * g + 0.0722f * b);
+        float fz = labF((0.0193f * r + 0.1192f * g + 0.9505f * b) / 1.08883f);
+        out[offset] = 116 * fy - 16;
+        out[offset + 1] = 500 * (fx - fy);
+        out[offset + 2] = 200 * (fy - fz);
+    }
+
+    private static float labF(float t) {
+        return t > 0.008856f ? (float) Math.cbrt(t) : 7.787f * t + 16f / 116f;
+    }
+}
@@ -0,0 +1,517 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Counter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour index over signatures, built as a hierarchical navigable small world graph
+ * (HNSW). Queries walk down a few sparse layers to a good entry point and then search the dense bottom layer,
+ * so they only look at a small part of the library. The search effort trades recall for speed.
+ * <p>
+ * All vectors and bottom layer links are stored in flat primitive arrays. Queries may run concurrently,
+ * building is done once by the constructor. Further signatures are inserted into a copy of the index
+ * (see {@link #append(float[])}), so queries running on the index meanwhile are not affected.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class HnswSignatureIndex implements NearestSignatureIndex {
+    /**
+     * Default number of links per node and layer.
+     */
+    public static final int DEFAULT_LINKS = 16;
+    /**
+     * Default search effort while building.
+     */
+    public static final int DEFAULT_CONSTRUCTION_EFFORT = 64;
+
+    private final int dimensions;
+    private final int size;
+    private final float[] vectors;
+    private final int maxLinks;
+    private final int maxBottomLinks;
+    private final int constructionEffort;
+    private final int searchEffort;
+
+    private final int[] bottomLinks;
+    private final int[] bottomLinkCounts;
+    private final byte[] levels;
+    /**
+     * Links of the upper layers, only for nodes with a level above 0: per layer a count followed by maxLinks ids.
+     */
+    private final int[][] upperLinks;
+    private int entryPoint = -1;
+    private int topLevel = -1;
+
+    private final ThreadLocal<SearchState> searchStates = new ThreadLocal<SearchState>() {
+        @Override
+        protected SearchState initialValue() {
+            return new SearchState(size);
+        }
+    };
+
+    /**
+     * Builds the index with default graph parameters.
+     * @param vectors the signatures, dimensions floats each.
+     * @param dimensions the length of one signature.
+     * @param searchEffort the number of candidates kept while searching, higher values find closer matches.
+     */
+    public HnswSignatureIndex(float[] vectors, int dimensions, int searchEffort) {
+        this(vectors, dimensions, DEFAULT_LINKS, DEFAULT_CONSTRUCTION_EFFORT, searchEffort);
+    }
+
+    /**
+     * Builds the index.
+     * @param vectors the signatures, dimensions floats each.
+     * @param dimensions the length of one signature.
+     * @param links the number of links per node and layer (twice as many on the bottom layer).
+     * @param constructionEffort the number of candidates kept while linking a new node.
+     * @param searchEffort the number of candidates kept while searching, higher values find closer matches.
+     */
+    public HnswSignatureIndex(float[] vectors, int dimensions, int links, int constructionEffort,
+                              int searchEffort) {
+        if (dimensions <= 0 || vectors.length % dimensions != 0) {
+            throw new IllegalArgumentException("vectors must consist of signatures of " + dimensions + " floats");
+        }
+        if (links < 2 || constructionEffort <= 0 || searchEffort <= 0) {
+            throw new IllegalArgumentException("links must be >= 2 and efforts must be > 0");
+        }
+        this.dimensions = dimensions;
+        this.size = vectors.length / dimensions;
+        this.vectors = vectors;
+        this.maxLinks = links;
+        this.maxBottomLinks = 2 * links;
+        this.constructionEffort = constructionEffort;
+        this.searchEffort = searchEffort;
+        this.bottomLinks = new int[size * maxBottomLinks];
+        this.bottomLinkCounts = new int[size];
+        this.levels = new byte[size];
+        this.upperLinks = new int[size][];
+        insertFrom(0);
+    }
+
+    /**
+     * Copies an index and appends further signatures.
+     */
+    private HnswSignatureIndex(HnswSignatureIndex source, float[] added) {
+        int first = source.size;
+        this.dimensions = source.dimensions;
+        this.size = first + added.length / dimensions;
+        this.vectors = Arrays.copyOf(source.vectors, size * dimensions);
+        System.arraycopy(added, 0, vectors, first * dimensions, added.length);
+        this.maxLinks = source.maxLinks;
+        this.maxBottomLinks = source.maxBottomLinks;
+        this.constructionEffort = source.constructionEffort;
+        this.searchEffort = source.searchEffort;
+        this.bottomLinks = Arrays.copyOf(source.bottomLinks, size * maxBottomLinks);
+        this.bottomLinkCounts = Arrays.copyOf(source.bottomLinkCounts, size);
+        this.levels = Arrays.copyOf(source.levels, size);
+        this.upperLinks = new int[size][];
+        for (int node = 0; node < first; node++) {
+            if (source.upperLinks[node] != null) {
+                upperLinks[node] = source.upperLinks[node].clone();
+            }
+        }
+        this.entryPoint = source.entryPoint;
+        this.topLevel = source.topLevel;
+        insertFrom(first);
+    }
+
+    /**
+     * Creates a copy of this index with further signatures appended, which are linked into the graph like they
+     * would have been while building. This index is not changed.
+     * @param added the signatures to append, dimensions floats each. Their positions follow those of this index.
+     * @return returns the extended index.
+     */
+    @Override
+    public HnswSignatureIndex append(float[] added) {
+        if (added.length % dimensions != 0) {
+            throw new IllegalArgumentException("added must consist of signatures of " + dimensions + " floats");
+        }
+        return new HnswSignatureIndex(this, added);
+    }
+
+    /**
+     * Inserts the nodes from the given one on into the graph.
+     */
+    private void insertFrom(int first) {
+        Random random = new Random(size);
+        double levelFactor = 1 / Math.log(maxLinks);
+        SearchState state = new SearchState(size);
+        for (int node = first; node < size; node++) {
+            int level = Math.min(Byte.MAX_VALUE, (int) (-Math.log(1 - random.nextDouble()) * levelFactor));
+            insert(node, level, state);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private float distance(float[] query, int queryOffset, int node) {
+        int base = node * dimensions;
+        float sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            float d = query[queryOffset + i] - vectors[base + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private int linkCount(int node, int layer) {
+        return layer == 0 ? bottomLinkCounts[node] : upperLinks[node][(layer - 1) * (maxLinks + 1)];
+    }
+
+    private int link(int node, int layer, int i) {
+        return layer == 0
+                ? bottomLinks[node * maxBottomLinks + i]
+                : upperLinks[node][(layer - 1) * (maxLinks + 1) + 1 + i];
+    }
+
+    private void setLinks(int node, int layer, int[] ids, int count) {
+        if (layer == 0) {
+            System.arraycopy(ids, 0, bottomLinks, node * maxBottomLinks, count);
+            bottomLinkCounts[node] = count;
+        } else {
+            int base = (layer - 1) * (maxLinks + 1);
+            upperLinks[node][base] = count;
+            System.arraycopy(ids, 0, upperLinks[node], base + 1, count);
+        }
+    }
+
+    private void insert(int node, int level, SearchState state) {
+        levels[node] = (byte) level;
+        if (level > 0) {
+            upperLinks[node] = new int[level * (maxLinks + 1)];
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            topLevel = level;
+            return;
+        }
+        int queryOffset = node * dimensions;
+        int current = entryPoint;
+        for (int layer = topLevel; layer > level; layer--) {
+            current = greedyStep(vectors, queryOffset, current, layer);
+        }
+        for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+            NodeHeap found = searchLayer(vectors, queryOffset, current, constructionEffort, layer, state, null, 0);
+            int[] ids = new int[found.size()];
+            float[] distances = new float[found.size()];
+            for (int i = ids.length - 1; i >= 0; i--) {
+                distances[i] = found.peekKey();
+                ids[i] = found.pop();
+            }
+            current = ids[0];
+            int max = layer == 0 ? maxBottomLinks : maxLinks;
+            int count = selectNeighbours(ids, distances, ids.length, max);
+            setLinks(node, layer, ids, count);
+            for (int i = 0; i < count; i++) {
+                addLink(ids[i], node, layer, max);
+            }
+        }
+        if (level > topLevel) {
+            topLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Adds a link from one node to another, pruning the links of the node if it has too many.
+     */
+    private void addLink(int from, int to, int layer, int max) {
+        int count = linkCount(from, layer);
+        if (count < max) {
+            if (layer == 0) {
+                bottomLinks[from * maxBottomLinks + count] = to;
+                bottomLinkCounts[from] = count + 1;
+            } else {
+                int base = (layer - 1) * (maxLinks + 1);
+                upperLinks[from][base + 1 + count] = to;
+                upperLinks[from][base] = count + 1;
+            }
+            return;
+        }
+        int[] ids = new int[count + 1];
+        float[] distances = new float[count + 1];
+        int fromOffset = from * dimensions;
+        for (int i = 0; i < count; i++) {
+            ids[i] = link(from, layer, i);
+        }
+        ids[count] = to;
+        for (int i = 0; i <= count; i++) {
+            distances[i] = distance(vectors, fromOffset, ids[i]);
+        }
+        sortByDistance(ids, distances, count + 1);
+        setLinks(from, layer, ids, selectNeighbours(ids, distances, count + 1, max));
+    }
+
+    /**
+     * Neighbour selection heuristic: a candidate is only linked if it is closer to the new node than to all
+     * neighbours selected so far, which keeps links spread out in all directions. Remaining slots are filled with
+     * the closest skipped candidates. The candidates must be sorted by distance, the selection is moved to the
+     * front of the arrays.
+     * @return returns the number of selected neighbours.
+     */
+    private int selectNeighbours(int[] ids, float[] distances, int count, int max) {
+        if (count <= max) {
+            return count;
+        }
+        int[] selected = new int[max];
+        float[] selectedDistances = new float[max];
+        boolean[] taken = new boolean[count];
+        int n = 0;
+        for (int i = 0; i < count && n < max; i++) {
+            boolean diverse = true;
+            for (int j = 0; j < n && diverse; j++) {
+                diverse = distance(vectors, ids[i] * dimensions, selected[j]) > distances[i];
+            }
+            if (diverse) {
+                taken[i] = true;
+                selected[n] = ids[i];
+                selectedDistances[n++] = distances[i];
+            }
+        }
+        for (int i = 0; i < count && n < max; i++) {
+            if (!taken[i]) {
+                selected[n] = ids[i];
+                selectedDistances[n++] = distances[i];
+            }
+        }
+        System.arraycopy(selected, 0, ids, 0, n);
+        System.arraycopy(selectedDistances, 0, distances, 0, n);
+        return n;
+    }
+
+    private static void sortByDistance(int[] ids, float[] distances, int count) {
+        for (int i = 1; i < count; i++) {
+            int id = ids[i];
+            float d = distances[i];
+            int j = i - 1;
+            while (j >= 0 && distances[j] > d) {
+                ids[j + 1] = ids[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            distances[j + 1] = d;
+        }
+    }
+
+    private int greedyStep(float[] query, int queryOffset, int start, int layer) {
+        int current = start;
+        float currentDistance = distance(query, queryOffset, current);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0, count = linkCount(current, layer); i < count; i++) {
+                int next = link(current, layer, i);
+                float d = distance(query, queryOffset, next);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = next;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one layer.
+     * @return returns a max-heap of the closest accepted nodes (at most maxAccepted), or of the closest ef nodes
+     * if no filter is given.
+     */
+    private NodeHeap searchLayer(float[] query, int queryOffset, int entry, int ef, int layer, SearchState state,
+                                 NearestColorIndex.Filter filter, int maxAccepted) {
+        state.nextEpoch();
+        NodeHeap candidates = state.candidates;
+        NodeHeap top = state.top;
+        NodeHeap accepted = state.accepted;
+        candidates.clear();
+        top.clear();
+        accepted.clear();
+
+        int examined = 1;
+        float entryDistance = distance(query, queryOffset, entry);
+        state.visit(entry);
+        candidates.push(entryDistance, entry);
+        top.push(entryDistance, entry);
+        if (filter != null && filter.accept(entry)) {
+            accepted.push(entryDistance, entry);
+        }
+        while (candidates.size() > 0) {
+            float closest = candidates.peekKey();
+            if (top.size() >= ef && closest > top.peekKey()) {
+                break;
+            }
+            int current = candidates.pop();
+            for (int i = 0, count = linkCount(current, layer); i < count; i++) {
+                int next = link(current, layer, i);
+                if (!state.visit(next)) {
+                    continue;
+                }
+                float d = distance(query, queryOffset, next);
+                examined++;
+                if (top.size() < ef || d < top.peekKey()) {
+                    candidates.push(d, next);
+                    top.push(d, next);
+                    if (top.size() > ef) {
+                        top.pop();
+                    }
+                    if (filter != null && filter.accept(next)) {
+                        accepted.push(d, next);
+                        if (accepted.size() > maxAccepted) {
+                            accepted.pop();
+                        }
+                    }
+                }
+            }
+        }
+        if (filter != null) {
+            Counter.CANDIDATES_EXAMINED.add(examined);
+        }
+        return filter == null ? top : accepted;
+    }
+
+    @Override
+    public int findNearest(float[] target, int maxResults, float tolerance, int minResults,
+                           NearestColorIndex.Filter filter, int[] result) {
+        if (target.length != dimensions) {
+            throw new IllegalArgumentException("target must have " + dimensions + " values");
+        }
+        if (size == 0 || maxResults <= 0) {
+            return 0;
+        }
+        int current = entryPoint;
+        for (int layer = topLevel; layer > 0; layer--) {
+            current = greedyStep(target, 0, current, layer);
+        }
+        SearchState state = searchStates.get();
+        NodeHeap found = searchLayer(target, 0, current, Math.max(searchEffort, maxResults), 0, state, filter,
+                maxResults);
+        int count = found.size();
+        float[] distances = new float[count];
+        for (int i = count - 1; i >= 0; i--) {
+            distances[i] = found.peekKey();
+            result[i] = found.pop();
+        }
+        int withinTolerance = 0;
+        while (withinTolerance < count && distances[withinTolerance] <= tolerance) {
+            withinTolerance++;
+        }
+        return Math.max(withinTolerance, Math.min(count, minResults));
+    }
+
+    /**
+     * Per-thread buffers of a search: visited marks and the heaps.
+     */
+    private static final class SearchState {
+        private final int[] visited;
+        private int epoch;
+        private final NodeHeap candidates = new NodeHeap(false);
+        private final NodeHeap top = new NodeHeap(true);
+        private final NodeHeap accepted = new NodeHeap(true);
+
+        private SearchState(int size) {
+            this.visited = new int[size];
+        }
+
+        private void nextEpoch() {
+            epoch++;
+            if (epoch == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * @return returns true if the node had not been visited in this search yet.
+         */
+        private boolean visit(int node) {
+            if (visited[node] == epoch) {
+                return false;
+            }
+            visited[node] = epoch;
+            return true;
+        }
+    }
+
+    /**
+     * Binary heap of node ids keyed by distance, either with the smallest or the largest distance on top.
+     */
+    private static final class NodeHeap {
+        private final boolean max;
+        private float[] keys = new float[64];
+        private int[] ids = new int[64];
+        private int size;
+
+        private NodeHeap(boolean max) {
+            this.max = max;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private float peekKey() {
+            return keys[0];
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        private void push(float key, int id) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!above(key, keys[parent])) {
+                    break;
+                }
+                keys[i] = keys[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            ids[i] = id;
+        }
+
+        private int pop() {
+            int result = ids[0];
+            size--;
+            float key = keys[size];
+            int id = ids[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(keys[child + 1], keys[child])) {
+                    child++;
+                }
+                if (!above(keys[child], key)) {
+                    break;
+                }
+                keys[i] = keys[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            keys[i] = key;
+            ids[i] = id;
+            return result;
+        }
+    }
+}
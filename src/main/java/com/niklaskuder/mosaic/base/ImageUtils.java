@@ -1,60 +1,160 @@
 package com.niklaskuder.mosaic.base;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
 import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
 
 public final class ImageUtils {
+    private static final int CORRECTION_INTENSITY = 15;
+    private static final int OPAQUE = 255;
+    /**
+     * a * b / 255 and b * 255 / a for all pairs of channel values, at index a << 8 | b, rounded like Java2D.
+     */
+    private static final byte[] MUL8 = new byte[256 * 256];
+    private static final byte[] DIV8 = new byte[256 * 256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            long step = a == 0 ? 0 : (0xFF000000L + a / 2) / a;
+            for (int b = 0; b < 256; b++) {
+                MUL8[a << 8 | b] = (byte) (((long) a * b * 0x10101 + 0x800000) >>> 24);
+                DIV8[a << 8 | b] = (byte) (b >= a ? OPAQUE : (b * step + 0x800000) >>> 24);
+            }
+        }
+    }
+
     private ImageUtils() {
         throw new IllegalAccessError();
     }
 
+    /**
+     * Packs the four channels of a color into an argb int.
+     * @param a the alpha value (0-255).
+     * @param r the red value (0-255).
+     * @param g the green value (0-255).
+     * @param b the blue value (0-255).
+     * @return returns the packed color.
+     */
+    public static int argb(int a, int r, int g, int b) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Blends a pixel over another like {@code Graphics.drawImage} does with the default SrcOver composite, both
+     * pixels given as non-premultiplied argb.
+     * @param src the pixel drawn on top.
+     * @param dst the pixel below.
+     * @return returns the blended pixel as argb.
+     */
+    public static int srcOver(int src, int dst) {
+        int srcA = src >>> 24;
+        if (srcA == OPAQUE) {
+            return src;
+        } else if (srcA == 0) {
+            return dst;
+        }
+        int dstA = mul8(OPAQUE - srcA, dst >>> 24);
+        int resA = srcA + dstA;
+        int r = blendChannel(srcA, src >> 16, dstA, dst >> 16, resA);
+        int g = blendChannel(srcA, src >> 8, dstA, dst >> 8, resA);
+        int b = blendChannel(srcA, src, dstA, dst, resA);
+        return argb(resA, r, g, b);
+    }
+
+    private static int blendChannel(int srcA, int src, int dstA, int dst, int resA) {
+        int sum = mul8(srcA, src & 0xFF) + mul8(dstA, dst & 0xFF);
+        return resA < OPAQUE ? DIV8[resA << 8 | sum] & 0xFF : sum;
+    }
+
+    private static int mul8(int a, int b) {
+        return MUL8[a << 8 | b] & 0xFF;
+    }
+
+    /**
+     * Moves a pixel of a tile towards the color of the input pixel it replaces, by up to
+     * {@value #CORRECTION_INTENSITY} per channel. Both pixels are treated as opaque, and the alpha of the result is
+     * lowered by the same amount.
+     * @param inputRGB the input pixel as argb.
+     * @param tileRGB the tile pixel as argb.
+     * @return returns the corrected pixel as argb.
+     */
+    public static int correctColor(int inputRGB, int tileRGB) {
+        int correctionIntensity = getOptimalCorrectionIntensity(inputRGB, tileRGB);
+        int newRed = correctChannel((tileRGB >> 16) & 0xFF, (inputRGB >> 16) & 0xFF, correctionIntensity);
+        int newGreen = correctChannel((tileRGB >> 8) & 0xFF, (inputRGB >> 8) & 0xFF, correctionIntensity);
+        int newBlue = correctChannel(tileRGB & 0xFF, inputRGB & 0xFF, correctionIntensity);
+        int newAlpha = correctChannel(OPAQUE, OPAQUE, correctionIntensity);
+        return argb(newAlpha, newRed, newGreen, newBlue);
+    }
+
+    private static int getOptimalCorrectionIntensity(int goal, int current) {
+        if (current + CORRECTION_INTENSITY < goal
+                || current - CORRECTION_INTENSITY > goal) {
+            return CORRECTION_INTENSITY;
+        } else if (current + CORRECTION_INTENSITY > goal) {
+            return goal - current;
+        } else if (current - CORRECTION_INTENSITY < goal) {
+            return current - goal;
+        }
+        return CORRECTION_INTENSITY;
+    }
+
+    private static int correctChannel(int tile, int input, int correctionIntensity) {
+        int corrected = tile < input ? tile + correctionIntensity : tile - correctionIntensity;
+        return Math.max(Math.min(corrected, 255), 0);
+    }
+
+    /**
+     * Scales an image with an area averaging filter until it covers the given size and crops the center of it,
+     * in one pass. Works for images of any type.
+     * @param input the image.
+     * @param width the width of the result.
+     * @param height the height of the result.
+     * @return returns the scaled and cropped image as TYPE_INT_ARGB.
+     */
     public static BufferedImage scaleAndCrop(BufferedImage input, int width, int height) {
-        float factorX = 1.0F * (float)width / (float)input.getWidth();
-        float factorY = 1.0F * (float)height / (float)input.getHeight();
-        BufferedImage scaled = factorX > factorY ? scaleWidth(input, width) : scaleHeight(input, height);
-        int scaleW = scaled.getWidth();
-        int scaleH = scaled.getHeight();
-        BufferedImage cropped = scaled.getSubimage((scaleW - width) / 2, (scaleH - height) / 2, width, height);
-        return cropped;
+        PhaseEvent event = Metrics.begin(Phase.SCALE_AND_CROP);
+        try {
+            float factorX = 1.0F * (float)width / (float)input.getWidth();
+            float factorY = 1.0F * (float)height / (float)input.getHeight();
+            int scaleW = factorX > factorY ? width : scaledLength(input.getWidth(), input.getHeight(), height);
+            int scaleH = factorX > factorY ? scaledLength(input.getHeight(), input.getWidth(), width) : height;
+            return new AreaAveragingScaler(input, scaleW, scaleH, (scaleW - width) / 2, (scaleH - height) / 2,
+                    width, height).scale();
+        } finally {
+            Metrics.end(event);
+        }
+    }
+
+    /**
+     * @return returns the length of a side of an image scaled proportionally, rounded down like
+     * {@code Image.getScaledInstance}.
+     */
+    private static int scaledLength(int length, int otherLength, int scaledOtherLength) {
+        return (int) ((long) length * scaledOtherLength / otherLength);
     }
 
     public static BufferedImage scaleWidth(BufferedImage input, int width) {
         if (width <= 0) {
             throw new IllegalArgumentException("width cannot be <= 0");
-        } else {
-            Image scaled = input.getScaledInstance(width, -1, 4);
-            int height = scaled.getHeight((ImageObserver)null);
-            if (height <= 0) {
-                throw new IllegalArgumentException("height would be 0");
-            } else {
-                BufferedImage res = new BufferedImage(width, height, input.getType());
-                Graphics2D g2d = res.createGraphics();
-                g2d.drawImage(scaled, 0, 0, (ImageObserver)null);
-                g2d.dispose();
-                res.flush();
-                return res;
-            }
         }
+        int height = scaledLength(input.getHeight(), input.getWidth(), width);
+        if (height <= 0) {
+            throw new IllegalArgumentException("height would be 0");
+        }
+        return new AreaAveragingScaler(input, width, height, 0, 0, width, height).scale();
     }
 
     public static BufferedImage scaleHeight(BufferedImage input, int height) {
         if (height <= 0) {
-            throw new IllegalArgumentException("width cannot be <= 0");
-        } else {
-            Image scaled = input.getScaledInstance(-1, height, 4);
-            int width = scaled.getWidth((ImageObserver)null);
-            if (width <= 0) {
-                throw new IllegalArgumentException("width would be 0");
-            } else {
-                BufferedImage res = new BufferedImage(width, height, input.getType());
-                Graphics2D g2d = res.createGraphics();
-                g2d.drawImage(scaled, 0, 0, (ImageObserver)null);
-                g2d.dispose();
-                res.flush();
-                return res;
-            }
+            throw new IllegalArgumentException("height cannot be <= 0");
+        }
+        int width = scaledLength(input.getWidth(), input.getHeight(), height);
+        if (width <= 0) {
+            throw new IllegalArgumentException("width would be 0");
         }
+        return new AreaAveragingScaler(input, width, height, 0, 0, width, height).scale();
     }
 }
@@ -0,0 +1,268 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
+/**
+ * Summed-area table over the argb channels of an image. Once built, the average color of any rectangular
+ * region can be calculated in constant time. If requested, the squared color channels are summed as well, so that
+ * the color variance of any region is available in constant time, too.
+ * <p>
+ * The channel sums are stored as ints and wrap around on large images. As the sum of one channel over a region of
+ * fewer than 2^24 pixels fits into 32 bits, the difference of the wrapped corner sums is still exact for such
+ * regions, so the table takes 16 bytes per pixel instead of 32. The squares are summed as longs, at 8 more bytes
+ * per pixel.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class IntegralImage {
+    private static final int CHANNELS = 4;
+    /**
+     * Regions must have fewer pixels than this, so that their channel sums fit into 32 bits.
+     */
+    public static final int MAX_REGION_PIXELS = 1 << 24;
+
+    private final int width;
+    private final int height;
+    private final int rowLength;
+    /**
+     * Channel sums of all pixels above and left of (x, y) modulo 2^32, stored interleaved per entry.
+     * Row 0 and column 0 are zero.
+     */
+    private final int[] sums;
+    /**
+     * Sums of the squared red, green and blue channels of all pixels above and left of (x, y), one entry per
+     * pixel, or null if the variance is not needed.
+     */
+    private final long[] squares;
+
+    /**
+     * Builds the table on the calling thread.
+     * @param image the image.
+     */
+    public IntegralImage(BufferedArtImage image) {
+        this(image, 1);
+    }
+
+    /**
+     * Builds the table, splitting the work across the given number of threads.
+     * @param image the image.
+     * @param numThreads the number of threads to use.
+     */
+    public IntegralImage(BufferedArtImage image, int numThreads) {
+        this(image, numThreads, false);
+    }
+
+    /**
+     * Builds the table, splitting the work across the given number of threads.
+     * @param image the image.
+     * @param numThreads the number of threads to use.
+     * @param variance whether the table should also provide {@link #variance(int, int, int, int)}.
+     * @throws IllegalArgumentException if the table of the image would not fit into an array.
+     */
+    public IntegralImage(BufferedArtImage image, int numThreads, boolean variance) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        long entries = (width + 1L) * CHANNELS * (height + 1L);
+        if (entries > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("image of " + width + "x" + height
+                    + " is too large for an integral image, render it in bands");
+        }
+        this.rowLength = (width + 1) * CHANNELS;
+        this.sums = new int[(int) entries];
+        this.squares = variance ? new long[(width + 1) * (height + 1)] : null;
+        PhaseEvent event = Metrics.begin(Phase.INTEGRAL_IMAGE);
+        build(image, Math.max(1, Math.min(numThreads, Math.max(width, height))));
+        Metrics.end(event);
+    }
+
+    private void build(final BufferedArtImage image, final int numThreads) {
+        if (numThreads == 1) {
+            sumRows(image, 0, height);
+            sumColumns(0, width);
+            return;
+        }
+        CellScheduler.runWorkers(numThreads, "building integral image", new CellScheduler.WorkerTask() {
+            @Override
+            public void run(int worker) {
+                sumRows(image, height * worker / numThreads, height * (worker + 1) / numThreads);
+            }
+        });
+        CellScheduler.runWorkers(numThreads, "building integral image", new CellScheduler.WorkerTask() {
+            @Override
+            public void run(int worker) {
+                sumColumns(width * worker / numThreads, width * (worker + 1) / numThreads);
+            }
+        });
+    }
+
+    /**
+     * First pass: prefix sums along each row in [startRow, endRow).
+     */
+    private void sumRows(BufferedArtImage image, int startRow, int endRow) {
+        int[] data = image.getData();
+        for (int y = startRow; y < endRow; y++) {
+            int pixel = image.getIndex(0, y, width);
+            int entry = (y + 1) * rowLength + CHANNELS;
+            int a = 0;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int col = data[pixel + x];
+                a += col >>> 24;
+                r += (col >> 16) & 0xFF;
+                g += (col >> 8) & 0xFF;
+                b += col & 0xFF;
+                sums[entry] = a;
+                sums[entry + 1] = r;
+                sums[entry + 2] = g;
+                sums[entry + 3] = b;
+                entry += CHANNELS;
+            }
+            if (squares != null) {
+                sumSquares(data, pixel, (y + 1) * (width + 1) + 1);
+            }
+        }
+    }
+
+    private void sumSquares(int[] data, int pixel, int entry) {
+        long sum = 0;
+        for (int x = 0; x < width; x++) {
+            int col = data[pixel + x];
+            int r = (col >> 16) & 0xFF;
+            int g = (col >> 8) & 0xFF;
+            int b = col & 0xFF;
+            sum += r * r + g * g + b * b;
+            squares[entry + x] = sum;
+        }
+    }
+
+    /**
+     * Second pass: accumulates the row sums downwards for the columns in [startColumn, endColumn).
+     */
+    private void sumColumns(int startColumn, int endColumn) {
+        int from = (startColumn + 1) * CHANNELS;
+        int to = (endColumn + 1) * CHANNELS;
+        for (int y = 2; y <= height; y++) {
+            int row = y * rowLength;
+            int above = row - rowLength;
+            for (int i = from; i < to; i++) {
+                sums[row + i] += sums[above + i];
+            }
+        }
+        if (squares != null) {
+            for (int y = 2; y <= height; y++) {
+                int row = y * (width + 1);
+                int above = row - width - 1;
+                for (int i = startColumn + 1; i <= endColumn; i++) {
+                    squares[row + i] += squares[above + i];
+                }
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Calculates the average color of a rectangular region in constant time.
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param w the width of the region.
+     * @param h the height of the region.
+     * @return returns the average color as argb.
+     * @throws IllegalArgumentException if the region is not inside the image or has too many pixels.
+     */
+    public int averageColor(int x, int y, int w, int h) {
+        checkRegion(x, y, w, h);
+        int topLeft = y * rowLength + x * CHANNELS;
+        int topRight = topLeft + w * CHANNELS;
+        int bottomLeft = topLeft + h * rowLength;
+        int bottomRight = bottomLeft + w * CHANNELS;
+        long count = (long) w * h;
+        return ImageUtils.argb(
+                (int) (sum(topLeft, topRight, bottomLeft, bottomRight, 0) / count),
+                (int) (sum(topLeft, topRight, bottomLeft, bottomRight, 1) / count),
+                (int) (sum(topLeft, topRight, bottomLeft, bottomRight, 2) / count),
+                (int) (sum(topLeft, topRight, bottomLeft, bottomRight, 3) / count));
+    }
+
+    /**
+     * Adds the channel sums of a rectangular region in constant time, so that shapes can be summed up span by span.
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param w the width of the region.
+     * @param h the height of the region.
+     * @param channels the array the sums of alpha, red, green and blue are added to (length >= 4).
+     * @throws IllegalArgumentException if the region is not inside the image or has too many pixels.
+     */
+    public void addSums(int x, int y, int w, int h, long[] channels) {
+        checkRegion(x, y, w, h);
+        int topLeft = y * rowLength + x * CHANNELS;
+        int topRight = topLeft + w * CHANNELS;
+        int bottomLeft = topLeft + h * rowLength;
+        int bottomRight = bottomLeft + w * CHANNELS;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            channels[channel] += sum(topLeft, topRight, bottomLeft, bottomRight, channel);
+        }
+    }
+
+    /**
+     * Calculates the color variance of a rectangular region in constant time, which is the mean squared distance
+     * of its pixels to their average color, summed over red, green and blue.
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param w the width of the region.
+     * @param h the height of the region.
+     * @return returns the variance.
+     * @throws IllegalStateException if the table was built without the variance.
+     * @throws IllegalArgumentException if the region is not inside the image or has too many pixels.
+     */
+    public double variance(int x, int y, int w, int h) {
+        if (squares == null) {
+            throw new IllegalStateException("integral image was built without the variance");
+        }
+        checkRegion(x, y, w, h);
+        int topLeft = y * rowLength + x * CHANNELS;
+        int topRight = topLeft + w * CHANNELS;
+        int bottomLeft = topLeft + h * rowLength;
+        int bottomRight = bottomLeft + w * CHANNELS;
+        double count = (double) w * h;
+        double squaredMeans = 0;
+        for (int channel = 1; channel < CHANNELS; channel++) {
+            double mean = sum(topLeft, topRight, bottomLeft, bottomRight, channel) / count;
+            squaredMeans += mean * mean;
+        }
+        int stride = width + 1;
+        int corner = y * stride + x;
+        long squareSum = squares[corner + h * stride + w] - squares[corner + h * stride] - squares[corner + w]
+                + squares[corner];
+        return Math.max(0, squareSum / count - squaredMeans);
+    }
+
+    private void checkRegion(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("region (" + x + ", " + y + ", " + w + ", " + h
+                    + ") is outside of " + width + "x" + height);
+        }
+        if ((long) w * h >= MAX_REGION_PIXELS) {
+            throw new IllegalArgumentException("region of " + w + "x" + h + " has too many pixels");
+        }
+    }
+
+    /**
+     * The corner sums may have wrapped around, but their difference is the exact sum of the region modulo 2^32.
+     */
+    private long sum(int topLeft, int topRight, int bottomLeft, int bottomRight, int channel) {
+        return (sums[bottomRight + channel] - sums[bottomLeft + channel] - sums[topRight + channel]
+                + sums[topLeft + channel]) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,429 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Counter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Four dimensional k-d tree over the argb channels of a set of colors.
+ * The tree is stored implicitly: the median of every range is the node, the lower half its left subtree
+ * and the upper half its right subtree.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class KdTreeColorIndex implements NearestColorIndex {
+    private static final int DIMENSIONS = 4;
+
+    private final int[] ids;
+    private final int[] points;
+    private final byte[] axes;
+    private final LongAdder examined;
+
+    /**
+     * Builds the tree for the given colors. The candidates examined by queries are counted as
+     * {@link Counter#CANDIDATES_EXAMINED}.
+     * @param colors the colors as argb, their positions are the indices returned by queries.
+     */
+    public KdTreeColorIndex(int[] colors) {
+        this(colors, null);
+    }
+
+    /**
+     * Builds the tree for the given colors.
+     * @param colors the colors as argb, their positions are the indices returned by queries.
+     * @param examined the adder counting the candidates examined by queries instead of
+     *     {@link Counter#CANDIDATES_EXAMINED}, or null to count them there.
+     */
+    public KdTreeColorIndex(int[] colors, LongAdder examined) {
+        this.examined = examined;
+        int n = colors.length;
+        this.ids = new int[n];
+        this.points = new int[n * DIMENSIONS];
+        this.axes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            setPoint(i, colors[i]);
+        }
+        build(0, n);
+    }
+
+    private void setPoint(int pos, int argb) {
+        int base = pos * DIMENSIONS;
+        points[base] = (argb >>> 24) & 0xFF;
+        points[base + 1] = (argb >> 16) & 0xFF;
+        points[base + 2] = (argb >> 8) & 0xFF;
+        points[base + 3] = argb & 0xFF;
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int axis = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int best = 0;
+        int bestSpread = -1;
+        for (int axis = 0; axis < DIMENSIONS; axis++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = lo; i < hi; i++) {
+                int v = points[i * DIMENSIONS + axis];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = axis;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Quickselect: moves the k-th smallest entry of [lo, hi] on the given axis to position k.
+     */
+    private void select(int lo, int hi, int k, int axis) {
+        while (hi > lo) {
+            int pivot = points[((lo + hi) >>> 1) * DIMENSIONS + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (points[i * DIMENSIONS + axis] < pivot) {
+                    i++;
+                }
+                while (points[j * DIMENSIONS + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        int baseA = a * DIMENSIONS;
+        int baseB = b * DIMENSIONS;
+        for (int c = 0; c < DIMENSIONS; c++) {
+            int v = points[baseA + c];
+            points[baseA + c] = points[baseB + c];
+            points[baseB + c] = v;
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public int findNearest(int target, int maxResults, int tolerance, int minResults, Filter filter, int[] result) {
+        if (maxResults <= 0) {
+            return 0;
+        }
+        Query query = new Query(target, maxResults, tolerance, Math.min(minResults, maxResults), filter);
+        query.search(0, ids.length);
+        countExamined(query.examined);
+
+        int count = query.count;
+        int withinTolerance = 0;
+        while (withinTolerance < count && query.distances[withinTolerance] <= tolerance) {
+            withinTolerance++;
+        }
+        count = Math.max(withinTolerance, Math.min(count, query.minResults));
+        System.arraycopy(query.found, 0, result, 0, count);
+        return count;
+    }
+
+    private void countExamined(int candidates) {
+        if (examined == null) {
+            Counter.CANDIDATES_EXAMINED.add(candidates);
+        } else {
+            examined.add(candidates);
+        }
+    }
+
+    /**
+     * @return returns weights of all entries, initially zero, for {@link #findLightest(int, Weights, long[])}.
+     */
+    public Weights createWeights() {
+        return new Weights();
+    }
+
+    /**
+     * Finds the entry with the lowest squared distance to a target plus weight, and the second lowest value of
+     * distance plus weight or distance plus second weight of any entry.
+     * @param target the target color as argb.
+     * @param weights the weights of the entries.
+     * @param values the array the lowest and the second lowest value are written to (length >= 2).
+     * @return returns the index of the entry with the lowest value.
+     */
+    public int findLightest(int target, Weights weights, long[] values) {
+        return findLightest(target, weights, Long.MAX_VALUE, values);
+    }
+
+    /**
+     * Finds the entry with the lowest squared distance to a target plus weight like
+     * {@link #findLightest(int, Weights, long[])}, but only considers values below a limit. The fewer entries
+     * are below it, the more subtrees are skipped.
+     * @param target the target color as argb.
+     * @param weights the weights of the entries.
+     * @param limit the value all reported values are below.
+     * @param values the array the lowest and the second lowest value are written to (length >= 2). Values not
+     *     found are reported as the limit.
+     * @return returns the index of the entry with the lowest value, or -1 if no value is below the limit.
+     */
+    public int findLightest(int target, Weights weights, long limit, long[] values) {
+        WeightedQuery query = new WeightedQuery(target, weights, limit);
+        query.search(0, ids.length, 0);
+        countExamined(query.examined);
+        values[0] = query.best;
+        values[1] = query.second;
+        return query.bestId;
+    }
+
+    /**
+     * Two weights per entry, which are added to its distance by {@link #findLightest(int, Weights, long[])}. The
+     * second weight must not be lower than the first. Every node of the tree keeps the lowest first weight of its
+     * subtree, so subtrees that cannot beat the values found so far are skipped. Weights may be changed between
+     * searches, but not during one.
+     */
+    public final class Weights {
+        private final int[] positions = new int[ids.length];
+        private final int[] parents = new int[ids.length];
+        private final int[] lowerChildren = new int[ids.length];
+        private final int[] upperChildren = new int[ids.length];
+        private final long[] first = new long[ids.length];
+        private final long[] second = new long[ids.length];
+        private final long[] subtreeMin = new long[ids.length];
+
+        private Weights() {
+            for (int pos = 0; pos < ids.length; pos++) {
+                positions[ids[pos]] = pos;
+            }
+            link(0, ids.length, -1);
+        }
+
+        /**
+         * Records the parent and the children of the nodes in [lo, hi).
+         * @return returns the node of the range, or -1 if it is empty.
+         */
+        private int link(int lo, int hi, int parent) {
+            if (lo >= hi) {
+                return -1;
+            }
+            int mid = (lo + hi) >>> 1;
+            parents[mid] = parent;
+            lowerChildren[mid] = link(lo, mid, mid);
+            upperChildren[mid] = link(mid + 1, hi, mid);
+            return mid;
+        }
+
+        /**
+         * @param index the position of the entry.
+         * @param weight the first weight.
+         * @param secondWeight the second weight, at least the first one.
+         */
+        public void set(int index, long weight, long secondWeight) {
+            int pos = positions[index];
+            first[pos] = weight;
+            second[pos] = secondWeight;
+            //The minima up to the root can have risen as well as fallen
+            for (int node = pos; node >= 0; node = parents[node]) {
+                subtreeMin[node] = Math.min(first[node], Math.min(min(lowerChildren[node]),
+                        min(upperChildren[node])));
+            }
+        }
+
+        /**
+         * @return returns the lowest first weight of all entries.
+         */
+        public long getMinimum() {
+            return ids.length == 0 ? Long.MAX_VALUE : subtreeMin[ids.length >>> 1];
+        }
+
+        private long min(int node) {
+            return node < 0 ? Long.MAX_VALUE : subtreeMin[node];
+        }
+    }
+
+    /**
+     * State of a single search for the lowest distance plus weight.
+     */
+    private final class WeightedQuery {
+        private final int[] target = new int[DIMENSIONS];
+        private final Weights weights;
+        /**
+         * The distance of the target to the region of the current node on every axis.
+         */
+        private final int[] offsets = new int[DIMENSIONS];
+        private long best;
+        private long second;
+        private int bestId = -1;
+        private int examined;
+
+        private WeightedQuery(int argb, Weights weights, long limit) {
+            this.target[0] = (argb >>> 24) & 0xFF;
+            this.target[1] = (argb >> 16) & 0xFF;
+            this.target[2] = (argb >> 8) & 0xFF;
+            this.target[3] = argb & 0xFF;
+            this.weights = weights;
+            this.best = limit;
+            this.second = limit;
+        }
+
+        private void search(int lo, int hi, long minDistance) {
+            int mid = (lo + hi) >>> 1;
+            int base = mid * DIMENSIONS;
+            offer(mid, base);
+            if (hi - lo == 1) {
+                return;
+            }
+            int axis = axes[mid];
+            int diff = Math.abs(target[axis] - points[base + axis]);
+            //The near side is as far as the region of the node. On the far side, the distance on the split axis
+            //grows to diff.
+            int offset = offsets[axis];
+            long farDistance = minDistance - (long) offset * offset + (long) diff * diff;
+            boolean lower = target[axis] < points[base + axis];
+            searchIfLighter(lower ? lo : mid + 1, lower ? mid : hi, minDistance);
+            offsets[axis] = diff;
+            searchIfLighter(lower ? mid + 1 : lo, lower ? hi : mid, farDistance);
+            offsets[axis] = offset;
+        }
+
+        private void searchIfLighter(int lo, int hi, long minDistance) {
+            if (lo < hi && minDistance + weights.subtreeMin[(lo + hi) >>> 1] < second) {
+                search(lo, hi, minDistance);
+            }
+        }
+
+        private void offer(int pos, int base) {
+            examined++;
+            long dist = 0;
+            for (int c = 0; c < DIMENSIONS; c++) {
+                int d = target[c] - points[base + c];
+                dist += d * d;
+            }
+            long value = dist + weights.first[pos];
+            if (value < best) {
+                second = best;
+                best = value;
+                bestId = ids[pos];
+            } else if (value < second) {
+                second = value;
+            }
+            second = Math.min(second, dist + weights.second[pos]);
+        }
+    }
+
+    /**
+     * State of a single bounded nearest neighbour search.
+     */
+    private final class Query {
+        private final int[] target = new int[DIMENSIONS];
+        private final int tolerance;
+        private final int minResults;
+        private final Filter filter;
+        private final int[] found;
+        private final int[] distances;
+        private int count;
+        private int examined;
+
+        private Query(int argb, int maxResults, int tolerance, int minResults, Filter filter) {
+            this.target[0] = (argb >>> 24) & 0xFF;
+            this.target[1] = (argb >> 16) & 0xFF;
+            this.target[2] = (argb >> 8) & 0xFF;
+            this.target[3] = argb & 0xFF;
+            this.tolerance = tolerance;
+            this.minResults = minResults;
+            this.filter = filter;
+            this.found = new int[maxResults];
+            this.distances = new int[maxResults];
+        }
+
+        /**
+         * Entries further away than this bound can neither be one of the maxResults nearest
+         * nor survive the tolerance cut.
+         */
+        private int bound() {
+            if (count < minResults) {
+                return Integer.MAX_VALUE;
+            }
+            int bound = minResults == 0 ? tolerance : Math.max(tolerance, distances[minResults - 1]);
+            if (count == found.length) {
+                bound = Math.min(bound, distances[count - 1]);
+            }
+            return bound;
+        }
+
+        private void search(int lo, int hi) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int base = mid * DIMENSIONS;
+            offer(mid, base);
+            if (hi - lo == 1) {
+                return;
+            }
+            int axis = axes[mid];
+            int diff = target[axis] - points[base + axis];
+            if (diff < 0) {
+                search(lo, mid);
+                if (diff * diff <= bound()) {
+                    search(mid + 1, hi);
+                }
+            } else {
+                search(mid + 1, hi);
+                if (diff * diff <= bound()) {
+                    search(lo, mid);
+                }
+            }
+        }
+
+        private void offer(int pos, int base) {
+            examined++;
+            int dist = 0;
+            for (int c = 0; c < DIMENSIONS; c++) {
+                int d = target[c] - points[base + c];
+                dist += d * d;
+            }
+            if (dist > bound() || (count == found.length && dist >= distances[count - 1])) {
+                return;
+            }
+            int id = ids[pos];
+            if (!filter.accept(id)) {
+                return;
+            }
+            int i = count == found.length ? count - 1 : count++;
+            while (i > 0 && distances[i - 1] > dist) {
+                found[i] = found[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            found[i] = id;
+            distances[i] = dist;
+        }
+    }
+}
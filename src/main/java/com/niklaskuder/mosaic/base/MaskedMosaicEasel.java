@@ -0,0 +1,166 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Easel for tilings of shapes that are not rectangles. The cells are laid out on a grid of columns and rows by the
+ * subclasses, and every cell is the bounding box of one shape in one of several orientations. Cells may reach over
+ * the border of the image, only the pixels of the shapes inside the image are averaged and drawn.
+ * <p>
+ * For every orientation, the tiles of the artist are turned into shapes of that orientation, and one artist per
+ * orientation matches them by their average color over the shape. As the shapes of a tiling do not overlap, the
+ * cells are drawn straight into the image by several worker threads.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public abstract class MaskedMosaicEasel implements MosaicEasel {
+    private final int numThreads;
+
+    /**
+     * @param numThreads the number of worker threads.
+     */
+    protected MaskedMosaicEasel(int numThreads) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be > 0");
+        }
+        this.numThreads = numThreads;
+    }
+
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        int tileWidth = artist.getTileWidth();
+        int tileHeight = artist.getTileHeight();
+        checkTileSize(tileWidth, tileHeight);
+        BufferedArtImage image = new BufferedArtImage(input);
+        IntegralImage integral = new IntegralImage(image, numThreads);
+        CellScheduler scheduler = createScheduler(image.getWidth(), image.getHeight(), tileWidth, tileHeight);
+
+        List<BufferedImage> thumbnails = artist.getThumbnails();
+        MosaicArtist[] artists = new MosaicArtist[getOrientations()];
+        MaskedMosaicShape[][] shapes = new MaskedMosaicShape[artists.length][thumbnails.size()];
+        for (int orientation = 0; orientation < artists.length; orientation++) {
+            for (int i = 0; i < thumbnails.size(); i++) {
+                shapes[orientation][i] = createShape(thumbnails.get(i), orientation);
+            }
+            artists[orientation] = createArtist(Arrays.<MosaicShape>asList(shapes[orientation]));
+        }
+
+        scheduler.run(numThreads, new DrawTask(image, integral, artists, shapes));
+        return image.toBufferedImage();
+    }
+
+    /**
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     * @throws IllegalArgumentException if the shapes cannot be tiled with this size.
+     */
+    protected abstract void checkTileSize(int tileWidth, int tileHeight);
+
+    /**
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     * @return returns a scheduler with one cell per shape of the tiling that may reach into the image.
+     */
+    protected abstract CellScheduler createScheduler(int width, int height, int tileWidth, int tileHeight);
+
+    /**
+     * @param column the column of the cell in the scheduler.
+     * @param row the row of the cell in the scheduler.
+     * @param tileWidth the width of the tiles.
+     * @return returns the x-coordinate of the bounding box of the shape, which may be negative.
+     */
+    protected abstract int getCellX(int column, int row, int tileWidth);
+
+    /**
+     * @param row the row of the cell in the scheduler.
+     * @param tileHeight the height of the tiles.
+     * @return returns the y-coordinate of the bounding box of the shapes in the row, which may be negative.
+     */
+    protected abstract int getCellY(int row, int tileHeight);
+
+    /**
+     * @return returns the number of orientations of the shapes.
+     */
+    protected abstract int getOrientations();
+
+    /**
+     * @param column the column of the cell in the scheduler.
+     * @param row the row of the cell in the scheduler.
+     * @return returns the orientation of the shape of the cell.
+     */
+    protected abstract int getOrientation(int column, int row);
+
+    /**
+     * @param orientation the orientation.
+     * @return returns the calculator describing the shape in the given orientation.
+     */
+    protected abstract AbstractCalculator getCalculator(int orientation);
+
+    /**
+     * @param thumbnail the thumbnail of a tile.
+     * @param orientation the orientation.
+     * @return returns the shape of the tile in the given orientation.
+     */
+    protected abstract MaskedMosaicShape createShape(BufferedImage thumbnail, int orientation);
+
+    /**
+     * @param shapes the shapes of one orientation.
+     * @return returns an artist matching the given shapes.
+     */
+    protected abstract MosaicArtist createArtist(List<MosaicShape> shapes);
+
+    /**
+     * Matches and draws a cell.
+     */
+    private final class DrawTask implements CellScheduler.CellTask {
+        private final BufferedArtImage image;
+        private final IntegralImage integral;
+        private final MosaicArtist[] artists;
+        private final MaskedMosaicShape[][] shapes;
+
+        DrawTask(BufferedArtImage image, IntegralImage integral, MosaicArtist[] artists, MaskedMosaicShape[][] shapes) {
+            this.image = image;
+            this.integral = integral;
+            this.artists = artists;
+            this.shapes = shapes;
+        }
+
+        @Override
+        public void run(int column, int row) {
+            int orientation = getOrientation(column, row);
+            MosaicArtist artist = artists[orientation];
+            int w = artist.getTileWidth();
+            int h = artist.getTileHeight();
+            int x = getCellX(column, row, w);
+            int y = getCellY(row, h);
+            AbstractCalculator calculator = getCalculator(orientation);
+            if (!overlaps(calculator.getMask(w, h), x, y)) {
+                return;
+            }
+            PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+            int average = calculator.averageColor(integral, x, y, w, h);
+            Metrics.end(event);
+            shapes[orientation][artist.matchColor(average)].drawMe(image, x, y);
+        }
+
+        private boolean overlaps(ShapeMask mask, int x, int y) {
+            int endRow = Math.min(mask.getHeight(), image.getHeight() - y);
+            for (int row = Math.max(0, -y); row < endRow; row++) {
+                if (mask.getLength(row) > 0 && x + mask.getStart(row) < image.getWidth()
+                        && x + mask.getStart(row) + mask.getLength(row) > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
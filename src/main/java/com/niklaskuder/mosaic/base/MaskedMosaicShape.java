@@ -0,0 +1,114 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Shape that covers only the pixels of a {@link ShapeMask} within its bounding box. The average color only
+ * counts these pixels, and drawing the shape leaves all other pixels alone, so that shapes placed next to each
+ * other in a tiling can be drawn independently.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public abstract class MaskedMosaicShape implements MosaicShape {
+    private final int[] pixels;
+    private final ShapeMask mask;
+    private final int width;
+    private final int height;
+    private final int average;
+
+    /**
+     * @param thumbnail the thumbnail, already scaled and cropped to the size of the bounding box.
+     * @param calculator the calculator describing the shape.
+     */
+    protected MaskedMosaicShape(BufferedImage thumbnail, AbstractCalculator calculator) {
+        BufferedArtImage image = new BufferedArtImage(thumbnail);
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.mask = calculator.getMask(width, height);
+        this.pixels = new int[width * height];
+        int[] data = image.getData();
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(data, image.getIndex(0, y, width), pixels, y * width, width);
+        }
+        this.average = calculator.averageColor(image);
+    }
+
+    /**
+     * @return returns the thumbnail with all pixels outside of the shape transparent.
+     */
+    @Override
+    public BufferedImage getThumbnail() {
+        BufferedArtImage image = new BufferedArtImage(width, height);
+        int[] data = image.getData();
+        for (int y = 0; y < height; y++) {
+            int length = mask.getLength(y);
+            System.arraycopy(pixels, y * width + mask.getStart(y), data, image.getIndex(mask.getStart(y), y, length),
+                    length);
+        }
+        return image.toBufferedImage();
+    }
+
+    @Override
+    public int getAverageColor() {
+        return this.average;
+    }
+
+    @Override
+    public void drawMe(BufferedArtImage image) {
+        if (image.getWidth() > this.getWidth() || image.getHeight() > this.getHeight()) {
+            throw new IllegalArgumentException("dimensions of target are too big for this tile");
+        }
+        draw(image, 0, 0, false);
+    }
+
+    /**
+     * Draws the shape with the bounding box at (x, y). Only the pixels of the mask are drawn.
+     */
+    @Override
+    public void drawMe(BufferedArtImage image, int x, int y) {
+        draw(image, x, y, true);
+    }
+
+    private void draw(BufferedArtImage image, int x, int y, boolean composite) {
+        PhaseEvent event = Metrics.begin(Phase.DRAW);
+        int[] target = image.getData();
+        int firstRow = Math.max(0, -y);
+        int endRow = Math.min(height, image.getHeight() - y);
+        for (int row = firstRow; row < endRow; row++) {
+            int start = Math.max(x + mask.getStart(row), 0);
+            int end = Math.min(x + mask.getStart(row) + mask.getLength(row), image.getWidth());
+            if (start >= end) {
+                continue;
+            }
+            int targetIndex = image.getIndex(start, y + row, end - start);
+            int sourceIndex = row * width + start - x;
+            for (int i = 0; i < end - start; i++) {
+                int pixel = ImageUtils.correctColor(target[targetIndex + i], pixels[sourceIndex + i]);
+                target[targetIndex + i] = composite ? ImageUtils.srcOver(pixel, pixel) : pixel;
+            }
+        }
+        Metrics.end(event);
+    }
+
+    /**
+     * @return returns the mask of the shape.
+     */
+    public ShapeMask getMask() {
+        return this.mask;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+}
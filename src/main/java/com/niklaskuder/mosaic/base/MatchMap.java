@@ -0,0 +1,246 @@
+package com.niklaskuder.mosaic.base;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The tiles chosen for the cells of a mosaic, saved next to the output so that a later run can redraw only what
+ * changed. For every cell the map keeps the chosen tile, the average color and a hash of the input pixels of the
+ * cell. Tiles are identified by a hash of their thumbnail, which does not depend on their position in the library,
+ * and the map also keeps the hashes of all tiles of the library at the time.
+ * <p>
+ * The cells are laid out in rows of tileWidth x tileHeight like {@link CellScheduler} does, the cell in column c
+ * and row r having the index r * columns + c.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class MatchMap {
+    private static final int MAGIC = 0x4D4D4150;
+    private static final int VERSION = 1;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final long[] library;
+    private final long[] tiles;
+    private final int[] averages;
+    private final long[] regionHashes;
+
+    /**
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param tileWidth the width of the cells.
+     * @param tileHeight the height of the cells.
+     * @param library the hashes of all tiles of the library.
+     * @param tiles the hashes of the tiles of the cells.
+     * @param averages the average colors of the cells as argb.
+     * @param regionHashes the hashes of the input pixels of the cells.
+     */
+    public MatchMap(int width, int height, int tileWidth, int tileHeight, long[] library, long[] tiles,
+                    int[] averages, long[] regionHashes) {
+        if (width <= 0 || height <= 0 || tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("dimensions must be > 0");
+        }
+        int cells = ((width + tileWidth - 1) / tileWidth) * ((height + tileHeight - 1) / tileHeight);
+        if (tiles.length != cells || averages.length != cells || regionHashes.length != cells) {
+            throw new IllegalArgumentException("expected " + cells + " cells");
+        }
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.library = library.clone();
+        Arrays.sort(this.library);
+        this.tiles = tiles;
+        this.averages = averages;
+        this.regionHashes = regionHashes;
+    }
+
+    /**
+     * @param file the map file of an earlier run.
+     * @return returns the map, or null if the file is missing or not a readable map.
+     */
+    public static MatchMap read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int tileWidth = in.readInt();
+            int tileHeight = in.readInt();
+            long[] library = new long[in.readInt()];
+            for (int i = 0; i < library.length; i++) {
+                library[i] = in.readLong();
+            }
+            int cells = in.readInt();
+            long[] tiles = new long[cells];
+            int[] averages = new int[cells];
+            long[] regionHashes = new long[cells];
+            for (int i = 0; i < cells; i++) {
+                tiles[i] = in.readLong();
+                averages[i] = in.readInt();
+                regionHashes[i] = in.readLong();
+            }
+            return new MatchMap(width, height, tileWidth, tileHeight, library, tiles, averages, regionHashes);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable match map " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the given file with this map.
+     * @param file the map file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            out.writeInt(library.length);
+            for (long tile : library) {
+                out.writeLong(tile);
+            }
+            out.writeInt(tiles.length);
+            for (int i = 0; i < tiles.length; i++) {
+                out.writeLong(tiles[i]);
+                out.writeInt(averages[i]);
+                out.writeLong(regionHashes[i]);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @param output the output file of the run.
+     * @return returns the file the map for this output is saved to, next to the output.
+     */
+    public static File mapFile(File output) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(output.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".matches");
+    }
+
+    /**
+     * @param shape the tile.
+     * @return returns a hash of the thumbnail of the tile.
+     */
+    public static long tileHash(MosaicShape shape) {
+        BufferedArtImage thumbnail = new BufferedArtImage(shape.getThumbnail());
+        return hash(thumbnail, 0, 0, thumbnail.getWidth(), thumbnail.getHeight());
+    }
+
+    /**
+     * @param image the image.
+     * @param x the x-coordinate of the region.
+     * @param y the y-coordinate of the region.
+     * @param w the width of the region.
+     * @param h the height of the region.
+     * @return returns a hash of the size and the pixels of the region.
+     */
+    public static long hash(BufferedArtImage image, int x, int y, int w, int h) {
+        int[] data = image.getData();
+        long hash = (FNV_OFFSET ^ w) * FNV_PRIME;
+        hash = (hash ^ h) * FNV_PRIME;
+        for (int row = 0; row < h; row++) {
+            int index = image.getIndex(x, y + row, w);
+            for (int i = index; i < index + w; i++) {
+                hash = (hash ^ data[i]) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param tile the hash of a tile.
+     * @return returns true if the tile was part of the library.
+     */
+    public boolean containsTile(long tile) {
+        return Arrays.binarySearch(library, tile) >= 0;
+    }
+
+    /**
+     * @param otherLibrary the hashes of all tiles of a library.
+     * @return returns true if the library consists of exactly the same tiles.
+     */
+    public boolean hasLibrary(long[] otherLibrary) {
+        long[] sorted = otherLibrary.clone();
+        Arrays.sort(sorted);
+        return Arrays.equals(library, sorted);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    public int getColumns() {
+        return (width + tileWidth - 1) / tileWidth;
+    }
+
+    public int getCellCount() {
+        return tiles.length;
+    }
+
+    /**
+     * @param cell the index of the cell.
+     * @return returns the hash of the tile of the cell.
+     */
+    public long getTile(int cell) {
+        return tiles[cell];
+    }
+
+    /**
+     * @param cell the index of the cell.
+     * @return returns the average color of the cell as argb.
+     */
+    public int getAverage(int cell) {
+        return averages[cell];
+    }
+
+    /**
+     * @param cell the index of the cell.
+     * @return returns the hash of the input pixels of the cell.
+     */
+    public long getRegionHash(int cell) {
+        return regionHashes[cell];
+    }
+}
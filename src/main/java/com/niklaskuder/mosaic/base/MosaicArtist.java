@@ -13,4 +13,34 @@ public interface MosaicArtist {
     List<BufferedImage> getThumbnails();
 
     BufferedArtImage getTileForRegion(BufferedArtImage var1);
+
+    /**
+     * Draws the best matching tile into a region, taking the region's average color from an integral image.
+     * @param region the region of the input image.
+     * @param integral the integral image of the input image.
+     * @param x the x-coordinate of the region in the input image.
+     * @param y the y-coordinate of the region in the input image.
+     * @return returns the region with the tile drawn into it.
+     */
+    BufferedArtImage getTileForRegion(BufferedArtImage region, IntegralImage integral, int x, int y);
+
+    /**
+     * Chooses the best matching tile for a region without drawing it, taking the region's colors from an
+     * integral image. Drawing the shape into the region afterwards gives the same result as
+     * {@link #getTileForRegion(BufferedArtImage, IntegralImage, int, int)}.
+     * @param region the region of the input image.
+     * @param integral the integral image of the input image.
+     * @param x the x-coordinate of the region in the input image.
+     * @param y the y-coordinate of the region in the input image.
+     * @return returns the index of the chosen tile in {@link #getShapes()}.
+     */
+    int matchTile(BufferedArtImage region, IntegralImage integral, int x, int y);
+
+    /**
+     * Chooses the best matching tile for an average color computed elsewhere, for example over a shape that is
+     * not a rectangle.
+     * @param average the average color as argb.
+     * @return returns the index of the chosen tile in {@link #getShapes()}.
+     */
+    int matchColor(int average);
 }
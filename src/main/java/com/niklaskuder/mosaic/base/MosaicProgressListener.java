@@ -0,0 +1,44 @@
+package com.niklaskuder.mosaic.base;
+
+/**
+ * Receives the progress of a mosaic that is rendered in passes. All calls come from the thread that creates
+ * the mosaic.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public interface MosaicProgressListener {
+
+    /**
+     * The passes of a mosaic, in the order they run.
+     */
+    enum Pass {
+        /**
+         * Every cell is filled with the average color of its region.
+         */
+        PREVIEW,
+        /**
+         * A tile is chosen for every cell.
+         */
+        MATCH,
+        /**
+         * The chosen tiles are color corrected and drawn.
+         */
+        DRAW
+    }
+
+    /**
+     * Called whenever a pass has made progress.
+     * @param pass the running pass.
+     * @param percent the share of the pass that is done, from 0 to 100.
+     */
+    void progressChanged(Pass pass, int percent);
+
+    /**
+     * Called with the partial image while the image changes and once when a pass changed it completely.
+     * Worker threads may still be drawing into the image, so it has to be copied to be kept.
+     * @param image the partial image.
+     * @param pass the running pass.
+     */
+    void imageUpdated(BufferedArtImage image, Pass pass);
+}
@@ -3,12 +3,19 @@ package com.niklaskuder.mosaic.base;
 import java.awt.image.BufferedImage;
 
 public interface MosaicShape {
-    void decreaseDisabled();
-    boolean isDisabled();
-    void setDisabled(int amount);
     BufferedImage getThumbnail();
     int getAverageColor();
     void drawMe(BufferedArtImage image);
+
+    /**
+     * Draws the shape straight into the whole image with its top left corner at (x, y), leaving out everything
+     * outside of the image. The pixels come out like those drawn with {@link #drawMe(BufferedArtImage)} into a
+     * subimage and composited onto the image with {@link BufferedArtImage#setSubimage}, but in a single pass.
+     * @param image the image.
+     * @param x the x-coordinate of the shape, which may be negative.
+     * @param y the y-coordinate of the shape, which may be negative.
+     */
+    void drawMe(BufferedArtImage image, int x, int y);
     int getWidth();
     int getHeight();
 
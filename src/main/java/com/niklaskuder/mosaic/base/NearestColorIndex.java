@@ -0,0 +1,43 @@
+package com.niklaskuder.mosaic.base;
+
+/**
+ * Index over a fixed set of packed argb colors that answers nearest-color queries.
+ * Entries are addressed by the position of their color in the array the index was built from.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public interface NearestColorIndex {
+
+    /**
+     * Decides whether an entry of the index may currently be returned by a query.
+     */
+    interface Filter {
+
+        /**
+         * @param index the position of the entry.
+         * @return returns true if the entry may be returned.
+         */
+        boolean accept(int index);
+    }
+
+    /**
+     * @return returns the number of colors in this index.
+     */
+    int size();
+
+    /**
+     * Collects the nearest accepted entries for a target color, ordered by ascending distance.
+     * At most maxResults entries are collected. Entries further away than the tolerance are dropped,
+     * as long as at least minResults entries remain.
+     *
+     * @param target the target color as argb.
+     * @param maxResults the maximum number of entries to collect.
+     * @param tolerance the squared euclidean distance up to which entries are considered a good match.
+     * @param minResults the number of entries that are kept even if they are not a good match.
+     * @param filter the filter deciding which entries may be returned.
+     * @param result the array the indices of the found entries are written to (length >= maxResults).
+     * @return returns the number of entries written to result.
+     */
+    int findNearest(int target, int maxResults, int tolerance, int minResults, Filter filter, int[] result);
+}
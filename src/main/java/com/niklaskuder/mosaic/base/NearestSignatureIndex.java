@@ -0,0 +1,41 @@
+package com.niklaskuder.mosaic.base;
+
+/**
+ * Index over a fixed set of color signatures (see {@link ColorSignature}) that answers nearest-signature
+ * queries. Entries are addressed by the position of their signature in the array the index was built from.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public interface NearestSignatureIndex {
+
+    /**
+     * @return returns the number of signatures in this index.
+     */
+    int size();
+
+    /**
+     * Collects the nearest accepted entries for a target signature, ordered by ascending distance.
+     * At most maxResults entries are collected. Entries further away than the tolerance are dropped,
+     * as long as at least minResults entries remain. Approximate indexes may miss some of the nearest entries.
+     *
+     * @param target the target signature.
+     * @param maxResults the maximum number of entries to collect.
+     * @param tolerance the squared euclidean distance up to which entries are considered a good match.
+     * @param minResults the number of entries that are kept even if they are not a good match.
+     * @param filter the filter deciding which entries may be returned.
+     * @param result the array the indices of the found entries are written to (length >= maxResults).
+     * @return returns the number of entries written to result.
+     */
+    int findNearest(float[] target, int maxResults, float tolerance, int minResults,
+                    NearestColorIndex.Filter filter, int[] result);
+
+    /**
+     * Creates an index over the signatures of this index followed by further signatures. This index is not
+     * changed, so queries running on it meanwhile are not affected.
+     *
+     * @param added the signatures to append. Their positions follow those of this index.
+     * @return returns the extended index.
+     */
+    NearestSignatureIndex append(float[] added);
+}
@@ -0,0 +1,85 @@
+package com.niklaskuder.mosaic.base;
+
+import java.util.Arrays;
+
+/**
+ * The pixels a shape covers within its bounding box, stored as one span of consecutive pixels per row. Averaging
+ * and drawing a shape are loops over these spans, without any geometry per pixel.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class ShapeMask {
+    private final int width;
+    private final int height;
+    private final int[] starts;
+    private final int[] lengths;
+    private final int pixelCount;
+
+    /**
+     * @param width the width of the bounding box.
+     * @param height the height of the bounding box.
+     * @param starts the x-coordinate of the first covered pixel of every row.
+     * @param lengths the number of covered pixels of every row, which may be 0.
+     */
+    public ShapeMask(int width, int height, int[] starts, int[] lengths) {
+        if (width <= 0 || height <= 0 || starts.length != height || lengths.length != height) {
+            throw new IllegalArgumentException("expected " + height + " spans within a width of " + width);
+        }
+        int count = 0;
+        for (int y = 0; y < height; y++) {
+            if (lengths[y] < 0 || lengths[y] > 0 && (starts[y] < 0 || starts[y] + lengths[y] > width)) {
+                throw new IllegalArgumentException("span of row " + y + " is outside of the bounding box");
+            }
+            count += lengths[y];
+        }
+        this.width = width;
+        this.height = height;
+        this.starts = starts.clone();
+        this.lengths = lengths.clone();
+        this.pixelCount = count;
+    }
+
+    /**
+     * @param width the width of the rectangle.
+     * @param height the height of the rectangle.
+     * @return returns the mask covering the whole rectangle.
+     */
+    public static ShapeMask rectangle(int width, int height) {
+        int[] starts = new int[height];
+        int[] lengths = new int[height];
+        Arrays.fill(lengths, width);
+        return new ShapeMask(width, height, starts, lengths);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param y the row.
+     * @return returns the x-coordinate of the first covered pixel of the row.
+     */
+    public int getStart(int y) {
+        return starts[y];
+    }
+
+    /**
+     * @param y the row.
+     * @return returns the number of covered pixels of the row.
+     */
+    public int getLength(int y) {
+        return lengths[y];
+    }
+
+    /**
+     * @return returns the number of covered pixels.
+     */
+    public int getPixelCount() {
+        return pixelCount;
+    }
+}
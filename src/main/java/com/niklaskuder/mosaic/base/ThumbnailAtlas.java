@@ -0,0 +1,260 @@
+package com.niklaskuder.mosaic.base;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Thumbnails of one size packed one after another into large pages and addressed by their index. A thumbnail
+ * takes exactly width * height * 4 bytes and no object of its own.
+ * <p>
+ * The pages are either int arrays on the heap or regions of a memory-mapped file. Mapped pages live outside of
+ * the heap and are paged in and out by the operating system, so they also hold libraries larger than the memory.
+ * Thumbnails can be added from several threads. A thumbnail can be read by every thread its index was handed to,
+ * also while other thumbnails are added: the page tables are copied on write and published only once the new
+ * page is in place.
+ * <p>
+ * The mapped file lives in the temporary directory and is removed as soon as it is opened where the file system
+ * allows it, otherwise when the atlas is closed. Pages mapped before stay readable after closing, they are
+ * released once the atlas is no longer referenced.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class ThumbnailAtlas implements Closeable {
+    private static final int PAGE_BYTES = 64 << 20;
+    /**
+     * Libraries taking more than this share of the maximum heap are mapped.
+     */
+    private static final int HEAP_SHARE = 4;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int tilesPerPage;
+    private final File file;
+    private final FileChannel channel;
+    private volatile int[][] arrays = new int[0][];
+    private volatile IntBuffer[] buffers = new IntBuffer[0];
+    private int size;
+
+    private ThumbnailAtlas(int tileWidth, int tileHeight, int expectedTiles, File file, FileChannel channel) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("tile dimensions must be > 0");
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        int maxTiles = Math.max(1, PAGE_BYTES / (tileWidth * tileHeight * 4));
+        this.tilesPerPage = Math.max(1, Math.min(expectedTiles, maxTiles));
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates an atlas on the heap.
+     * @param tileWidth the width of the thumbnails.
+     * @param tileHeight the height of the thumbnails.
+     * @param expectedTiles the expected number of thumbnails. Pages are no larger than needed for them.
+     * @return returns the atlas.
+     */
+    public static ThumbnailAtlas onHeap(int tileWidth, int tileHeight, int expectedTiles) {
+        return new ThumbnailAtlas(tileWidth, tileHeight, expectedTiles, null, null);
+    }
+
+    /**
+     * Creates an atlas in a memory-mapped file in the temporary directory.
+     * @param tileWidth the width of the thumbnails.
+     * @param tileHeight the height of the thumbnails.
+     * @param expectedTiles the expected number of thumbnails. Pages are no larger than needed for them.
+     * @return returns the atlas.
+     * @throws IOException if the file cannot be created.
+     */
+    public static ThumbnailAtlas mapped(int tileWidth, int tileHeight, int expectedTiles) throws IOException {
+        File file = File.createTempFile("mosaic-atlas-", ".tmp");
+        FileChannel channel;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        //Without a name the file cannot outlive the process, even if it crashes
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        return new ThumbnailAtlas(tileWidth, tileHeight, expectedTiles, file, channel);
+    }
+
+    /**
+     * Creates an atlas on the heap if the thumbnails take at most a quarter of the maximum heap, and a mapped
+     * atlas otherwise. If the mapped file cannot be created, the heap is used anyway.
+     * @param tileWidth the width of the thumbnails.
+     * @param tileHeight the height of the thumbnails.
+     * @param expectedTiles the expected number of thumbnails.
+     * @return returns the atlas.
+     */
+    public static ThumbnailAtlas forTiles(int tileWidth, int tileHeight, int expectedTiles) {
+        long bytes = (long) tileWidth * tileHeight * 4 * expectedTiles;
+        if (bytes > Runtime.getRuntime().maxMemory() / HEAP_SHARE) {
+            try {
+                return mapped(tileWidth, tileHeight, expectedTiles);
+            } catch (IOException e) {
+                System.err.println("Could not map tile atlas: " + e.getMessage());
+            }
+        }
+        return onHeap(tileWidth, tileHeight, expectedTiles);
+    }
+
+    /**
+     * Adds a thumbnail.
+     * @param pixels the array holding the pixels as argb.
+     * @param offset the index of the first pixel.
+     * @param scanlineStride the distance between two vertically adjacent pixels.
+     * @return returns the index of the thumbnail.
+     */
+    public synchronized int add(int[] pixels, int offset, int scanlineStride) {
+        int index = reserve();
+        int page = index / tilesPerPage;
+        int start = (index % tilesPerPage) * tileWidth * tileHeight;
+        if (file == null) {
+            for (int y = 0; y < tileHeight; y++) {
+                System.arraycopy(pixels, offset + y * scanlineStride, arrays[page], start + y * tileWidth, tileWidth);
+            }
+        } else {
+            IntBuffer view = buffers[page].duplicate();
+            for (int y = 0; y < tileHeight; y++) {
+                view.position(start + y * tileWidth);
+                view.put(pixels, offset + y * scanlineStride, tileWidth);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds a thumbnail stored row after row.
+     * @param pixels the buffer holding the pixels as argb from its current position on.
+     * @return returns the index of the thumbnail.
+     */
+    public synchronized int add(IntBuffer pixels) {
+        int index = reserve();
+        int page = index / tilesPerPage;
+        int start = (index % tilesPerPage) * tileWidth * tileHeight;
+        IntBuffer source = pixels.duplicate();
+        if (file == null) {
+            source.get(arrays[page], start, tileWidth * tileHeight);
+        } else {
+            IntBuffer view = buffers[page].duplicate();
+            view.position(start);
+            source.limit(source.position() + tileWidth * tileHeight);
+            view.put(source);
+        }
+        return index;
+    }
+
+    /**
+     * Makes room for one more thumbnail, adding a page if the last one is full.
+     * @return returns the index of the new thumbnail.
+     */
+    private int reserve() {
+        int pages = file == null ? arrays.length : buffers.length;
+        if (size == pages * tilesPerPage) {
+            if (file == null) {
+                int[][] grown = Arrays.copyOf(arrays, pages + 1);
+                grown[pages] = new int[tilesPerPage * tileWidth * tileHeight];
+                arrays = grown;
+            } else {
+                IntBuffer[] grown = Arrays.copyOf(buffers, pages + 1);
+                grown[pages] = mapPage(pages);
+                buffers = grown;
+            }
+        }
+        return size++;
+    }
+
+    private IntBuffer mapPage(int page) {
+        long pageBytes = (long) tilesPerPage * tileWidth * tileHeight * 4;
+        try {
+            //The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, page * pageBytes, pageBytes)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not map page " + page + " of " + file, e);
+        }
+    }
+
+    /**
+     * Copies one row of a thumbnail.
+     * @param index the index of the thumbnail.
+     * @param y the row.
+     * @param target the array receiving the {@link #getTileWidth()} pixels of the row.
+     * @param targetOffset the index in the target of the first pixel.
+     */
+    public void readRow(int index, int y, int[] target, int targetOffset) {
+        if (index < 0 || y < 0 || y >= tileHeight) {
+            throw new IndexOutOfBoundsException("row " + y + " of thumbnail " + index);
+        }
+        int page = index / tilesPerPage;
+        int start = ((index % tilesPerPage) * tileHeight + y) * tileWidth;
+        if (file == null) {
+            System.arraycopy(arrays[page], start, target, targetOffset, tileWidth);
+        } else {
+            IntBuffer view = buffers[page].duplicate();
+            view.position(start);
+            view.get(target, targetOffset, tileWidth);
+        }
+    }
+
+    /**
+     * @param index the index of the thumbnail.
+     * @return returns a copy of the thumbnail as TYPE_INT_ARGB image.
+     */
+    public BufferedImage toBufferedImage(int index) {
+        BufferedImage image = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < tileHeight; y++) {
+            readRow(index, y, data, y * tileWidth);
+        }
+        return image;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * @return returns the number of thumbnails added so far.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return returns true if the pages are mapped from a file instead of being stored on the heap.
+     */
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * Closes the mapped file, after which no more thumbnails can be added. Thumbnails added before can still be
+     * read.
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            channel.close();
+            file.delete();
+        }
+    }
+}
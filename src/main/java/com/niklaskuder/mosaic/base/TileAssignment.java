@@ -0,0 +1,733 @@
+package com.niklaskuder.mosaic.base;
+
+import com.niklaskuder.mosaic.metrics.Counter;
+import com.niklaskuder.mosaic.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assigns tiles to all cells of a mosaic at once, minimizing the total color error while every tile is used at
+ * most maxUses times and, as far as there are enough cells, at least minUses times.
+ * <p>
+ * The cells only choose among a few candidate tiles each, which are computed in parallel up front: their
+ * {@value #NEAREST_TILES} nearest tiles, the nearest tile a greedy pass in cell order could still give them, and,
+ * if tiles must be used at least once, the tiles that have the cell among their {@value #NEAREST_CELLS} nearest
+ * cells. The greedy tiles make sure that the candidates can cover all cells, and the nearest cells of the tiles
+ * that they can also use every tile. On this sparse graph, the assignment is solved with the forward-reverse
+ * auction algorithm for asymmetric assignment problems. Every tile is split into maxUses slots, the first minUses
+ * of which are required and must end up with a cell. Unassigned cells bid for the candidate slot with the lowest
+ * distance plus price and raise its price by their margin over the second best slot. Afterwards, free slots that
+ * are required or still priced above zero lower their price and take over the candidate cell of their tile that
+ * gains the most by moving to them. The prices are refined with epsilon scaling down to an epsilon of one, so the
+ * total squared color distance is within one per cell of the best assignment the candidates allow. That can be
+ * worse than the best assignment of all tiles where many cells compete for few tiles of their colors.
+ * <p>
+ * Only a cell whose candidates all cost more than the cheapest slot of any tile could, which leaves it without a
+ * tile, searches all tiles with a {@link KdTreeColorIndex} weighted by the prices and keeps the best one as
+ * another candidate. Likewise, a tile whose required slot cannot hold on to a cell widens its candidates to more
+ * nearest cells and at last searches all cells. The bids and offers of a round are computed in parallel against
+ * the state at its start and then placed in order. One that went stale because its slot or cell was already
+ * taken in the same round is computed again, so cells of the same color do not need a round each, and the result
+ * does not depend on the number of threads.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileAssignment {
+    /**
+     * The largest squared distance of two argb colors.
+     */
+    private static final int MAX_COST = 4 * 255 * 255;
+    /**
+     * The weight of a missing slot or cell, low enough to never overflow when a distance is added.
+     */
+    private static final long NONE = Long.MAX_VALUE / 4;
+    private static final int NEAREST_TILES = 16;
+    private static final int NEAREST_CELLS = 16;
+    private static final int WIDENING = 4;
+    /**
+     * The most candidates of a tile, a tile that needs more searches all cells.
+     */
+    private static final int MAX_CANDIDATES = 1024;
+    private static final int FIRST_EPSILON = MAX_COST / 64;
+    private static final int SCALING = 4;
+    private static final int MIN_PARALLEL_BIDS = 1024;
+    private static final NearestColorIndex.Filter ALL = new NearestColorIndex.Filter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    private final int[] tileColors;
+    private final KdTreeColorIndex tileIndex;
+    private final int minUses;
+    private final int maxUses;
+    private final int numThreads;
+
+    /**
+     * @param tileColors the average colors of the tiles as argb, their positions are the assigned indices.
+     * @param minUses the number of times every tile should be used at least.
+     * @param maxUses the number of times every tile may be used at most.
+     * @param numThreads the number of threads computing candidates, bids and offers.
+     */
+    public TileAssignment(int[] tileColors, int minUses, int maxUses, int numThreads) {
+        if (tileColors.length == 0) {
+            throw new IllegalArgumentException("no tiles provided");
+        }
+        if (minUses < 0 || maxUses <= 0 || minUses > maxUses) {
+            throw new IllegalArgumentException("uses must satisfy 0 <= minUses <= maxUses and maxUses > 0");
+        }
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be > 0");
+        }
+        this.tileColors = tileColors.clone();
+        this.tileIndex = new KdTreeColorIndex(this.tileColors);
+        this.minUses = minUses;
+        this.maxUses = maxUses;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Assigns a tile to every cell. If there are fewer cells than the minimum uses of all tiles, every tile is
+     * used at least as often as the cells allow for all of them.
+     * @param cellColors the average colors of the cells as argb.
+     * @return returns the index of the tile of every cell.
+     * @throws IllegalArgumentException if the tiles cannot cover the cells with maxUses.
+     */
+    public int[] assign(int[] cellColors) {
+        if ((long) tileColors.length * maxUses < cellColors.length) {
+            throw new IllegalArgumentException(tileColors.length + " tiles used at most " + maxUses
+                    + " times cannot cover " + cellColors.length + " cells");
+        }
+        if (cellColors.length == 0) {
+            return new int[0];
+        }
+        int reachableUses = Math.min(minUses, cellColors.length / tileColors.length);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            return new Auction(cellColors, reachableUses, executor).run();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Work on a range of cells.
+     */
+    private abstract static class RangeTask {
+        abstract void run(int from, int to);
+    }
+
+    /**
+     * The state of one assignment.
+     */
+    private final class Auction {
+        private final int[] cellColors;
+        private final int requiredUses;
+        private final ExecutorService executor;
+        private final int cells;
+        private final int tiles;
+        private final int slots;
+        /**
+         * The candidate tiles of every cell and the cells every tile is a candidate of with their distances, each
+         * list filled up to its count.
+         */
+        private final int[][] cellCandidates;
+        private final int[] cellCandidateCounts;
+        private final int[][] tileCandidates;
+        private final int[][] tileDistances;
+        private final int[] tileCandidateCounts;
+        /**
+         * The tiles that search all cells instead of their candidates.
+         */
+        private final boolean[] denseTiles;
+        /**
+         * The price below which a required slot of every tile widens the candidates of its tile.
+         */
+        private final long[] widenPrices;
+        private final long[] prices;
+        private final int[] owners;
+        private final int[] assigned;
+        /**
+         * The distance plus price of the slot of every cell, or minus {@link #NONE} for unassigned cells.
+         */
+        private final long[] costs;
+        /**
+         * The cheapest and second cheapest price of every tile, which are also its weights in the tile index.
+         */
+        private final long[] firstPrices;
+        private final long[] secondPrices;
+        private final int[] cheapest;
+        private final KdTreeColorIndex.Weights tileWeights;
+        /**
+         * The cells weighted by the negated distance plus price of their slot, so that the lightest cell for a
+         * tile is the one that gains the most by moving to it. The weights are only kept once a tile searches all
+         * cells.
+         */
+        private final KdTreeColorIndex cellIndex;
+        private KdTreeColorIndex.Weights cellWeights;
+        private final int[] bidSlots;
+        private final long[] bids;
+        private final int[] offerCells;
+        private final long[] offers;
+        /**
+         * The round in which every slot was last taken and every cell last moved by an offer.
+         */
+        private final int[] takenInRound;
+        private final int[] movedInRound;
+        private int round;
+        private long epsilon;
+
+        private Auction(int[] cellColors, int requiredUses, ExecutorService executor) {
+            this.cellColors = cellColors;
+            this.requiredUses = requiredUses;
+            this.executor = executor;
+            this.cells = cellColors.length;
+            this.tiles = tileColors.length;
+            this.slots = tiles * maxUses;
+            this.cellCandidates = new int[cells][];
+            this.cellCandidateCounts = new int[cells];
+            this.tileCandidates = new int[tiles][];
+            this.tileDistances = new int[tiles][];
+            this.tileCandidateCounts = new int[tiles];
+            this.denseTiles = new boolean[tiles];
+            this.widenPrices = new long[tiles];
+            this.prices = new long[slots];
+            this.owners = new int[slots];
+            this.assigned = new int[cells];
+            this.costs = new long[cells];
+            this.firstPrices = new long[tiles];
+            this.secondPrices = new long[tiles];
+            this.cheapest = new int[tiles];
+            this.tileWeights = tileIndex.createWeights();
+            this.cellIndex = new KdTreeColorIndex(cellColors);
+            this.bidSlots = new int[cells];
+            this.bids = new long[cells];
+            this.offerCells = new int[slots];
+            this.offers = new long[slots];
+            this.takenInRound = new int[slots];
+            this.movedInRound = new int[cells];
+            for (int slot = 0; slot < slots; slot++) {
+                owners[slot] = -1;
+            }
+            for (int cell = 0; cell < cells; cell++) {
+                assigned[cell] = -1;
+                costs[cell] = -NONE;
+            }
+            for (int tile = 0; tile < tiles; tile++) {
+                widenPrices[tile] = -MAX_COST;
+                updateTile(tile);
+            }
+        }
+
+        private int[] run() {
+            findCandidates();
+            int[] unassigned = new int[cells];
+            int[] next = new int[cells];
+            for (epsilon = FIRST_EPSILON; ; epsilon = Math.max(1, epsilon / SCALING)) {
+                int count = release(unassigned);
+                while (count > 0) {
+                    computeBids(unassigned, count);
+                    count = placeBids(unassigned, count, next);
+                    int[] swap = unassigned;
+                    unassigned = next;
+                    next = swap;
+                }
+                reverse();
+                if (epsilon == 1) {
+                    break;
+                }
+            }
+            int[] result = new int[cells];
+            for (int i = 0; i < cells; i++) {
+                result[i] = assigned[i] / maxUses;
+            }
+            return result;
+        }
+
+        /**
+         * Builds the candidate graph. The nearest tiles of the cells and the nearest cells of the tiles are
+         * searched in parallel, the greedy pass runs in cell order.
+         */
+        private void findCandidates() {
+            final int nearest = Math.min(NEAREST_TILES, tiles);
+            final int[] nearestTiles = new int[cells * nearest];
+            parallel(cells, new RangeTask() {
+                @Override
+                void run(int from, int to) {
+                    int[] found = new int[nearest];
+                    for (int cell = from; cell < to; cell++) {
+                        tileIndex.findNearest(cellColors[cell], nearest, 0, nearest, ALL, found);
+                        System.arraycopy(found, 0, nearestTiles, cell * nearest, nearest);
+                    }
+                }
+            });
+            final int[] uses = new int[tiles];
+            NearestColorIndex.Filter usable = new NearestColorIndex.Filter() {
+                @Override
+                public boolean accept(int index) {
+                    return uses[index] < maxUses;
+                }
+            };
+            int[] found = new int[1];
+            for (int cell = 0; cell < cells; cell++) {
+                int base = cell * nearest;
+                int[] candidates = Arrays.copyOfRange(nearestTiles, base, base + nearest + 1);
+                int count = nearest;
+                int greedy = -1;
+                for (int j = 0; j < nearest && greedy < 0; j++) {
+                    if (uses[candidates[j]] < maxUses) {
+                        greedy = candidates[j];
+                    }
+                }
+                if (greedy < 0) {
+                    tileIndex.findNearest(cellColors[cell], 1, 0, 1, usable, found);
+                    greedy = found[0];
+                    candidates[count++] = greedy;
+                }
+                uses[greedy]++;
+                cellCandidates[cell] = candidates;
+                cellCandidateCounts[cell] = count;
+                for (int j = 0; j < count; j++) {
+                    tileCandidateCounts[candidates[j]]++;
+                }
+            }
+            for (int tile = 0; tile < tiles; tile++) {
+                tileCandidates[tile] = new int[tileCandidateCounts[tile]];
+                tileDistances[tile] = new int[tileCandidateCounts[tile]];
+                tileCandidateCounts[tile] = 0;
+            }
+            for (int cell = 0; cell < cells; cell++) {
+                for (int j = 0; j < cellCandidateCounts[cell]; j++) {
+                    int tile = cellCandidates[cell][j];
+                    tileCandidates[tile][tileCandidateCounts[tile]] = cell;
+                    tileDistances[tile][tileCandidateCounts[tile]++] = distance(cellColors[cell], tileColors[tile]);
+                }
+            }
+            if (requiredUses > 0) {
+                final int cellCount = Math.min(NEAREST_CELLS, cells);
+                final int[] nearestCells = new int[tiles * cellCount];
+                parallel(tiles, new RangeTask() {
+                    @Override
+                    void run(int from, int to) {
+                        int[] result = new int[cellCount];
+                        for (int tile = from; tile < to; tile++) {
+                            cellIndex.findNearest(tileColors[tile], cellCount, 0, cellCount, ALL, result);
+                            System.arraycopy(result, 0, nearestCells, tile * cellCount, cellCount);
+                        }
+                    }
+                });
+                for (int i = 0; i < nearestCells.length; i++) {
+                    addCandidate(nearestCells[i], i / cellCount);
+                }
+            }
+        }
+
+        /**
+         * Makes a tile a candidate of a cell, unless it is one already.
+         */
+        private void addCandidate(int cell, int tile) {
+            int[] candidates = cellCandidates[cell];
+            int count = cellCandidateCounts[cell];
+            for (int i = 0; i < count; i++) {
+                if (candidates[i] == tile) {
+                    return;
+                }
+            }
+            cellCandidates[cell] = add(candidates, count, tile);
+            cellCandidateCounts[cell]++;
+            tileCandidates[tile] = add(tileCandidates[tile], tileCandidateCounts[tile], cell);
+            tileDistances[tile] = add(tileDistances[tile], tileCandidateCounts[tile],
+                    distance(cellColors[cell], tileColors[tile]));
+            tileCandidateCounts[tile]++;
+        }
+
+        /**
+         * Starts a phase by releasing the slots of all cells whose slot is no longer within epsilon of their best
+         * one. The other assignments stay, which saves most of the bids of a fresh start.
+         * @return returns the number of unassigned cells, which are written to unassigned.
+         */
+        private int release(int[] unassigned) {
+            final boolean[] keep = new boolean[cells];
+            final int[] bestTiles = new int[cells];
+            parallel(cells, new RangeTask() {
+                @Override
+                void run(int from, int to) {
+                    long[] values = new long[2];
+                    for (int cell = from; cell < to; cell++) {
+                        bestTiles[cell] = -1;
+                        if (assigned[cell] >= 0) {
+                            bestTiles[cell] = findBestTile(cell, values);
+                            keep[cell] = costs[cell] <= values[0] + epsilon;
+                        }
+                    }
+                }
+            });
+            int count = 0;
+            for (int cell = 0; cell < cells; cell++) {
+                if (bestTiles[cell] >= 0) {
+                    addCandidate(cell, bestTiles[cell]);
+                }
+                if (!keep[cell]) {
+                    if (assigned[cell] >= 0) {
+                        owners[assigned[cell]] = -1;
+                        unassign(cell);
+                    }
+                    unassigned[count++] = cell;
+                }
+            }
+            return count;
+        }
+
+        private void computeBids(final int[] unassigned, int count) {
+            parallel(count, new RangeTask() {
+                @Override
+                void run(int from, int to) {
+                    long[] values = new long[2];
+                    for (int i = from; i < to; i++) {
+                        computeBid(unassigned[i], values);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Finds the best slot of a cell and bids its margin over the second best plus epsilon.
+         */
+        private void computeBid(int cell, long[] values) {
+            Counter.AUCTION_BIDS.increment();
+            int slot = cheapest[findBestTile(cell, values)];
+            bidSlots[cell] = slot;
+            bids[cell] = prices[slot] + Math.min(values[1] - values[0], MAX_COST) + epsilon;
+        }
+
+        /**
+         * Finds the candidate tile with the lowest distance plus price for a cell, and the second lowest value of
+         * any candidate slot. A cell whose candidates all cost more than the cheapest slot of any tile could is
+         * left without a tile, it searches all tiles instead and takes the best one as another candidate once its
+         * bid is placed.
+         * @return returns the tile, the values are written to values.
+         */
+        private int findBestTile(int cell, long[] values) {
+            long best = NONE;
+            long second = NONE;
+            int bestTile = -1;
+            int color = cellColors[cell];
+            int[] candidates = cellCandidates[cell];
+            for (int i = 0; i < cellCandidateCounts[cell]; i++) {
+                int tile = candidates[i];
+                int cost = distance(color, tileColors[tile]);
+                long value = cost + firstPrices[tile];
+                if (value < best) {
+                    second = best;
+                    best = value;
+                    bestTile = tile;
+                } else if (value < second) {
+                    second = value;
+                }
+                second = Math.min(second, cost + secondPrices[tile]);
+            }
+            if (best > MAX_COST + tileWeights.getMinimum()) {
+                Counter.AUCTION_DENSE_SEARCHES.increment();
+                return tileIndex.findLightest(color, tileWeights, values);
+            }
+            values[0] = best;
+            values[1] = second;
+            return bestTile;
+        }
+
+        /**
+         * Gives a tile whose required slot keeps losing its cells more candidates: {@value #WIDENING} times as many
+         * nearest cells, or all cells once it has {@value #MAX_CANDIDATES}.
+         */
+        private void widenTile(int tile) {
+            Counter.AUCTION_WIDENINGS.increment();
+            int count = tileCandidateCounts[tile] * WIDENING;
+            if (count > MAX_CANDIDATES || count >= cells) {
+                denseTiles[tile] = true;
+                if (cellWeights == null) {
+                    cellWeights = cellIndex.createWeights();
+                    for (int cell = 0; cell < cells; cell++) {
+                        updateCell(cell);
+                    }
+                }
+                return;
+            }
+            int[] found = new int[count];
+            count = cellIndex.findNearest(tileColors[tile], count, 0, count, ALL, found);
+            for (int i = 0; i < count; i++) {
+                addCandidate(found[i], tile);
+            }
+        }
+
+        /**
+         * Places the bids in cell order. A bid for a slot whose price was raised in this round is computed again
+         * first. Bids for other slots stay valid: prices only rise, so their slot is still the best one and the
+         * margin over the second best can only have grown.
+         * @return returns the number of cells that lost their slot, which are written to next.
+         */
+        private int placeBids(int[] unassigned, int count, int[] next) {
+            round++;
+            long[] values = new long[2];
+            int nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                int cell = unassigned[i];
+                if (takenInRound[bidSlots[cell]] == round) {
+                    computeBid(cell, values);
+                }
+                int slot = bidSlots[cell];
+                addCandidate(cell, slot / maxUses);
+                int previous = owners[slot];
+                if (previous >= 0) {
+                    unassign(previous);
+                    next[nextCount++] = previous;
+                }
+                prices[slot] = bids[cell];
+                takenInRound[slot] = round;
+                assign(cell, slot);
+                updateTile(slot / maxUses);
+            }
+            return nextCount;
+        }
+
+        /**
+         * Lets every free slot that is required or priced above zero lower its price until it takes over a cell
+         * or, if it is not required, no cell gains more than epsilon by moving to it at price zero. The slot a
+         * cell leaves is handled the same way, so this ends with all required slots taken and all free slots at
+         * price zero. No cell loses its slot, and every cell stays within epsilon of its best slot.
+         */
+        private void reverse() {
+            int[] pending = new int[slots];
+            int[] next = new int[slots];
+            int count = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (needsCell(slot)) {
+                    pending[count++] = slot;
+                }
+            }
+            while (count > 0) {
+                computeOffers(pending, count);
+                count = placeOffers(pending, count, next);
+                int[] swap = pending;
+                pending = next;
+                next = swap;
+            }
+        }
+
+        private void computeOffers(final int[] pending, int count) {
+            parallel(count, new RangeTask() {
+                @Override
+                void run(int from, int to) {
+                    long[] values = new long[2];
+                    for (int i = from; i < to; i++) {
+                        computeOffer(pending[i], values);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Finds the candidate cell that gains the most by moving to a free slot, and the price that leaves every
+         * other candidate within epsilon of it.
+         */
+        private void computeOffer(int slot, long[] values) {
+            Counter.AUCTION_BIDS.increment();
+            int tile = slot / maxUses;
+            boolean required = slot % maxUses < requiredUses;
+            //No cell gains more than epsilon over another slot of the tile, so one at price zero settles it
+            long otherPrice = cheapest[tile] == slot ? secondPrices[tile] : firstPrices[tile];
+            int cell = -1;
+            if (required || otherPrice > 0) {
+                //The gain of a cell is its current cost minus its distance to the tile. Optional slots only need
+                //the cells gaining more than epsilon, everybody else is fine with them at price zero.
+                cell = findLightestCell(tile, required ? NONE : -epsilon, values);
+            }
+            offerCells[slot] = cell;
+            if (cell >= 0) {
+                long secondGain = values[1] >= NONE ? -values[0] - MAX_COST : -values[1];
+                offers[slot] = required ? secondGain - epsilon : Math.max(0, secondGain - epsilon);
+            }
+        }
+
+        /**
+         * Finds the candidate cell of a tile with the lowest distance minus current cost below a limit, and the
+         * second lowest value, like {@link KdTreeColorIndex#findLightest(int, KdTreeColorIndex.Weights, long,
+         * long[])} does for all cells. Unassigned cells cost minus {@link #NONE}, which puts them above every
+         * limit.
+         * @return returns the cell, or -1 if no value is below the limit.
+         */
+        private int findLightestCell(int tile, long limit, long[] values) {
+            if (denseTiles[tile]) {
+                Counter.AUCTION_DENSE_SEARCHES.increment();
+                return cellIndex.findLightest(tileColors[tile], cellWeights, limit, values);
+            }
+            long best = limit;
+            long second = limit;
+            int bestCell = -1;
+            int[] candidates = tileCandidates[tile];
+            int[] distances = tileDistances[tile];
+            for (int i = 0; i < tileCandidateCounts[tile]; i++) {
+                int cell = candidates[i];
+                long value = distances[i] - costs[cell];
+                if (value >= limit) {
+                    continue;
+                }
+                if (value < best) {
+                    second = best;
+                    best = value;
+                    bestCell = cell;
+                } else if (value < second) {
+                    second = value;
+                }
+            }
+            values[0] = best;
+            values[1] = second;
+            return bestCell;
+        }
+
+        /**
+         * Places the offers in slot order. An offer to a cell that already moved in this round is computed again
+         * first. Offers to other cells stay valid: cells only move to lower their cost, so the gains of all cells
+         * can only have fallen. A required slot whose price keeps falling by more than any cost a cell could have
+         * fights over too few cells, so its tile widens its candidates each time.
+         * @return returns the number of slots that were left priced above zero or required, which are written to
+         *     next.
+         */
+        private int placeOffers(int[] pending, int count, int[] next) {
+            round++;
+            long[] values = new long[2];
+            int nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = pending[i];
+                if (offerCells[slot] >= 0 && movedInRound[offerCells[slot]] == round) {
+                    computeOffer(slot, values);
+                }
+                while (offerCells[slot] < 0 && slot % maxUses < requiredUses) {
+                    widenTile(slot / maxUses);
+                    computeOffer(slot, values);
+                }
+                int cell = offerCells[slot];
+                if (cell < 0) {
+                    prices[slot] = 0;
+                } else {
+                    int left = assigned[cell];
+                    owners[left] = -1;
+                    prices[slot] = offers[slot];
+                    assign(cell, slot);
+                    movedInRound[cell] = round;
+                    if (needsCell(left)) {
+                        next[nextCount++] = left;
+                    }
+                    int tile = slot / maxUses;
+                    if (prices[slot] < widenPrices[tile] && !denseTiles[tile]) {
+                        widenTile(tile);
+                        widenPrices[tile] = prices[slot] - MAX_COST;
+                    }
+                }
+                updateTile(slot / maxUses);
+            }
+            return nextCount;
+        }
+
+        private boolean needsCell(int slot) {
+            return owners[slot] < 0 && (slot % maxUses < requiredUses || prices[slot] > 0);
+        }
+
+        private void assign(int cell, int slot) {
+            owners[slot] = cell;
+            assigned[cell] = slot;
+            costs[cell] = cost(cell, slot);
+            updateCell(cell);
+        }
+
+        private void unassign(int cell) {
+            assigned[cell] = -1;
+            costs[cell] = -NONE;
+            updateCell(cell);
+        }
+
+        private void updateCell(int cell) {
+            if (cellWeights != null) {
+                long weight = assigned[cell] < 0 ? NONE : -costs[cell];
+                cellWeights.set(cell, weight, weight);
+            }
+        }
+
+        private long cost(int cell, int slot) {
+            return distance(cellColors[cell], tileColors[slot / maxUses]) + prices[slot];
+        }
+
+        private void updateTile(int tile) {
+            long first = NONE;
+            long second = NONE;
+            for (int slot = tile * maxUses; slot < (tile + 1) * maxUses; slot++) {
+                if (prices[slot] < first) {
+                    second = first;
+                    first = prices[slot];
+                    cheapest[tile] = slot;
+                } else if (prices[slot] < second) {
+                    second = prices[slot];
+                }
+            }
+            firstPrices[tile] = first;
+            secondPrices[tile] = second;
+            tileWeights.set(tile, first, second);
+        }
+
+        private void parallel(int count, final RangeTask task) {
+            if (count < MIN_PARALLEL_BIDS || numThreads == 1) {
+                task.run(0, count);
+                return;
+            }
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                final int from = (int) ((long) count * i / numThreads);
+                final int to = (int) ((long) count * (i + 1) / numThreads);
+                workers.add(executor.submit(Metrics.bind(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(from, to);
+                    }
+                })));
+            }
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while assigning tiles", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("assigning tiles failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Appends a value to a list filled up to count, growing it by half if it is full.
+     * @return returns the list holding the value.
+     */
+    private static int[] add(int[] list, int count, int value) {
+        if (count == list.length) {
+            list = Arrays.copyOf(list, Math.max(4, count + (count >> 1)));
+        }
+        list[count] = value;
+        return list;
+    }
+
+    private static int distance(int first, int second) {
+        int sum = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int d = ((first >>> shift) & 0xFF) - ((second >>> shift) & 0xFF);
+            sum += d * d;
+        }
+        return sum;
+    }
+}
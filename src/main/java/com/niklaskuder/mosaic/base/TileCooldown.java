@@ -0,0 +1,54 @@
+package com.niklaskuder.mosaic.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps recently used tiles from being used again for the next few cells.
+ * A global counter is advanced once per rendered cell, and every tile stores the counter value from which on it
+ * may be used again. Checking and updating a tile are single atomic reads and writes, without any locking.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileCooldown {
+    private final AtomicLong tick = new AtomicLong();
+    private final AtomicLongArray enabledAt;
+    private final int spacing;
+
+    /**
+     * @param tiles the number of tiles, which are addressed by their index.
+     * @param spacing the number of cells (including the one it is used for) a tile stays disabled after use.
+     */
+    public TileCooldown(int tiles, int spacing) {
+        this.enabledAt = new AtomicLongArray(tiles);
+        this.spacing = spacing;
+    }
+
+    /**
+     * @param tile the index of the tile.
+     * @return returns true if the tile may be used for the current cell.
+     */
+    public boolean isEnabled(int tile) {
+        return enabledAt.get(tile) <= tick.get();
+    }
+
+    /**
+     * Disables a tile for the current cell and the following cells.
+     * @param tile the index of the tile.
+     */
+    public void markUsed(int tile) {
+        enabledAt.set(tile, tick.get() + spacing);
+    }
+
+    /**
+     * Moves on to the next cell.
+     */
+    public void advance() {
+        tick.incrementAndGet();
+    }
+
+    public int size() {
+        return enabledAt.length();
+    }
+}
@@ -0,0 +1,135 @@
+package com.niklaskuder.mosaic.daemon;
+
+import com.niklaskuder.mosaic.library.TileLibrary;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of loaded tile libraries and updates the libraries when files are added, changed or
+ * removed. Events are collected until the directories were quiet for a moment, so copying many files at once
+ * leads to a single update.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+final class LibraryWatcher implements Runnable, Closeable {
+    private static final long QUIET_MILLIS = 500;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Map<Path, List<TileLibrary>> libraries = new HashMap<>();
+
+    LibraryWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts watching the directory of a library.
+     * @param library the library, whose directory is already absolute and normalized.
+     * @throws IOException if the directory cannot be watched.
+     */
+    void register(TileLibrary library) throws IOException {
+        Path directory = library.getDirectory().toPath();
+        synchronized (this) {
+            List<TileLibrary> watched = libraries.get(directory);
+            if (watched == null) {
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, directory);
+                watched = new ArrayList<>();
+                libraries.put(directory, watched);
+            }
+            watched.add(library);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Map<Path, Set<File>> changes = new LinkedHashMap<>();
+                Set<Path> overflows = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    collect(key, changes, overflows);
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                apply(changes, overflows);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed, stop watching
+        }
+    }
+
+    private synchronized void collect(WatchKey key, Map<Path, Set<File>> changes, Set<Path> overflows) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflows.add(directory);
+                continue;
+            }
+            File file = directory.resolve((Path) event.context()).toFile();
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            Set<File> files = changes.get(directory);
+            if (files == null) {
+                files = new LinkedHashSet<>();
+                changes.put(directory, files);
+            }
+            files.add(file);
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void apply(Map<Path, Set<File>> changes, Set<Path> overflows) {
+        Set<Path> directories = new LinkedHashSet<>(changes.keySet());
+        directories.addAll(overflows);
+        for (Path directory : directories) {
+            List<TileLibrary> watched;
+            synchronized (this) {
+                watched = new ArrayList<>(libraries.get(directory));
+            }
+            for (TileLibrary library : watched) {
+                try {
+                    if (overflows.contains(directory)) {
+                        library.load();
+                    } else {
+                        library.update(changes.get(directory));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Could not update tile library " + directory + ": " + e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,362 @@
+package com.niklaskuder.mosaic.daemon;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.library.TileLibrary;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+import com.niklaskuder.mosaic.metrics.RunMetrics;
+import com.niklaskuder.mosaic.metrics.RunReport;
+import com.niklaskuder.mosaic.output.OutputFormat;
+import com.niklaskuder.mosaic.rectangle.AsyncMosaicEasel;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running mosaic server. Tile libraries are loaded on first use and then kept in memory, together with their
+ * match indexes, and updated when their directories change. Jobs are taken from a local socket and from spool
+ * directories and rendered concurrently.
+ * <p>
+ * Admission is bounded: at most the given number of jobs render at the same time and a limited number of further
+ * jobs wait for a free slot. Socket clients get a busy answer beyond that, spooled jobs stay in their directory.
+ * <p>
+ * The socket protocol is line based. A client sends one job line (see {@link MosaicJob}) and gets one answer line
+ * once the job is finished: {@code DONE <output>}, {@code ERROR <message>} or {@code BUSY}. Jobs of one connection
+ * are rendered one after another, clients open several connections to render jobs concurrently.
+ * <p>
+ * Jobs read and write their images on their own threads, but the cells of all jobs are rendered on one shared
+ * pool with a thread per core, so concurrent jobs never oversubscribe the cores.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class MosaicDaemon implements Closeable {
+    private final AsyncMosaicEasel easel;
+    private final ExecutorService cells;
+    private final RectangleMosaicArtist.Matching matching;
+    private final int searchEffort;
+    private final int threadsPerJob;
+    private final ExecutorService jobs;
+    private final Semaphore admission;
+    private final Map<String, FutureTask<TileLibrary>> libraries = new HashMap<>();
+    private final LibraryWatcher watcher;
+    private final List<Closeable> sources = new ArrayList<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    /**
+     * @param maxJobs the number of jobs rendered at the same time.
+     * @param maxWaitingJobs the number of further jobs accepted while all render slots are in use.
+     * @param threadsPerJob the maximum number of threads rendering the cells of one job, and the number of threads
+     *     compressing its output.
+     * @param matching how tiles are matched to regions.
+     * @param searchEffort the search effort when matching signatures.
+     * @throws IOException if the tile directories cannot be watched.
+     */
+    public MosaicDaemon(int maxJobs, int maxWaitingJobs, int threadsPerJob, RectangleMosaicArtist.Matching matching,
+                        int searchEffort) throws IOException {
+        if (maxJobs <= 0 || maxWaitingJobs < 0 || threadsPerJob <= 0) {
+            throw new IllegalArgumentException("maxJobs and threadsPerJob must be > 0, maxWaitingJobs >= 0");
+        }
+        this.cells = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.easel = new AsyncMosaicEasel(cells, threadsPerJob, CellScheduler.Order.ROWS);
+        this.matching = matching;
+        this.searchEffort = searchEffort;
+        this.threadsPerJob = threadsPerJob;
+        this.jobs = Executors.newFixedThreadPool(maxJobs);
+        this.admission = new Semaphore(maxJobs + maxWaitingJobs);
+        this.watcher = new LibraryWatcher();
+        startThread(watcher, "library-watcher", true);
+    }
+
+    private static void startThread(Runnable runnable, String name, boolean daemon) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(daemon);
+        thread.start();
+    }
+
+    /**
+     * Returns the library of a tile directory and tile size, loading it if this is the first request for it.
+     * Concurrent requests for the same library wait for one load.
+     * @param directory the tile directory.
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     * @return returns the loaded library.
+     * @throws IOException if the library cannot be loaded.
+     */
+    public TileLibrary getLibrary(final File directory, final int tileWidth, final int tileHeight)
+            throws IOException {
+        //The library and its watcher both use this form, so that the files of change events match its keys
+        final File absolute = directory.toPath().toAbsolutePath().normalize().toFile();
+        if (!absolute.isDirectory()) {
+            throw new IOException("not a tile directory: " + directory);
+        }
+        String key = absolute + "\t" + tileWidth + "x" + tileHeight;
+        FutureTask<TileLibrary> load;
+        boolean loader = false;
+        synchronized (libraries) {
+            load = libraries.get(key);
+            if (load == null) {
+                load = new FutureTask<>(new Callable<TileLibrary>() {
+                    @Override
+                    public TileLibrary call() throws IOException {
+                        System.out.println("Loading tile library " + absolute + " (" + tileWidth + "x"
+                                + tileHeight + ")");
+                        TileLibrary library = new TileLibrary(absolute, tileWidth, tileHeight, matching,
+                                searchEffort);
+                        library.load();
+                        watcher.register(library);
+                        return library;
+                    }
+                });
+                libraries.put(key, load);
+                loader = true;
+            }
+        }
+        if (loader) {
+            load.run();
+        }
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading " + directory, e);
+        } catch (ExecutionException e) {
+            synchronized (libraries) {
+                libraries.remove(key);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("loading " + directory + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Submits a job.
+     * @param job the job.
+     * @return returns the future of the written output file.
+     * @throws RejectedExecutionException if no more jobs are accepted at the moment.
+     */
+    public Future<File> submit(MosaicJob job) {
+        FutureTask<File> task = new FutureTask<>(newTask(job));
+        try {
+            admit(task, false);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return task;
+    }
+
+    /**
+     * Admits a task, either waiting for a free slot or rejecting it if there is none.
+     * @throws RejectedExecutionException if the task should not wait and there is no free slot.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void admit(final FutureTask<File> task, boolean wait) throws InterruptedException {
+        if (wait) {
+            admission.acquire();
+        } else if (!admission.tryAcquire()) {
+            throw new RejectedExecutionException("too many jobs");
+        }
+        try {
+            jobs.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        admission.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return returns a task that renders the job and returns the output file.
+     */
+    Callable<File> newTask(final MosaicJob job) {
+        return new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return render(job);
+            }
+        };
+    }
+
+    private File render(MosaicJob job) throws IOException {
+        RunReport report = new RunReport();
+        RunMetrics previous = Metrics.enter(report.getMetrics());
+        try {
+            return render(job, report);
+        } finally {
+            Metrics.exit(previous);
+        }
+    }
+
+    private File render(MosaicJob job, RunReport report) throws IOException {
+        TileLibrary library = getLibrary(job.getTileDirectory(), job.getTileWidth(), job.getTileHeight());
+        PhaseEvent event = Metrics.begin(Phase.READ_IMAGE);
+        BufferedImage input = ImageIO.read(job.getInput());
+        Metrics.end(event);
+        if (input == null) {
+            throw new IOException("not a readable image: " + job.getInput());
+        }
+        if (job.getTileWidth() > input.getWidth() || job.getTileHeight() > input.getHeight()) {
+            throw new IllegalArgumentException("tiles are larger than the input image");
+        }
+        long start = System.currentTimeMillis();
+        BufferedImage output = easel.createMosaic(input, library.newArtist());
+        event = Metrics.begin(Phase.ENCODE);
+        OutputFormat.PNG.write(new BufferedArtImage(output), job.getOutput(), OutputFormat.DEFAULT_COMPRESSION_LEVEL,
+                threadsPerJob);
+        Metrics.end(event);
+        report.put("input", job.getInput().getAbsolutePath())
+                .put("output", job.getOutput().getAbsolutePath())
+                .put("width", input.getWidth())
+                .put("height", input.getHeight())
+                .put("tileWidth", job.getTileWidth())
+                .put("tileHeight", job.getTileHeight())
+                .put("tiles", library.size())
+                .write(RunReport.reportFile(job.getOutput()));
+        System.out.println("Finished " + job.getOutput() + " in " + (System.currentTimeMillis() - start) + " ms");
+        return job.getOutput();
+    }
+
+    /**
+     * Starts taking jobs from a socket bound to the loopback interface.
+     * @param port the port.
+     * @throws IOException if the socket cannot be opened.
+     */
+    public void listen(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        synchronized (sources) {
+            sources.add(server);
+        }
+        System.out.println("Listening on " + server.getLocalSocketAddress());
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        connections.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!server.isClosed()) {
+                            System.err.println("Could not accept connection: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "mosaic-listener", false);
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), "UTF-8"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                out.println(answer(line));
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Connection failed: " + e.getMessage());
+        }
+    }
+
+    private String answer(String line) {
+        try {
+            return "DONE " + submit(MosaicJob.parse(line)).get();
+        } catch (RejectedExecutionException e) {
+            return "BUSY";
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage();
+        } catch (ExecutionException e) {
+            return "ERROR " + e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR interrupted";
+        }
+    }
+
+    /**
+     * Starts taking jobs from a spool directory, see {@link SpoolDirectory}.
+     * @param directory the spool directory.
+     * @throws IOException if the directory cannot be watched.
+     */
+    public void watchSpool(File directory) throws IOException {
+        SpoolDirectory spool = new SpoolDirectory(directory, this);
+        synchronized (sources) {
+            sources.add(spool);
+        }
+        System.out.println("Watching spool directory " + directory.getAbsolutePath());
+        startThread(spool, "mosaic-spool", false);
+    }
+
+    /**
+     * Stops taking jobs. Jobs already admitted are finished.
+     * @throws IOException if a job source cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (sources) {
+            for (Closeable source : sources) {
+                source.close();
+            }
+            sources.clear();
+        }
+        connections.shutdown();
+        jobs.shutdown();
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    cells.shutdown();
+                }
+            }
+        }, "mosaic-shutdown", false);
+        watcher.close();
+    }
+}
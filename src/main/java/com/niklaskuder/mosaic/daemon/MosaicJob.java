@@ -0,0 +1,82 @@
+package com.niklaskuder.mosaic.daemon;
+
+import java.io.File;
+
+/**
+ * A mosaic to be rendered by the daemon. Jobs are written as one line of tab separated fields:
+ * input image, output image, tile directory, tile width and tile height.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class MosaicJob {
+    private static final int FIELDS = 5;
+
+    private final File input;
+    private final File output;
+    private final File tileDirectory;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    /**
+     * @param input the input image.
+     * @param output the png file the mosaic is written to.
+     * @param tileDirectory the tile directory.
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     */
+    public MosaicJob(File input, File output, File tileDirectory, int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("tile dimensions must be > 0");
+        }
+        this.input = input;
+        this.output = output;
+        this.tileDirectory = tileDirectory;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    /**
+     * Parses a job line.
+     * @param line the line.
+     * @return returns the job.
+     * @throws IllegalArgumentException if the line is not a valid job.
+     */
+    public static MosaicJob parse(String line) {
+        String[] fields = line.trim().split("\t");
+        if (fields.length != FIELDS) {
+            throw new IllegalArgumentException("expected input, output, tiles, width and height separated by tabs");
+        }
+        try {
+            return new MosaicJob(new File(fields[0]), new File(fields[1]), new File(fields[2]),
+                    Integer.parseInt(fields[3].trim()), Integer.parseInt(fields[4].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("tile dimensions must be numbers", e);
+        }
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public File getTileDirectory() {
+        return tileDirectory;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public String toString() {
+        return input + "\t" + output + "\t" + tileDirectory + "\t" + tileWidth + "\t" + tileHeight;
+    }
+}
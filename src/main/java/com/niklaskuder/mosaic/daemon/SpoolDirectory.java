@@ -0,0 +1,130 @@
+package com.niklaskuder.mosaic.daemon;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Directory the daemon takes jobs from. Every file ending in {@value #JOB_SUFFIX} holds one job line (see
+ * {@link MosaicJob}) and should be moved into the directory once it is complete. While a job is rendered its
+ * file is renamed to end in {@value #RUNNING_SUFFIX}, afterwards to {@value #DONE_SUFFIX} or to
+ * {@value #FAILED_SUFFIX}, with the error appended. Jobs wait in the directory while the daemon is busy.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+final class SpoolDirectory implements Runnable, Closeable {
+    static final String JOB_SUFFIX = ".job";
+    static final String RUNNING_SUFFIX = ".running";
+    static final String DONE_SUFFIX = ".done";
+    static final String FAILED_SUFFIX = ".failed";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final MosaicDaemon daemon;
+    private final WatchService watchService;
+
+    SpoolDirectory(File directory, MosaicDaemon daemon) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException("not a directory: " + directory);
+        }
+        this.directory = directory;
+        this.daemon = daemon;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // Always scan the whole directory, that also covers lost events
+                takeJobs();
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed, stop taking jobs
+        }
+    }
+
+    private void takeJobs() throws InterruptedException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(JOB_SUFFIX)) {
+                take(file);
+            }
+        }
+    }
+
+    private void take(File file) throws InterruptedException {
+        final File running = new File(directory, file.getName() + RUNNING_SUFFIX);
+        if (!file.renameTo(running)) {
+            return;
+        }
+        final String name = file.getName();
+        MosaicJob job;
+        try {
+            List<String> lines = Files.readAllLines(running.toPath(), UTF_8);
+            job = MosaicJob.parse(lines.isEmpty() ? "" : lines.get(0));
+        } catch (IOException | IllegalArgumentException e) {
+            finish(running, name, e);
+            return;
+        }
+        System.out.println("Spooled job " + name + ": " + job);
+        daemon.admit(new FutureTask<File>(daemon.newTask(job)) {
+            @Override
+            protected void done() {
+                Exception error = null;
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } catch (Exception e) {
+                    error = e;
+                }
+                finish(running, name, error);
+            }
+        }, true);
+    }
+
+    private void finish(File running, String name, Exception error) {
+        File target = new File(directory, name + (error == null ? DONE_SUFFIX : FAILED_SUFFIX));
+        if (error != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(running, true), true, "UTF-8")) {
+                out.println();
+                error.printStackTrace(out);
+            } catch (IOException e) {
+                System.err.println("Could not record failure of " + name + ": " + e.getMessage());
+            }
+        }
+        if (!running.renameTo(target)) {
+            System.err.println("Could not rename " + running + " to " + target);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,48 @@
+package com.niklaskuder.mosaic.hexagon;
+
+import com.niklaskuder.mosaic.base.AbstractCalculator;
+import com.niklaskuder.mosaic.base.ShapeMask;
+
+/**
+ * Calculator for hexagons with a vertex at the center of the top and the bottom edge of their bounding box and
+ * vertical sides. The slanted edges span the top and the bottom quarter of the height. A pixel belongs to the
+ * hexagon if its center lies inside, or on the left edge, so that rows of hexagons, every other row shifted by half
+ * the width and every row three quarters of the height below the one before, tile the plane without gaps or
+ * overlaps.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class HexagonCalculator extends AbstractCalculator {
+    private static final HexagonCalculator INSTANCE = new HexagonCalculator();
+
+    private HexagonCalculator() {
+
+    }
+
+    public static HexagonCalculator getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected ShapeMask createMask(int width, int height) {
+        int[] starts = new int[height];
+        int[] lengths = new int[height];
+        int center = width / 2;
+        int quarter = height / 4;
+        for (int y = 0; y < height; y++) {
+            int row = y < quarter ? y : height - 1 - y;
+            if (row >= quarter) {
+                lengths[y] = width;
+                continue;
+            }
+            //Half the width of the hexagon at the center of the row is width * (2 * row + 1) / height
+            int halfWidth = 2 * width * (2 * row + 1);
+            int start = center - Math.floorDiv(halfWidth + height, 2 * height);
+            int end = center - Math.floorDiv(height - halfWidth, 2 * height);
+            starts[y] = start;
+            lengths[y] = Math.max(0, end - start);
+        }
+        return new ShapeMask(width, height, starts, lengths);
+    }
+}
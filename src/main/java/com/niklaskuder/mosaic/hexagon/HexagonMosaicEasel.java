@@ -0,0 +1,84 @@
+package com.niklaskuder.mosaic.hexagon;
+
+import com.niklaskuder.mosaic.base.AbstractCalculator;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.MaskedMosaicEasel;
+import com.niklaskuder.mosaic.base.MaskedMosaicShape;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Easel covering the image with rows of hexagons of the tile size. Every row lies three quarters of the tile height
+ * below the one before and every other row is shifted by half the tile width. The first row and the first hexagon
+ * of every row start outside of the image, so that the border is covered as well.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class HexagonMosaicEasel extends MaskedMosaicEasel {
+
+    /**
+     * @param numThreads the number of worker threads.
+     */
+    public HexagonMosaicEasel(int numThreads) {
+        super(numThreads);
+    }
+
+    @Override
+    protected void checkTileSize(int tileWidth, int tileHeight) {
+        if (tileWidth % 2 != 0 || tileHeight % 4 != 0) {
+            throw new IllegalArgumentException("the width of hexagonal tiles must be even and the height a multiple"
+                    + " of 4");
+        }
+    }
+
+    @Override
+    protected CellScheduler createScheduler(int width, int height, int tileWidth, int tileHeight) {
+        //Column c and row r hold the hexagon starting at ((c - 1) * tileWidth, (r - 1) * 3 * tileHeight / 4)
+        return new CellScheduler(width + tileWidth, height + getRowHeight(tileHeight), tileWidth,
+                getRowHeight(tileHeight), CellScheduler.Order.ROWS);
+    }
+
+    @Override
+    protected int getCellX(int column, int row, int tileWidth) {
+        return (column - 1) * tileWidth + (row % 2 == 0 ? tileWidth / 2 : 0);
+    }
+
+    @Override
+    protected int getCellY(int row, int tileHeight) {
+        return (row - 1) * getRowHeight(tileHeight);
+    }
+
+    private static int getRowHeight(int tileHeight) {
+        return tileHeight / 4 * 3;
+    }
+
+    @Override
+    protected int getOrientations() {
+        return 1;
+    }
+
+    @Override
+    protected int getOrientation(int column, int row) {
+        return 0;
+    }
+
+    @Override
+    protected AbstractCalculator getCalculator(int orientation) {
+        return HexagonCalculator.getInstance();
+    }
+
+    @Override
+    protected MaskedMosaicShape createShape(BufferedImage thumbnail, int orientation) {
+        return new HexagonMosaicShape(thumbnail);
+    }
+
+    @Override
+    protected MosaicArtist createArtist(List<MosaicShape> shapes) {
+        return new RectangleMosaicArtist(shapes);
+    }
+}
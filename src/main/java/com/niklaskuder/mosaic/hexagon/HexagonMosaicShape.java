@@ -0,0 +1,31 @@
+package com.niklaskuder.mosaic.hexagon;
+
+import com.niklaskuder.mosaic.base.ImageUtils;
+import com.niklaskuder.mosaic.base.MaskedMosaicShape;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Hexagonal tile, see {@link HexagonCalculator} for the pixels it covers.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class HexagonMosaicShape extends MaskedMosaicShape {
+
+    /**
+     * @param image the image of the tile.
+     * @param w the width of the tile.
+     * @param h the height of the tile.
+     */
+    public HexagonMosaicShape(BufferedImage image, int w, int h) {
+        this(ImageUtils.scaleAndCrop(image, w, h));
+    }
+
+    /**
+     * @param thumbnail the thumbnail, already scaled and cropped to the tile size.
+     */
+    public HexagonMosaicShape(BufferedImage thumbnail) {
+        super(thumbnail, HexagonCalculator.getInstance());
+    }
+}
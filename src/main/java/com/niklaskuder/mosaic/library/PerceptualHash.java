@@ -0,0 +1,94 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.ImageUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * 64 bit perceptual hash (pHash) of an image. The image is scaled to 32x32 gray values, transformed with a
+ * discrete cosine transform, and every one of the 8x8 lowest frequencies sets its bit if it is above their
+ * median. Images that look alike have hashes with a small Hamming distance, no matter their size or slight
+ * changes in brightness, sharpness or compression.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class PerceptualHash {
+    private static final int SIZE = 32;
+    private static final int FREQUENCIES = 8;
+    /**
+     * COSINES[u * SIZE + x] = cos((2x + 1) u pi / 2 SIZE).
+     */
+    private static final double[] COSINES = new double[FREQUENCIES * SIZE];
+
+    static {
+        for (int u = 0; u < FREQUENCIES; u++) {
+            for (int x = 0; x < SIZE; x++) {
+                COSINES[u * SIZE + x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * SIZE));
+            }
+        }
+    }
+
+    private PerceptualHash() {
+        throw new IllegalAccessError();
+    }
+
+    /**
+     * @param image the image.
+     * @return returns the hash of the image.
+     */
+    public static long compute(BufferedImage image) {
+        BufferedArtImage scaled = new BufferedArtImage(ImageUtils.scaleAndCrop(image, SIZE, SIZE));
+        int[] data = scaled.getData();
+        double[] gray = new double[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            int index = scaled.getIndex(0, y, SIZE);
+            for (int x = 0; x < SIZE; x++) {
+                int color = data[index + x];
+                gray[y * SIZE + x] = 0.299 * ((color >> 16) & 0xFF) + 0.587 * ((color >> 8) & 0xFF)
+                        + 0.114 * (color & 0xFF);
+            }
+        }
+        //Separable transform: rows first, then the columns of the low frequencies only
+        double[] rows = new double[SIZE * FREQUENCIES];
+        for (int y = 0; y < SIZE; y++) {
+            for (int u = 0; u < FREQUENCIES; u++) {
+                double sum = 0;
+                for (int x = 0; x < SIZE; x++) {
+                    sum += gray[y * SIZE + x] * COSINES[u * SIZE + x];
+                }
+                rows[y * FREQUENCIES + u] = sum;
+            }
+        }
+        double[] coefficients = new double[FREQUENCIES * FREQUENCIES];
+        for (int v = 0; v < FREQUENCIES; v++) {
+            for (int u = 0; u < FREQUENCIES; u++) {
+                double sum = 0;
+                for (int y = 0; y < SIZE; y++) {
+                    sum += rows[y * FREQUENCIES + u] * COSINES[v * SIZE + y];
+                }
+                coefficients[v * FREQUENCIES + u] = sum;
+            }
+        }
+        //The DC coefficient only reflects the brightness and would skew the median
+        double[] sorted = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+        Arrays.sort(sorted);
+        double median = sorted[sorted.length / 2];
+        long hash = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            if (coefficients[i] > median) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return returns the number of bits two hashes differ in.
+     */
+    public static int distance(long first, long second) {
+        return Long.bitCount(first ^ second);
+    }
+}
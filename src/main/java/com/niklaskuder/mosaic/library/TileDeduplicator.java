@@ -0,0 +1,320 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.KdTreeColorIndex;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.NearestColorIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Removes near-duplicate tiles, like burst shots, from a library. Tiles whose {@link PerceptualHash perceptual
+ * hashes} differ in at most the given number of bits are clustered, and only a few representatives of every
+ * cluster are kept.
+ * <p>
+ * Similar hashes are found with multi-index hashing: the hashes are split into {@value #CHUNKS} chunks of
+ * {@value #CHUNK_BITS} bits, each indexed on its own. Two hashes within distance d agree up to d / {@value #CHUNKS}
+ * bits in at least one chunk, so it suffices to look up the chunk values within that distance in every index.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileDeduplicator {
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_BITS = 64 / CHUNKS;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int COST_QUERIES = 2000;
+    private static final int COST_RESULTS = 20;
+    private static final int COST_TOLERANCE = 10 * 10;
+    private static final NearestColorIndex.Filter ALL_TILES = new NearestColorIndex.Filter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    private final int maxDistance;
+    private final int keepPerCluster;
+
+    /**
+     * @param maxDistance the maximum number of differing hash bits of two near-duplicates (0-63).
+     * @param keepPerCluster the number of tiles kept of every cluster of near-duplicates.
+     */
+    public TileDeduplicator(int maxDistance, int keepPerCluster) {
+        if (maxDistance < 0 || maxDistance >= 64 || keepPerCluster <= 0) {
+            throw new IllegalArgumentException("maxDistance must be 0-63 and keepPerCluster > 0");
+        }
+        this.maxDistance = maxDistance;
+        this.keepPerCluster = keepPerCluster;
+    }
+
+    /**
+     * Clusters the near-duplicates among the shapes and keeps the most typical ones of every cluster.
+     * @param shapes the shapes.
+     * @return returns the kept shapes, in their original order, and statistics on what was removed.
+     */
+    public Result deduplicate(List<MosaicShape> shapes) {
+        int size = shapes.size();
+        long[] hashes = new long[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = PerceptualHash.compute(shapes.get(i).getThumbnail());
+        }
+        int[] parents = cluster(hashes);
+
+        Map<Integer, List<Integer>> clusters = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int root = find(parents, i);
+            List<Integer> members = clusters.get(root);
+            if (members == null) {
+                members = new ArrayList<>();
+                clusters.put(root, members);
+            }
+            members.add(i);
+        }
+        boolean[] kept = new boolean[size];
+        int duplicateClusters = 0;
+        for (List<Integer> members : clusters.values()) {
+            if (members.size() > 1) {
+                duplicateClusters++;
+            }
+            for (int index : representatives(members, hashes)) {
+                kept[index] = true;
+            }
+        }
+        List<MosaicShape> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (kept[i]) {
+                result.add(shapes.get(i));
+            }
+        }
+        return new Result(result, size, duplicateClusters, matchCost(shapes), matchCost(result));
+    }
+
+    /**
+     * Joins all pairs of hashes within the maximum distance.
+     * @return returns the union-find parents of the hashes.
+     */
+    private int[] cluster(long[] hashes) {
+        int[] parents = new int[hashes.length];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+        }
+        //Entries are chunk value << 32 | hash index, sorted so that equal chunk values are adjacent
+        long[][] indexes = new long[CHUNKS][hashes.length];
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            for (int i = 0; i < hashes.length; i++) {
+                indexes[chunk][i] = (long) chunk(hashes[i], chunk) << 32 | i;
+            }
+            Arrays.sort(indexes[chunk]);
+        }
+        int chunkDistance = maxDistance / CHUNKS;
+        List<Integer> probes = new ArrayList<>();
+        for (int i = 0; i < hashes.length; i++) {
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                probes.clear();
+                addProbes(chunk(hashes[i], chunk), 0, chunkDistance, probes);
+                for (int probe : probes) {
+                    long[] index = indexes[chunk];
+                    for (int position = lowerBound(index, (long) probe << 32);
+                         position < index.length && index[position] >>> 32 == probe; position++) {
+                        int other = (int) index[position];
+                        if (other > i && PerceptualHash.distance(hashes[i], hashes[other]) <= maxDistance) {
+                            union(parents, i, other);
+                        }
+                    }
+                }
+            }
+        }
+        return parents;
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int chunk(long hash, int chunk) {
+        return (int) (hash >>> (chunk * CHUNK_BITS)) & CHUNK_MASK;
+    }
+
+    /**
+     * Adds all chunk values that differ from the given one in at most the given number of bits, only flipping
+     * bits from the given one upwards.
+     */
+    private static void addProbes(int value, int fromBit, int flips, List<Integer> probes) {
+        probes.add(value);
+        if (flips == 0) {
+            return;
+        }
+        for (int bit = fromBit; bit < CHUNK_BITS; bit++) {
+            addProbes(value ^ (1 << bit), bit + 1, flips - 1, probes);
+        }
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        //The smaller index becomes the root, which keeps the clusters independent of the order of the unions
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parents[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Chooses the members of a cluster to keep: first the member closest to all others, then repeatedly the
+     * member farthest from those already chosen, so the kept tiles differ as much as the cluster allows.
+     */
+    private List<Integer> representatives(List<Integer> members, long[] hashes) {
+        if (members.size() <= keepPerCluster) {
+            return members;
+        }
+        int best = members.get(0);
+        long bestSum = Long.MAX_VALUE;
+        for (int member : members) {
+            long sum = 0;
+            for (int other : members) {
+                sum += PerceptualHash.distance(hashes[member], hashes[other]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = member;
+            }
+        }
+        List<Integer> chosen = new ArrayList<>();
+        chosen.add(best);
+        while (chosen.size() < keepPerCluster) {
+            int farthest = -1;
+            int farthestDistance = -1;
+            for (int member : members) {
+                int distance = Integer.MAX_VALUE;
+                for (int kept : chosen) {
+                    distance = Math.min(distance, PerceptualHash.distance(hashes[member], hashes[kept]));
+                }
+                if (distance > farthestDistance && !chosen.contains(member)) {
+                    farthestDistance = distance;
+                    farthest = member;
+                }
+            }
+            chosen.add(farthest);
+        }
+        return chosen;
+    }
+
+    /**
+     * Measures the cost of matching a cell against the shapes with the average color index the artist uses.
+     * @return returns the candidates examined per match and the time per match in microseconds.
+     */
+    private static double[] matchCost(List<MosaicShape> shapes) {
+        if (shapes.isEmpty()) {
+            return new double[2];
+        }
+        int[] colors = new int[shapes.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = shapes.get(i).getAverageColor();
+        }
+        //Counted on their own, so the synthetic queries neither skew nor show up in the counters of the run
+        LongAdder examined = new LongAdder();
+        NearestColorIndex index = new KdTreeColorIndex(colors, examined);
+        Random random = new Random(1);
+        int[] result = new int[COST_RESULTS];
+        long start = System.nanoTime();
+        for (int i = 0; i < COST_QUERIES; i++) {
+            int target = 0xFF000000 | random.nextInt(0x1000000);
+            index.findNearest(target, COST_RESULTS, COST_TOLERANCE, 2, ALL_TILES, result);
+        }
+        long time = System.nanoTime() - start;
+        return new double[]{
+            (double) examined.sum() / COST_QUERIES,
+            time / 1000.0 / COST_QUERIES
+        };
+    }
+
+    /**
+     * The kept shapes and what deduplicating saved.
+     */
+    public static final class Result {
+        private final List<MosaicShape> shapes;
+        private final int originalSize;
+        private final int clusters;
+        private final double[] costBefore;
+        private final double[] costAfter;
+
+        private Result(List<MosaicShape> shapes, int originalSize, int clusters, double[] costBefore,
+                       double[] costAfter) {
+            this.shapes = shapes;
+            this.originalSize = originalSize;
+            this.clusters = clusters;
+            this.costBefore = costBefore;
+            this.costAfter = costAfter;
+        }
+
+        /**
+         * @return returns the kept shapes, in their original order.
+         */
+        public List<MosaicShape> getShapes() {
+            return shapes;
+        }
+
+        public int getOriginalSize() {
+            return originalSize;
+        }
+
+        public int getRemoved() {
+            return originalSize - shapes.size();
+        }
+
+        /**
+         * @return returns the number of clusters with more than one tile.
+         */
+        public int getClusters() {
+            return clusters;
+        }
+
+        /**
+         * @return returns the index entries examined per match before and after deduplicating.
+         */
+        public double[] getCandidatesPerMatch() {
+            return new double[]{costBefore[0], costAfter[0]};
+        }
+
+        /**
+         * @return returns the time per match in microseconds before and after deduplicating.
+         */
+        public double[] getMicrosPerMatch() {
+            return new double[]{costBefore[1], costAfter[1]};
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Removed %d of %d tiles (%.1f%%) in %d clusters of near-duplicates, "
+                            + "candidates per match %.1f -> %.1f, time per match %.2f -> %.2f us",
+                    getRemoved(), originalSize, 100.0 * getRemoved() / Math.max(1, originalSize), clusters,
+                    costBefore[0], costAfter[0], costBefore[1], costAfter[1]);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The prepared tiles of one tile directory for one tile size, kept in memory together with their match indexes.
+ * Every mosaic gets its own artist sharing those indexes (see {@link #newArtist()}). The library can be updated
+ * with the files that changed in the directory, only these files are decoded again and added to the cache and
+ * the indexes.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileLibrary {
+    private final File directory;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final RectangleMosaicArtist.Matching matching;
+    private final int searchEffort;
+    private final TileLibraryCache cache;
+    /**
+     * The shapes of all tile files, null for files that cannot be decoded.
+     */
+    private final Map<File, MosaicShape> shapes = new TreeMap<>();
+    private volatile RectangleMosaicArtist prototype;
+
+    /**
+     * Creates an empty library, call {@link #load()} to fill it.
+     * @param directory the tile directory.
+     * @param tileWidth the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     * @param matching how tiles are matched to regions.
+     * @param searchEffort the search effort when matching signatures.
+     */
+    public TileLibrary(File directory, int tileWidth, int tileHeight, RectangleMosaicArtist.Matching matching,
+                       int searchEffort) {
+        this.directory = directory;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.matching = matching;
+        this.searchEffort = searchEffort;
+        this.cache = new TileLibraryCache(directory, tileWidth, tileHeight);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Loads all tiles of the directory through the tile cache and builds the indexes. Can be called again to
+     * resynchronize the library with the directory, for example after change events were lost.
+     * @throws IOException if the directory cannot be read.
+     */
+    public synchronized void load() throws IOException {
+        shapes.clear();
+        shapes.putAll(cache.loadFiles());
+        rebuild();
+    }
+
+    /**
+     * Updates the library after files of the directory were created, changed or deleted. Existing tile files
+     * are prepared again, all other given files are removed from the library. Only the entries of the prepared
+     * files are appended to the cache file, and the shapes are inserted into and removed from the indexes of the
+     * current artist instead of building them again (see {@link RectangleMosaicArtist#update(List, Collection)}).
+     * Jobs running meanwhile keep using the previous tiles.
+     * <p>
+     * Prepared tiles are added to the thumbnail atlas of the last load, where replaced and removed tiles keep
+     * their slots. Once fewer than half of the slots are in use, the library is compacted: the cache file is
+     * rewritten and the library is loaded again from it into a fresh atlas, with newly built indexes.
+     * @param files the files that changed.
+     * @throws IOException if the files cannot be read.
+     */
+    public synchronized void update(Collection<File> files) throws IOException {
+        List<File> changed = new ArrayList<>();
+        List<MosaicShape> removed = new ArrayList<>();
+        boolean known = false;
+        for (File file : files) {
+            known |= shapes.containsKey(file);
+            MosaicShape previous = shapes.remove(file);
+            if (previous != null) {
+                removed.add(previous);
+            }
+            if (TileLibraryCache.isTileFile(file)) {
+                changed.add(file);
+            }
+        }
+        if (changed.isEmpty() && !known) {
+            return;
+        }
+        List<MosaicShape> prepared = cache.prepare(changed);
+        Map<File, MosaicShape> updated = new LinkedHashMap<>();
+        List<MosaicShape> added = new ArrayList<>();
+        for (int i = 0; i < changed.size(); i++) {
+            shapes.put(changed.get(i), prepared.get(i));
+            updated.put(changed.get(i), prepared.get(i));
+            if (prepared.get(i) != null) {
+                added.add(prepared.get(i));
+            }
+        }
+        System.out.println("Updated " + directory + ": " + changed.size() + " prepared, " + removed.size()
+                + " removed, " + size() + " tiles");
+        if (cache.getAtlasSize() > 2 * size()) {
+            cache.store(shapes);
+            load();
+            return;
+        }
+        if (!updated.isEmpty() && !cache.append(updated)) {
+            cache.store(shapes);
+        }
+        RectangleMosaicArtist current = prototype;
+        if (size() == 0) {
+            prototype = null;
+        } else if (current == null) {
+            rebuild();
+        } else {
+            prototype = current.update(added, removed);
+        }
+    }
+
+    /**
+     * @return returns the number of usable tiles.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (MosaicShape shape : shapes.values()) {
+            if (shape != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return returns a new artist for one mosaic, sharing the tiles and indexes of this library.
+     */
+    public RectangleMosaicArtist newArtist() {
+        RectangleMosaicArtist current = prototype;
+        if (current == null) {
+            throw new IllegalStateException("no usable tiles in " + directory);
+        }
+        return new RectangleMosaicArtist(current);
+    }
+
+    private void rebuild() {
+        List<MosaicShape> usable = new ArrayList<>();
+        for (MosaicShape shape : shapes.values()) {
+            if (shape != null) {
+                usable.add(shape);
+            }
+        }
+        prototype = usable.isEmpty() ? null : new RectangleMosaicArtist(usable, matching, searchEffort);
+    }
+}
@@ -0,0 +1,432 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.ThumbnailAtlas;
+import com.niklaskuder.mosaic.metrics.Counter;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicShape;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache file inside a tile directory that stores the prepared thumbnails and average colors of all tiles
+ * for one tile size. Entries are keyed by file name, length and modification time, so only new or changed
+ * files have to be prepared again. They are cut from the {@link TilePyramidCache} of the directory, so only
+ * files that are new to the directory are decoded, whatever the tile size. The cache is memory-mapped in chunks
+ * of whole entries when it is read, so it may grow beyond the 2 GB a single mapping can hold.
+ * <p>
+ * Entries of changed files can be appended (see {@link #append(Map)}), an appended entry replaces earlier ones
+ * of the same file name. The count in the header is updated last, so an interrupted append leaves a cache
+ * without the new entries. The next load that finds replaced or deleted entries rewrites the cache.
+ * <p>
+ * The thumbnails of all shapes loaded at once are packed into one {@link ThumbnailAtlas}, which is mapped from a
+ * temporary file instead of kept on the heap for very large libraries. Every load starts a new atlas and closes
+ * the one of the previous load.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileLibraryCache {
+    private static final int MAGIC = 0x4D544C43;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final int COUNT_POSITION = 16;
+
+    private final File directory;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final File cacheFile;
+    private ThumbnailAtlas atlas;
+    /**
+     * The number of entries and the end of the last entry of the cache file as last read or written, or -1 if
+     * the file is not known to be intact.
+     */
+    private int entryCount = -1;
+    private long entriesEnd = -1;
+
+    /**
+     * @param directory the tile directory.
+     * @param tileWidth the width of the prepared tiles.
+     * @param tileHeight the height of the prepared tiles.
+     */
+    public TileLibraryCache(File directory, int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("tile dimensions must be > 0");
+        }
+        this.directory = directory;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.cacheFile = new File(directory, ".mosaic-tiles-" + tileWidth + "x" + tileHeight + ".cache");
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * Lists all candidate tile files of a directory. Hidden files (like the cache itself) and subdirectories
+     * are left out.
+     * @param directory the tile directory.
+     * @return returns the files sorted by name.
+     */
+    public static List<File> listTileFiles(File directory) {
+        PhaseEvent event = Metrics.begin(Phase.LIST_DIRECTORY);
+        File[] files = directory.listFiles();
+        Metrics.end(event);
+        List<File> result = new ArrayList<>();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (isTileFile(file)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param file the file.
+     * @return returns true if the file is a candidate tile file, i.e. an existing file that is not hidden.
+     */
+    public static boolean isTileFile(File file) {
+        return file.isFile() && !file.isHidden() && !file.getName().startsWith(".");
+    }
+
+    /**
+     * Loads the shapes of all tiles in the directory. Cached entries are taken from the cache file, all other
+     * files are decoded and prepared. Files that cannot be decoded are skipped. The cache file is rewritten
+     * whenever it did not match the directory.
+     * @return returns the prepared shapes in the order of the file names.
+     * @throws IOException if the directory cannot be read.
+     */
+    public List<MosaicShape> load() throws IOException {
+        List<MosaicShape> keptShapes = new ArrayList<>();
+        for (Map.Entry<File, MosaicShape> entry : loadFiles().entrySet()) {
+            if (entry.getValue() != null) {
+                keptShapes.add(entry.getValue());
+            } else {
+                System.out.println("Skipping unreadable file: " + entry.getKey().getName());
+            }
+        }
+        return keptShapes;
+    }
+
+    /**
+     * Loads the shapes of all tiles in the directory like {@link #load()}, keyed by their files.
+     * @return returns the prepared shapes in the order of the file names, null for files that cannot be decoded.
+     * @throws IOException if the directory cannot be read.
+     */
+    Map<File, MosaicShape> loadFiles() throws IOException {
+        List<File> files = listTileFiles(directory);
+        Map<String, CachedEntry> cached = readCache();
+        //Entries replaced by appended ones are counted in the file but not in the map
+        boolean replaced = cached.size() < entryCount;
+        closeAtlas();
+        atlas = ThumbnailAtlas.forTiles(tileWidth, tileHeight, files.size());
+
+        List<MosaicShape> shapes = new ArrayList<>();
+        List<File> misses = new ArrayList<>();
+        List<Integer> missPositions = new ArrayList<>();
+        for (File file : files) {
+            CachedEntry entry = cached.remove(file.getName());
+            if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+                shapes.add(entry.readable ? entry.toShape(atlas) : null);
+                Counter.TILES_CACHED.increment();
+            } else {
+                missPositions.add(shapes.size());
+                misses.add(file);
+                shapes.add(null);
+            }
+        }
+
+        boolean changed = replaced || !misses.isEmpty() || !cached.isEmpty() || !cacheFile.exists();
+        prepareMisses(misses, missPositions, shapes);
+
+        Map<File, MosaicShape> result = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            result.put(files.get(i), shapes.get(i));
+        }
+        if (changed) {
+            store(result);
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the cache file with the given shapes. Failures are reported but not thrown, a missing cache only
+     * makes the next load slower.
+     * @param shapes the shapes keyed by their files, null for files that cannot be decoded.
+     */
+    void store(Map<File, MosaicShape> shapes) {
+        try {
+            writeCache(new ArrayList<>(shapes.keySet()), new ArrayList<>(shapes.values()));
+        } catch (IOException e) {
+            System.err.println("Could not write tile cache " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends entries for the given files to the cache file, replacing their earlier entries. Failures are
+     * reported but not thrown.
+     * @param shapes the shapes keyed by their files, null for files that cannot be decoded.
+     * @return returns false if the cache file was not known to be intact and has to be replaced with
+     *     {@link #store(Map)} instead.
+     */
+    boolean append(Map<File, MosaicShape> shapes) {
+        if (entriesEnd < 0) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            if (raf.length() < entriesEnd) {
+                entriesEnd = -1;
+                return false;
+            }
+            //Anything behind the last entry was left by an interrupted append
+            raf.seek(entriesEnd);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(raf.getChannel())));
+            writeEntries(out, new ArrayList<>(shapes.keySet()), new ArrayList<>(shapes.values()));
+            out.flush();
+            long end = raf.getFilePointer();
+            raf.setLength(end);
+            raf.seek(COUNT_POSITION);
+            raf.writeInt(entryCount + shapes.size());
+            entryCount += shapes.size();
+            entriesEnd = end;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not append to tile cache " + cacheFile + ": " + e.getMessage());
+            entriesEnd = -1;
+            return false;
+        }
+    }
+
+    private void prepareMisses(List<File> misses, List<Integer> positions, List<MosaicShape> shapes)
+            throws IOException {
+        if (misses.isEmpty()) {
+            return;
+        }
+        List<MosaicShape> prepared = prepare(misses);
+        for (int i = 0; i < prepared.size(); i++) {
+            shapes.set(positions.get(i), prepared.get(i));
+        }
+    }
+
+    /**
+     * Prepares the shapes of the given files without looking at this cache, cutting them from the pyramid cache
+     * where possible. Their thumbnails are added to the atlas of the last load.
+     * @param files the tile files.
+     * @return returns one entry per file, in the same order. Files that are not readable images yield null.
+     * @throws IOException if preparing was interrupted.
+     */
+    List<MosaicShape> prepare(List<File> files) throws IOException {
+        if (atlas == null) {
+            atlas = ThumbnailAtlas.forTiles(tileWidth, tileHeight, files.size());
+        }
+        return new TilePyramidCache(directory).prepare(files, tileWidth, tileHeight, atlas);
+    }
+
+    /**
+     * @return returns the number of thumbnails in the atlas of the last load, including those of shapes that
+     * were replaced or removed since.
+     */
+    int getAtlasSize() {
+        return atlas == null ? 0 : atlas.size();
+    }
+
+    /**
+     * Closes the atlas of the last load. Shapes already loaded from it stay usable.
+     */
+    private void closeAtlas() {
+        if (atlas == null) {
+            return;
+        }
+        try {
+            atlas.close();
+        } catch (IOException e) {
+            System.err.println("Could not close tile atlas: " + e.getMessage());
+        }
+        atlas = null;
+    }
+
+    /**
+     * Maps the cache file in chunks of whole entries and indexes the entries by file name, later entries
+     * replacing earlier ones. A missing or incompatible cache yields no entries.
+     */
+    private Map<String, CachedEntry> readCache() {
+        Map<String, CachedEntry> entries = new HashMap<>();
+        entryCount = -1;
+        entriesEnd = -1;
+        if (!cacheFile.isFile()) {
+            return entries;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long chunkStart = 0;
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, CHUNK_SIZE));
+            if (chunk.getInt() != MAGIC || chunk.getInt() != VERSION
+                    || chunk.getInt() != tileWidth || chunk.getInt() != tileHeight) {
+                return entries;
+            }
+            int count = chunk.getInt();
+            long position = chunk.position();
+            for (int i = 0; i < count; i++) {
+                CachedEntry entry = readEntry(chunk, chunkStart, position, entries);
+                if (entry == null) {
+                    if (chunkStart == position) {
+                        throw new IOException("entry at " + position + " is larger than a chunk");
+                    }
+                    //The entry crosses the end of the chunk, continue with a chunk starting at the entry
+                    chunkStart = position;
+                    chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                            Math.min(size - chunkStart, CHUNK_SIZE));
+                    i--;
+                    continue;
+                }
+                position = entry.end;
+            }
+            entryCount = count;
+            entriesEnd = position;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable tile cache " + cacheFile + ": " + e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the entry at the given position of the file from a mapped chunk and adds it to the entries.
+     * @return returns the entry, or null if it does not end within the chunk.
+     */
+    private CachedEntry readEntry(MappedByteBuffer chunk, long chunkStart, long position,
+                                  Map<String, CachedEntry> entries) {
+        ByteBuffer buffer = chunk.duplicate();
+        try {
+            buffer.position((int) (position - chunkStart));
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            long length = buffer.getLong();
+            long lastModified = buffer.getLong();
+            boolean readable = buffer.get() != 0;
+            int average = 0;
+            int offset = buffer.position();
+            if (readable) {
+                average = buffer.getInt();
+                offset = buffer.position();
+                buffer.position(offset + tileWidth * tileHeight * 4);
+            }
+            CachedEntry entry = new CachedEntry(chunk, offset, chunkStart + buffer.position(), length, lastModified,
+                    readable, average);
+            entries.put(new String(name, UTF_8), entry);
+            return entry;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes one entry per file. Files without a shape are recorded as unreadable, so they are not decoded
+     * again on the next run.
+     */
+    private void writeCache(List<File> files, List<MosaicShape> shapes) throws IOException {
+        File temp = new File(directory, cacheFile.getName() + ".tmp");
+        entriesEnd = -1;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            out.writeInt(shapes.size());
+            writeEntries(out, files, shapes);
+        }
+        long end = temp.length();
+        if (!temp.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!temp.renameTo(cacheFile)) {
+                temp.delete();
+                throw new IOException("could not replace " + cacheFile);
+            }
+        }
+        entryCount = shapes.size();
+        entriesEnd = end;
+    }
+
+    private void writeEntries(DataOutputStream out, List<File> files, List<MosaicShape> shapes)
+            throws IOException {
+        int[] pixels = new int[tileWidth * tileHeight];
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        IntBuffer ints = bytes.asIntBuffer();
+        for (int i = 0; i < shapes.size(); i++) {
+            File file = files.get(i);
+            MosaicShape shape = shapes.get(i);
+            byte[] name = file.getName().getBytes(UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeBoolean(shape != null);
+            if (shape == null) {
+                continue;
+            }
+            out.writeInt(shape.getAverageColor());
+            shape.getThumbnail().getRGB(0, 0, tileWidth, tileHeight, pixels, 0, tileWidth);
+            ints.clear();
+            ints.put(pixels);
+            out.write(bytes.array());
+        }
+    }
+
+    /**
+     * An entry of the mapped cache file. The thumbnail is only copied out of the mapping when it is loaded.
+     */
+    private final class CachedEntry {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final long end;
+        private final long length;
+        private final long lastModified;
+        private final boolean readable;
+        private final int average;
+
+        private CachedEntry(ByteBuffer buffer, int offset, long end, long length, long lastModified,
+                            boolean readable, int average) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.end = end;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.readable = readable;
+            this.average = average;
+        }
+
+        private MosaicShape toShape(ThumbnailAtlas atlas) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            return new RectangleMosaicShape(atlas, atlas.add(view.slice().asIntBuffer()), average);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.ThumbnailAtlas;
+import com.niklaskuder.mosaic.metrics.Counter;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicShape;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decodes tile files and prepares their shapes on a bounded number of worker threads.
+ * Every image is decoded with source subsampling close to the tile size, and only a bounded number of
+ * decoded images exist at any time, so memory does not grow with the size of the library.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TileLoader {
+    /**
+     * Decoded images are kept at least this many times larger than the tile, so scaling down still averages
+     * over several source pixels.
+     */
+    private static final int OVERSAMPLING = 2;
+    private static final int QUEUED_PER_THREAD = 2;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int numThreads;
+    private final TilePyramidCache.Writer pyramids;
+    private final ThumbnailAtlas atlas;
+
+    public TileLoader(int tileWidth, int tileHeight) {
+        this(tileWidth, tileHeight, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a loader that stores the thumbnails in an atlas and can also build the {@link TilePyramid} of every
+     * file and add it to a pyramid cache.
+     * @param tileWidth the width of the prepared tiles.
+     * @param tileHeight the height of the prepared tiles.
+     * @param pyramids the writer of the pyramid cache, or null to build no pyramids.
+     * @param atlas the atlas of the thumbnails, or null to give every shape its own thumbnail.
+     */
+    TileLoader(int tileWidth, int tileHeight, TilePyramidCache.Writer pyramids, ThumbnailAtlas atlas) {
+        this(tileWidth, tileHeight, Runtime.getRuntime().availableProcessors(), pyramids, atlas);
+    }
+
+    /**
+     * @param tileWidth the width of the prepared tiles.
+     * @param tileHeight the height of the prepared tiles.
+     * @param numThreads the number of threads decoding and preparing tiles.
+     */
+    public TileLoader(int tileWidth, int tileHeight, int numThreads) {
+        this(tileWidth, tileHeight, numThreads, null, null);
+    }
+
+    private TileLoader(int tileWidth, int tileHeight, int numThreads, TilePyramidCache.Writer pyramids,
+                       ThumbnailAtlas atlas) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("tile dimensions must be > 0");
+        }
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be > 0");
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.numThreads = numThreads;
+        this.pyramids = pyramids;
+        this.atlas = atlas;
+    }
+
+    /**
+     * Loads the shapes of all readable tiles in a directory.
+     * @param directory the tile directory.
+     * @return returns the prepared shapes in the order of the file names.
+     * @throws IOException if loading was interrupted.
+     */
+    public List<MosaicShape> load(File directory) throws IOException {
+        List<MosaicShape> shapes = new ArrayList<>();
+        for (MosaicShape shape : prepare(TileLibraryCache.listTileFiles(directory))) {
+            if (shape != null) {
+                shapes.add(shape);
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Prepares the shapes for the given files.
+     * @param files the tile files.
+     * @return returns one entry per file, in the same order. Files that are not readable images yield null.
+     * @throws IOException if preparing was interrupted.
+     */
+    public List<MosaicShape> prepare(List<File> files) throws IOException {
+        final MosaicShape[] shapes = new MosaicShape[files.size()];
+        int maxQueued = numThreads * QUEUED_PER_THREAD;
+        final Semaphore queued = new Semaphore(maxQueued);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int i = 0; i < shapes.length; i++) {
+                queued.acquire();
+                final int index = i;
+                final File file = files.get(i);
+                executor.execute(Metrics.bind(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            shapes[index] = prepare(file);
+                        } finally {
+                            queued.release();
+                        }
+                    }
+                }));
+            }
+            //All permits are back once every task has finished
+            queued.acquire(maxQueued);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while preparing tiles", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return Arrays.asList(shapes);
+    }
+
+    private MosaicShape prepare(File file) {
+        try {
+            int minSize = pyramids == null ? 0 : TilePyramid.MAX_SIZE;
+            BufferedImage image = readSubsampled(file, Math.max(tileWidth, minSize) * OVERSAMPLING,
+                    Math.max(tileHeight, minSize) * OVERSAMPLING);
+            if (image == null) {
+                addPyramid(file, null);
+                return null;
+            }
+            System.out.println("Reading file: " + file.getName());
+            Counter.TILES_DECODED.increment();
+            if (pyramids != null) {
+                TilePyramid pyramid = TilePyramid.build(image);
+                addPyramid(file, pyramid);
+                BufferedImage tile = pyramid.scaleAndCrop(tileWidth, tileHeight);
+                if (tile != null) {
+                    image = tile;
+                }
+            }
+            return atlas == null ? new RectangleMosaicShape(image, tileWidth, tileHeight)
+                    : new RectangleMosaicShape(image, tileWidth, tileHeight, atlas);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read " + file.getName() + ": " + e);
+            addPyramid(file, null);
+            return null;
+        }
+    }
+
+    private void addPyramid(File file, TilePyramid pyramid) {
+        if (pyramids != null) {
+            pyramids.add(file, pyramid);
+        }
+    }
+
+    /**
+     * Decodes an image, skipping as many source rows and columns as possible while keeping it at least
+     * as large as the given minimum size.
+     * @param file the image file.
+     * @param minWidth the minimum width the decoded image should cover.
+     * @param minHeight the minimum height the decoded image should cover.
+     * @return returns the decoded image, or null if no reader can decode the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public static BufferedImage readSubsampled(File file, int minWidth, int minHeight) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1, Math.min(width / minWidth, height / minHeight));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                PhaseEvent event = Metrics.begin(Phase.READ_IMAGE);
+                try {
+                    return reader.read(0, param);
+                } finally {
+                    Metrics.end(event);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.ImageUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thumbnails of one tile at power-of-two sizes. Level i has a short side of {@value #MAX_SIZE} &gt;&gt; i pixels
+ * and keeps the aspect ratio of the source, but sources longer than {@value #MAX_ASPECT} times their short side
+ * are cropped to that ratio first. A tile of any size that fits into a level can be cut from that level
+ * instead of from the full-resolution source, which looks the same because area averaging twice is nearly the
+ * same as averaging once.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TilePyramid {
+    /**
+     * The short side of the largest level.
+     */
+    public static final int MAX_SIZE = 128;
+    /**
+     * The short side of the smallest level.
+     */
+    public static final int MIN_SIZE = 16;
+    /**
+     * The maximum ratio of the long side to the short side of the levels.
+     */
+    public static final int MAX_ASPECT = 2;
+
+    private final List<BufferedImage> levels;
+    private final boolean cropped;
+
+    /**
+     * @param levels the levels, largest first.
+     * @param cropped whether the source was cropped to {@value #MAX_ASPECT}.
+     */
+    TilePyramid(List<BufferedImage> levels, boolean cropped) {
+        this.levels = levels;
+        this.cropped = cropped;
+    }
+
+    /**
+     * Builds the pyramid of a source image. Sources with a short side below {@value #MAX_SIZE} get no levels
+     * above their own size, sources below {@value #MIN_SIZE} get a single level of their own size.
+     * @param source the source image.
+     * @return returns the pyramid.
+     */
+    public static TilePyramid build(BufferedImage source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int shortSide = Math.min(width, height);
+        boolean cropped = Math.max(width, height) > (long) shortSide * MAX_ASPECT;
+        int croppedWidth = Math.min(width, shortSide * MAX_ASPECT);
+        int croppedHeight = Math.min(height, shortSide * MAX_ASPECT);
+
+        List<BufferedImage> levels = new ArrayList<>();
+        for (int size = MAX_SIZE; size >= MIN_SIZE; size /= 2) {
+            if (size <= shortSide) {
+                levels.add(ImageUtils.scaleAndCrop(source, (int) ((long) croppedWidth * size / shortSide),
+                        (int) ((long) croppedHeight * size / shortSide)));
+            }
+        }
+        if (levels.isEmpty()) {
+            levels.add(ImageUtils.scaleAndCrop(source, croppedWidth, croppedHeight));
+        }
+        return new TilePyramid(levels, cropped);
+    }
+
+    /**
+     * Chooses the smallest level a tile can be cut from.
+     * @param widths the widths of the levels, largest first.
+     * @param heights the heights of the levels, largest first.
+     * @param cropped whether the source was cropped.
+     * @param tileWidth the width of the tile.
+     * @param tileHeight the height of the tile.
+     * @return returns the index of the level, or -1 if the tile has to be cut from the source.
+     */
+    static int chooseLevel(int[] widths, int[] heights, boolean cropped, int tileWidth, int tileHeight) {
+        if (cropped && Math.max(tileWidth, tileHeight) > (long) Math.min(tileWidth, tileHeight) * MAX_ASPECT) {
+            //The tile would show more of the source than the cropped levels hold
+            return -1;
+        }
+        for (int i = widths.length - 1; i >= 0; i--) {
+            if (widths[i] >= tileWidth && heights[i] >= tileHeight) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Cuts a tile from the smallest level it fits into, like {@link ImageUtils#scaleAndCrop} would from the
+     * source.
+     * @param tileWidth the width of the tile.
+     * @param tileHeight the height of the tile.
+     * @return returns the tile, or null if it is too large for all levels.
+     */
+    public BufferedImage scaleAndCrop(int tileWidth, int tileHeight) {
+        int[] widths = new int[levels.size()];
+        int[] heights = new int[levels.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = levels.get(i).getWidth();
+            heights[i] = levels.get(i).getHeight();
+        }
+        int level = chooseLevel(widths, heights, cropped, tileWidth, tileHeight);
+        return level < 0 ? null : ImageUtils.scaleAndCrop(levels.get(level), tileWidth, tileHeight);
+    }
+
+    /**
+     * @return returns the levels, largest first.
+     */
+    public List<BufferedImage> getLevels() {
+        return levels;
+    }
+
+    public boolean isCropped() {
+        return cropped;
+    }
+}
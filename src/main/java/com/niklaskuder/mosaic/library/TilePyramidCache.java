@@ -0,0 +1,386 @@
+package com.niklaskuder.mosaic.library;
+
+import com.niklaskuder.mosaic.base.ImageUtils;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.ThumbnailAtlas;
+import com.niklaskuder.mosaic.metrics.Counter;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicShape;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache file inside a tile directory that stores the {@link TilePyramid} of every tile. Tiles of any size are
+ * cut from the pyramids, so a new tile size does not decode the full-resolution sources again. Entries are keyed
+ * by file name, length and modification time like the entries of {@link TileLibraryCache}.
+ * <p>
+ * The cache is memory-mapped when it is read and only the level a tile is cut from is copied out of it.
+ * New pyramids are appended to the rewritten cache as soon as they are built, so they never have to be held in
+ * memory all at once.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TilePyramidCache {
+    private static final int MAGIC = 0x4D545059;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * The cache is mapped in chunks of at most this many bytes, as a single mapping cannot exceed 2 GB.
+     */
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private final File directory;
+    private final File cacheFile;
+
+    /**
+     * @param directory the tile directory.
+     */
+    public TilePyramidCache(File directory) {
+        this.directory = directory;
+        this.cacheFile = new File(directory, ".mosaic-pyramid.cache");
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * Prepares the shapes of the given files at the given size. Tiles are cut from cached pyramids where
+     * possible. The pyramids of all other files are built from their sources and added to the cache.
+     * @param files the tile files, all inside the tile directory.
+     * @param tileWidth the width of the shapes.
+     * @param tileHeight the height of the shapes.
+     * @param atlas the atlas of the thumbnails, of the same tile size.
+     * @return returns one entry per file, in the same order. Files that are not readable images yield null.
+     * @throws IOException if preparing was interrupted.
+     */
+    public List<MosaicShape> prepare(List<File> files, int tileWidth, int tileHeight, ThumbnailAtlas atlas)
+            throws IOException {
+        Map<String, CachedPyramid> cached = new HashMap<>();
+        boolean rewritable = readCache(cached);
+        MosaicShape[] shapes = new MosaicShape[files.size()];
+        List<File> misses = new ArrayList<>();
+        Set<String> missNames = new HashSet<>();
+        List<Integer> missPositions = new ArrayList<>();
+        List<File> tooLarge = new ArrayList<>();
+        List<Integer> tooLargePositions = new ArrayList<>();
+        for (int i = 0; i < shapes.length; i++) {
+            File file = files.get(i);
+            CachedPyramid pyramid = cached.get(file.getName());
+            if (pyramid == null || pyramid.length != file.length() || pyramid.lastModified != file.lastModified()) {
+                misses.add(file);
+                missNames.add(file.getName());
+                missPositions.add(i);
+            } else if (pyramid.readable) {
+                BufferedImage tile = pyramid.scaleAndCrop(tileWidth, tileHeight);
+                if (tile == null) {
+                    tooLarge.add(file);
+                    tooLargePositions.add(i);
+                } else {
+                    shapes[i] = new RectangleMosaicShape(tile, tileWidth, tileHeight, atlas);
+                    Counter.TILES_CACHED.increment();
+                }
+            }
+        }
+
+        Set<String> existing = new HashSet<>();
+        for (File file : TileLibraryCache.listTileFiles(directory)) {
+            existing.add(file.getName());
+        }
+        boolean stale = !existing.containsAll(cached.keySet());
+        if (!rewritable && !misses.isEmpty()) {
+            //Writing a cache that cannot be read back would only repeat the work on every run
+            List<MosaicShape> prepared = new TileLoader(tileWidth, tileHeight, null, atlas).prepare(misses);
+            for (int i = 0; i < prepared.size(); i++) {
+                shapes[missPositions.get(i)] = prepared.get(i);
+            }
+        } else if (!misses.isEmpty() || stale) {
+            try (Writer writer = new Writer()) {
+                for (Map.Entry<String, CachedPyramid> entry : cached.entrySet()) {
+                    if (existing.contains(entry.getKey()) && !missNames.contains(entry.getKey())) {
+                        writer.copy(entry.getValue());
+                    }
+                }
+                List<MosaicShape> prepared = new TileLoader(tileWidth, tileHeight, writer, atlas).prepare(misses);
+                for (int i = 0; i < prepared.size(); i++) {
+                    shapes[missPositions.get(i)] = prepared.get(i);
+                }
+                writer.commit();
+            }
+        }
+        if (!tooLarge.isEmpty()) {
+            List<MosaicShape> prepared = new TileLoader(tileWidth, tileHeight, null, atlas).prepare(tooLarge);
+            for (int i = 0; i < prepared.size(); i++) {
+                shapes[tooLargePositions.get(i)] = prepared.get(i);
+            }
+        }
+        List<MosaicShape> result = new ArrayList<>();
+        for (MosaicShape shape : shapes) {
+            result.add(shape);
+        }
+        return result;
+    }
+
+    /**
+     * Maps the cache file in chunks of whole entries and indexes the entries by file name. A missing or
+     * incompatible cache yields no entries.
+     * @param entries the map receiving the entries.
+     * @return returns false if the cache file exists but cannot be mapped, in which case it should not be
+     *     rewritten either.
+     */
+    private boolean readCache(Map<String, CachedPyramid> entries) {
+        if (!cacheFile.isFile()) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long chunkStart = 0;
+            MappedByteBuffer chunk;
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, CHUNK_SIZE));
+            } catch (IOException e) {
+                System.err.println("Could not map pyramid cache " + cacheFile + ", not using it: " + e);
+                return false;
+            }
+            if (chunk.getInt() != MAGIC || chunk.getInt() != VERSION) {
+                return true;
+            }
+            long position = chunk.position();
+            while (position < size) {
+                CachedPyramid pyramid = readEntry(chunk, chunkStart, position, entries);
+                if (pyramid == null) {
+                    if (chunkStart == position) {
+                        throw new IOException("entry at " + position + " is larger than a chunk");
+                    }
+                    //The entry crosses the end of the chunk, continue with a chunk starting at the entry
+                    chunkStart = position;
+                    try {
+                        chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                                Math.min(size - chunkStart, CHUNK_SIZE));
+                    } catch (IOException e) {
+                        System.err.println("Could not map pyramid cache " + cacheFile + ", not using it: " + e);
+                        entries.clear();
+                        return false;
+                    }
+                    continue;
+                }
+                position = pyramid.end;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable pyramid cache " + cacheFile + ": " + e);
+            entries.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the entry at the given position of the file from a mapped chunk and adds it to the entries.
+     * @return returns the entry, or null if it does not end within the chunk.
+     */
+    private static CachedPyramid readEntry(MappedByteBuffer chunk, long chunkStart, long position,
+                                           Map<String, CachedPyramid> entries) {
+        ByteBuffer buffer = chunk.duplicate();
+        try {
+            buffer.position((int) (position - chunkStart));
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            long length = buffer.getLong();
+            long lastModified = buffer.getLong();
+            boolean readable = buffer.get() != 0;
+            boolean cropped = false;
+            int[] widths = new int[0];
+            int[] heights = new int[0];
+            long[] offsets = new long[0];
+            if (readable) {
+                cropped = buffer.get() != 0;
+                int levels = buffer.get();
+                widths = new int[levels];
+                heights = new int[levels];
+                offsets = new long[levels];
+                for (int i = 0; i < levels; i++) {
+                    widths[i] = buffer.getInt();
+                    heights[i] = buffer.getInt();
+                    offsets[i] = chunkStart + buffer.position();
+                    buffer.position(buffer.position() + widths[i] * heights[i] * 4);
+                }
+            }
+            CachedPyramid pyramid = new CachedPyramid(chunk, chunkStart, position, chunkStart + buffer.position(),
+                    length, lastModified, readable, cropped, widths, heights, offsets);
+            entries.put(new String(name, UTF_8), pyramid);
+            return pyramid;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a new cache file next to the old one and replaces the old one once it is complete. Entries can be
+     * added from several threads. Libraries of different tile sizes may write at the same time, so every writer
+     * has its own temporary file.
+     */
+    final class Writer implements Closeable {
+        private final File temp;
+        private final DataOutputStream out;
+        private boolean failed;
+
+        private Writer() throws IOException {
+            this.temp = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        private void copy(CachedPyramid pyramid) {
+            ByteBuffer view = pyramid.buffer.duplicate();
+            view.limit((int) (pyramid.end - pyramid.chunkStart));
+            view.position((int) (pyramid.start - pyramid.chunkStart));
+            byte[] bytes = new byte[view.remaining()];
+            view.get(bytes);
+            synchronized (this) {
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Adds the pyramid of a file.
+         * @param file the file.
+         * @param pyramid the pyramid, or null if the file is not a readable image.
+         */
+        synchronized void add(File file, TilePyramid pyramid) {
+            try {
+                byte[] name = file.getName().getBytes(UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                out.writeBoolean(pyramid != null);
+                if (pyramid == null) {
+                    return;
+                }
+                out.writeBoolean(pyramid.isCropped());
+                out.writeByte(pyramid.getLevels().size());
+                for (BufferedImage level : pyramid.getLevels()) {
+                    int width = level.getWidth();
+                    int height = level.getHeight();
+                    int[] pixels = level.getRGB(0, 0, width, height, null, 0, width);
+                    ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+                    bytes.asIntBuffer().put(pixels);
+                    out.writeInt(width);
+                    out.writeInt(height);
+                    out.write(bytes.array());
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (!failed) {
+                System.err.println("Could not write pyramid cache " + cacheFile + ": " + e.getMessage());
+            }
+            failed = true;
+        }
+
+        /**
+         * Replaces the cache file with the written one. Failures are reported but not thrown, a missing cache
+         * only makes the next load slower.
+         */
+        private synchronized void commit() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            if (failed) {
+                return;
+            }
+            if (!temp.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!temp.renameTo(cacheFile)) {
+                    fail(new IOException("could not replace " + cacheFile));
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            temp.delete();
+        }
+    }
+
+    /**
+     * An entry of the mapped cache file. Levels are only copied out of the mapping when a tile is cut from them.
+     * Positions are given in the file, the chunk mapped at chunkStart holds the whole entry.
+     */
+    private static final class CachedPyramid {
+        private final ByteBuffer buffer;
+        private final long chunkStart;
+        private final long start;
+        private final long end;
+        private final long length;
+        private final long lastModified;
+        private final boolean readable;
+        private final boolean cropped;
+        private final int[] widths;
+        private final int[] heights;
+        private final long[] offsets;
+
+        private CachedPyramid(ByteBuffer buffer, long chunkStart, long start, long end, long length,
+                              long lastModified, boolean readable, boolean cropped, int[] widths, int[] heights,
+                              long[] offsets) {
+            this.buffer = buffer;
+            this.chunkStart = chunkStart;
+            this.start = start;
+            this.end = end;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.readable = readable;
+            this.cropped = cropped;
+            this.widths = widths;
+            this.heights = heights;
+            this.offsets = offsets;
+        }
+
+        private BufferedImage scaleAndCrop(int tileWidth, int tileHeight) {
+            int level = TilePyramid.chooseLevel(widths, heights, cropped, tileWidth, tileHeight);
+            if (level < 0) {
+                return null;
+            }
+            BufferedImage image = new BufferedImage(widths[level], heights[level], BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) (offsets[level] - chunkStart));
+            view.slice().asIntBuffer().get(data, 0, data.length);
+            return ImageUtils.scaleAndCrop(image, tileWidth, tileHeight);
+        }
+    }
+}
@@ -1,18 +1,39 @@
 package com.niklaskuder.mosaic.main;
 
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.MatchMap;
 import com.niklaskuder.mosaic.base.MosaicArtist;
 import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.base.MosaicProgressListener;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.hexagon.HexagonMosaicEasel;
+import com.niklaskuder.mosaic.library.TileDeduplicator;
+import com.niklaskuder.mosaic.library.TileLibraryCache;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+import com.niklaskuder.mosaic.metrics.RunReport;
+import com.niklaskuder.mosaic.output.OutputFormat;
+import com.niklaskuder.mosaic.rectangle.AssignmentMosaicEasel;
+import com.niklaskuder.mosaic.rectangle.BandedMosaicRenderer;
+import com.niklaskuder.mosaic.rectangle.IncrementalMosaicEasel;
+import com.niklaskuder.mosaic.rectangle.ProgressiveMosaicEasel;
+import com.niklaskuder.mosaic.rectangle.QuadtreeMosaicEasel;
 import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
 import com.niklaskuder.mosaic.rectangle.RectangleMosaicEasel;
+import com.niklaskuder.mosaic.triangle.TriangleMosaicEasel;
 import org.apache.commons.cli.*;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * This class parses all command line parameters and creates a mosaic.
@@ -30,6 +51,19 @@ public final class App {
     private static final String CMD_OPTION_TILE_W = "w";
     private static final String CMD_OPTION_TILE_H = "h";
 
+    private static final String CMD_OPTION_STREAM = "s";
+    private static final String CMD_OPTION_MATCH_EFFORT = "m";
+    private static final String CMD_OPTION_PREVIEW = "v";
+    private static final String CMD_OPTION_FORMAT = "f";
+    private static final String CMD_OPTION_COMPRESSION = "c";
+    private static final String CMD_OPTION_DEDUPE = "d";
+    private static final String CMD_OPTION_KEEP = "k";
+    private static final String CMD_OPTION_ASSIGN = "a";
+    private static final String CMD_OPTION_ADAPTIVE = "x";
+    private static final String CMD_OPTION_REUSE = "r";
+    private static final String CMD_OPTION_SHAPE = "g";
+    private static final long PREVIEW_INTERVAL = 2000;
+
     public static void main(String[] args) {
         // Don't touch...
         CommandLine cmd = null;
@@ -40,22 +74,18 @@ public final class App {
             System.exit(1);
         }
         // ...this!
+        RunReport report = new RunReport();
+        //Everything from here on belongs to this run
+        Metrics.enter(report.getMetrics());
 
-        BufferedImage inputImage;
+        File inputFile;
+        Dimension inputSize;
         File picDirectory;
-        List<BufferedImage> mosaicImages = new ArrayList<>();
-        //Load all the images
+        //Read the size of the input image
         try {
-            inputImage = ImageIO.read(new File(cmd.getParsedOptionValue(CMD_OPTION_INPUT_IMAGE).toString()));
+            inputFile = new File(cmd.getParsedOptionValue(CMD_OPTION_INPUT_IMAGE).toString());
+            inputSize = readImageSize(inputFile);
             picDirectory = new File(cmd.getParsedOptionValue(CMD_OPTION_INPUT_TILES_DIR).toString());
-            if (picDirectory.isDirectory() && Objects.requireNonNull(picDirectory.listFiles()).length >= 10) {
-                for (File file : Objects.requireNonNull(picDirectory.listFiles())) {
-                    mosaicImages.add(ImageIO.read(file));
-                    System.out.println("Reading file: " + file.getName());
-                }
-            } else {
-                System.out.println("Not a directory, or not at least 10 images.");
-            }
         } catch (ParseException | IOException e) {
             e.printStackTrace();
             return;
@@ -73,26 +103,293 @@ public final class App {
         }
         int width = 0;
         int height = 0;
-        if (prefWidth > 0 && prefWidth <= inputImage.getWidth()) {
+        if (prefWidth > 0 && prefWidth <= inputSize.width) {
             width = prefWidth;
         }
-        if (prefHeight > 0 && prefHeight <= inputImage.getHeight()) {
+        if (prefHeight > 0 && prefHeight <= inputSize.height) {
             height = prefHeight;
         }
-        //Create Easel and Artist
-        MosaicEasel easel = new RectangleMosaicEasel();
-        MosaicArtist artist = new RectangleMosaicArtist(mosaicImages, width, height);
+        //Load all the tiles, reusing the prepared tiles cached in the tile directory
+        List<MosaicShape> mosaicShapes = new ArrayList<>();
+        try {
+            if (picDirectory.isDirectory() && TileLibraryCache.listTileFiles(picDirectory).size() >= 10) {
+                mosaicShapes = new TileLibraryCache(picDirectory, width, height).load();
+            } else {
+                System.out.println("Not a directory, or not at least 10 images.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        //Remove near-duplicate tiles if a hash distance is given
+        TileDeduplicator.Result deduplicated = null;
+        if (cmd.hasOption(CMD_OPTION_DEDUPE)) {
+            try {
+                int distance = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_DEDUPE));
+                int keep = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_KEEP, "1"));
+                deduplicated = new TileDeduplicator(distance, keep).deduplicate(mosaicShapes);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid deduplication parameters: " + e.getMessage());
+                return;
+            }
+            System.out.println(deduplicated);
+            mosaicShapes = deduplicated.getShapes();
+        }
+        //Create Artist, matching signatures if a search effort is given
+        RectangleMosaicArtist.Matching matching = RectangleMosaicArtist.Matching.AVERAGE_COLOR;
+        int searchEffort = 0;
+        if (cmd.hasOption(CMD_OPTION_MATCH_EFFORT)) {
+            try {
+                searchEffort = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_MATCH_EFFORT));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid search effort: " + cmd.getOptionValue(CMD_OPTION_MATCH_EFFORT));
+                return;
+            }
+            matching = RectangleMosaicArtist.Matching.SIGNATURE;
+        }
+        MosaicArtist artist = new RectangleMosaicArtist(mosaicShapes, matching, searchEffort);
+
+        //Read the output format and compression level
+        OutputFormat format;
+        int compressionLevel;
+        try {
+            format = OutputFormat.forName(cmd.getOptionValue(CMD_OPTION_FORMAT, OutputFormat.PNG.name()));
+            compressionLevel = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_COMPRESSION,
+                    String.valueOf(OutputFormat.DEFAULT_COMPRESSION_LEVEL)));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid output format or compression level: " + e.getMessage());
+            return;
+        }
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            System.err.println("The compression level must be between 0 and 9.");
+            return;
+        }
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        //Load the larger tiles for the adaptive tiling if a number of tile sizes is given
+        QuadtreeMosaicEasel adaptiveEasel = null;
+        if (cmd.hasOption(CMD_OPTION_ADAPTIVE)) {
+            if (cmd.hasOption(CMD_OPTION_STREAM) || cmd.hasOption(CMD_OPTION_PREVIEW)
+                    || cmd.hasOption(CMD_OPTION_ASSIGN)) {
+                System.err.println("The adaptive tiling cannot be combined with streaming, a preview or the "
+                        + "assignment mode.");
+                return;
+            }
+            int levels;
+            try {
+                levels = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_ADAPTIVE));
+            } catch (NumberFormatException e) {
+                levels = 0;
+            }
+            if (levels < 1) {
+                System.err.println("Invalid number of tile sizes: " + cmd.getOptionValue(CMD_OPTION_ADAPTIVE));
+                return;
+            }
+            List<MosaicArtist> largerArtists = new ArrayList<>();
+            try {
+                for (int level = 1; level < levels; level++) {
+                    List<MosaicShape> shapes = new TileLibraryCache(picDirectory, width << level, height << level)
+                            .load();
+                    largerArtists.add(new RectangleMosaicArtist(shapes, matching, searchEffort));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            adaptiveEasel = new QuadtreeMosaicEasel(numThreads, largerArtists,
+                    QuadtreeMosaicEasel.DEFAULT_MAX_DEVIATION);
+        }
+        //Assign the tiles globally if a maximum number of uses is given
+        MosaicEasel assignmentEasel = null;
+        if (cmd.hasOption(CMD_OPTION_ASSIGN)) {
+            if (cmd.hasOption(CMD_OPTION_STREAM) || cmd.hasOption(CMD_OPTION_PREVIEW)) {
+                System.err.println("The assignment mode cannot be combined with streaming or a preview.");
+                return;
+            }
+            try {
+                int maxUses = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_ASSIGN));
+                assignmentEasel = new AssignmentMosaicEasel(numThreads, 1, maxUses);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid maximum number of uses: " + cmd.getOptionValue(CMD_OPTION_ASSIGN));
+                return;
+            }
+        }
+        if (cmd.hasOption(CMD_OPTION_REUSE) && (cmd.hasOption(CMD_OPTION_STREAM) || cmd.hasOption(CMD_OPTION_PREVIEW)
+                || cmd.hasOption(CMD_OPTION_ASSIGN) || cmd.hasOption(CMD_OPTION_ADAPTIVE))) {
+            System.err.println("Reusing the previous matches cannot be combined with streaming, a preview, the "
+                    + "assignment mode or the adaptive tiling.");
+            return;
+        }
+        //Tile the image with triangles or hexagons if another shape is given
+        String shape = cmd.getOptionValue(CMD_OPTION_SHAPE, "rectangle");
+        MosaicEasel shapeEasel = null;
+        if (!"rectangle".equals(shape)) {
+            if (cmd.hasOption(CMD_OPTION_STREAM) || cmd.hasOption(CMD_OPTION_PREVIEW)
+                    || cmd.hasOption(CMD_OPTION_ASSIGN) || cmd.hasOption(CMD_OPTION_ADAPTIVE)
+                    || cmd.hasOption(CMD_OPTION_REUSE)) {
+                System.err.println("Shapes other than rectangles cannot be combined with streaming, a preview, the "
+                        + "assignment mode, the adaptive tiling or reusing the previous matches.");
+                return;
+            }
+            if ("triangle".equals(shape)) {
+                shapeEasel = new TriangleMosaicEasel(numThreads);
+            } else if ("hexagon".equals(shape)) {
+                shapeEasel = new HexagonMosaicEasel(numThreads);
+            } else {
+                System.err.println("Unknown shape: " + shape);
+                return;
+            }
+        }
 
         //Create the mosaic image and write it to the output file
+        IncrementalMosaicEasel incrementalEasel = null;
         try {
             System.out.println("Creating image...");
-            BufferedImage outputImage = easel.createMosaic(inputImage, artist);
             String storeInput = cmd.getParsedOptionValue(CMD_OPTION_OUTPUT_IMAGE).toString();
             File outputFile = new File(storeInput);
-            ImageIO.write(outputImage, "png", outputFile);
+            if (cmd.hasOption(CMD_OPTION_STREAM)) {
+                new BandedMosaicRenderer(numThreads, BandedMosaicRenderer.DEFAULT_BAND_PIXELS, compressionLevel,
+                        format, createProgressPrinter()).createMosaic(inputFile, artist, outputFile);
+            } else {
+                MosaicEasel easel;
+                if (shapeEasel != null) {
+                    easel = shapeEasel;
+                } else if (assignmentEasel != null) {
+                    easel = assignmentEasel;
+                } else if (adaptiveEasel != null) {
+                    easel = adaptiveEasel;
+                } else if (cmd.hasOption(CMD_OPTION_REUSE)) {
+                    incrementalEasel = createIncrementalEasel(outputFile, numThreads);
+                    easel = incrementalEasel;
+                } else if (cmd.hasOption(CMD_OPTION_PREVIEW)) {
+                    easel = createPreviewEasel(new File(cmd.getOptionValue(CMD_OPTION_PREVIEW)));
+                } else {
+                    easel = new RectangleMosaicEasel();
+                }
+                PhaseEvent event = Metrics.begin(Phase.READ_IMAGE);
+                BufferedImage inputImage = ImageIO.read(inputFile);
+                Metrics.end(event);
+                BufferedImage outputImage = easel.createMosaic(inputImage, artist);
+                event = Metrics.begin(Phase.ENCODE);
+                format.write(new BufferedArtImage(outputImage), outputFile, compressionLevel, numThreads);
+                Metrics.end(event);
+            }
             System.out.println("Picture saved to " + outputFile.getAbsolutePath());
+
+            File reportFile = RunReport.reportFile(outputFile);
+            report.put("input", inputFile.getAbsolutePath())
+                    .put("output", outputFile.getAbsolutePath())
+                    .put("width", inputSize.width)
+                    .put("height", inputSize.height)
+                    .put("tileWidth", width)
+                    .put("tileHeight", height)
+                    .put("tiles", mosaicShapes.size())
+                    .put("shape", shape);
+            if (assignmentEasel != null) {
+                report.put("maxUses", Integer.parseInt(cmd.getOptionValue(CMD_OPTION_ASSIGN)));
+            }
+            if (incrementalEasel != null) {
+                System.out.println("Reused " + incrementalEasel.getReusedCells() + " cells of the previous output");
+                report.put("reusedCells", incrementalEasel.getReusedCells());
+            }
+            if (adaptiveEasel != null) {
+                int[] cellCounts = adaptiveEasel.getCellCounts();
+                for (int level = 0; level < cellCounts.length; level++) {
+                    report.put("cells" + (width << level) + "x" + (height << level), cellCounts[level]);
+                }
+            }
+            if (deduplicated != null) {
+                report.put("duplicateTilesRemoved", deduplicated.getRemoved())
+                        .put("duplicateClusters", deduplicated.getClusters())
+                        .put("candidatesPerMatchBefore", deduplicated.getCandidatesPerMatch()[0])
+                        .put("candidatesPerMatchAfter", deduplicated.getCandidatesPerMatch()[1]);
+            }
+            report.write(reportFile);
+            System.out.println("Report saved to " + reportFile.getAbsolutePath());
         } catch (IOException | ParseException e) {
             e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Could not create mosaic: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an easel that reuses the matches and the cells of the previous output, if there is one.
+     *
+     * @param outputFile the output file, whose match map is saved next to it
+     * @param numThreads the number of worker threads
+     * @return the easel
+     */
+    private static IncrementalMosaicEasel createIncrementalEasel(File outputFile, int numThreads) {
+        BufferedImage previousOutput = null;
+        if (outputFile.isFile()) {
+            try {
+                previousOutput = ImageIO.read(outputFile);
+            } catch (IOException e) {
+                System.err.println("Could not read previous output " + outputFile + ": " + e.getMessage());
+            }
+        }
+        return new IncrementalMosaicEasel(numThreads, MatchMap.mapFile(outputFile), previousOutput,
+                IncrementalMosaicEasel.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Creates an easel that prints its progress and keeps writing the partial image to a preview file.
+     *
+     * @param previewFile the png file the partial image is written to
+     * @return the easel
+     */
+    private static MosaicProgressListener createProgressPrinter() {
+        return new MosaicProgressListener() {
+            @Override
+            public void progressChanged(Pass pass, int percent) {
+                System.out.println(pass + ": " + percent + "%");
+            }
+
+            @Override
+            public void imageUpdated(BufferedArtImage image, Pass pass) {
+            }
+        };
+    }
+
+    private static MosaicEasel createPreviewEasel(final File previewFile) {
+        MosaicProgressListener listener = new MosaicProgressListener() {
+            @Override
+            public void progressChanged(Pass pass, int percent) {
+                System.out.println(pass + ": " + percent + "%");
+            }
+
+            @Override
+            public void imageUpdated(BufferedArtImage image, Pass pass) {
+                try {
+                    ImageIO.write(image.toBufferedImage(), "png", previewFile);
+                } catch (IOException e) {
+                    System.err.println("Could not write preview: " + e.getMessage());
+                }
+            }
+        };
+        return new ProgressiveMosaicEasel(Runtime.getRuntime().availableProcessors(), listener, PREVIEW_INTERVAL);
+    }
+
+    /**
+     * Reads the dimensions of an image from its header without decoding it.
+     *
+     * @param file the image file
+     * @return the dimensions of the image
+     * @throws IOException if the file is not a readable image
+     */
+    private static Dimension readImageSize(File file) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Not a readable image: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
         }
     }
 
@@ -135,6 +432,69 @@ public final class App {
         opt.setType(Integer.class);
         options.addOption(opt);
 
+        opt = new Option(App.CMD_OPTION_STREAM, "stream", false,
+                "render in horizontal bands and stream the png output, for images too large for memory");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_MATCH_EFFORT, "match-effort", true,
+                "match tiles by their color layout, searching the given number of candidates (e.g. 64)");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_PREVIEW, "preview", true,
+                "render progressively, printing the progress and writing the partial image to this png file");
+        opt.setRequired(false);
+        opt.setType(String.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_FORMAT, "format", true,
+                "output format: png (default), tiff or raw (headerless RGBA bytes)");
+        opt.setRequired(false);
+        opt.setType(String.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_COMPRESSION, "compression", true,
+                "png compression level from 0 (none) to 9 (smallest), default 6");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_DEDUPE, "dedupe", true,
+                "remove near-duplicate tiles whose perceptual hashes differ in at most this many bits (e.g. 6)");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_KEEP, "keep", true,
+                "the number of tiles kept of every group of near-duplicates, default 1");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_ASSIGN, "assign", true,
+                "assign the tiles globally, using every tile at least once and at most this many times");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_ADAPTIVE, "adaptive", true,
+                "cover uniform areas with larger tiles, using this many tile sizes each twice the last (e.g. 3)");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_REUSE, "reuse", false,
+                "save the matches next to the output and redraw only the cells that changed since the last run");
+        opt.setRequired(false);
+        options.addOption(opt);
+
+        opt = new Option(App.CMD_OPTION_SHAPE, "shape", true,
+                "the shape of the tiles, rectangle (default), triangle or hexagon");
+        opt.setRequired(false);
+        options.addOption(opt);
+
         CommandLineParser parser = new DefaultParser();
         return parser.parse(options, args);
     }
@@ -0,0 +1,151 @@
+package com.niklaskuder.mosaic.main;
+
+import com.niklaskuder.mosaic.daemon.MosaicDaemon;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Starts the mosaic daemon, which keeps tile libraries in memory and renders jobs from a local socket or a spool
+ * directory.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class DaemonApp {
+
+    private DaemonApp() {
+        throw new IllegalAccessError();
+    }
+
+    private static final String CMD_OPTION_PORT = "p";
+    private static final String CMD_OPTION_SPOOL_DIR = "q";
+    private static final String CMD_OPTION_JOBS = "j";
+    private static final String CMD_OPTION_WAITING_JOBS = "b";
+    private static final String CMD_OPTION_MATCH_EFFORT = "m";
+    private static final String CMD_OPTION_PRELOAD_DIR = "l";
+    private static final String CMD_OPTION_TILE_W = "w";
+    private static final String CMD_OPTION_TILE_H = "h";
+
+    public static void main(String[] args) {
+        CommandLine cmd = null;
+        try {
+            cmd = doCommandLineParsing(args);
+        } catch (ParseException e) {
+            System.err.println("Wrong command line arguments given: " + e.getMessage());
+            System.exit(1);
+        }
+        if (!cmd.hasOption(CMD_OPTION_PORT) && !cmd.hasOption(CMD_OPTION_SPOOL_DIR)) {
+            System.err.println("Give a port (-p) or a spool directory (-q) to take jobs from.");
+            System.exit(1);
+        }
+
+        final MosaicDaemon daemon;
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int jobs = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_JOBS, "2"));
+            int waitingJobs = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_WAITING_JOBS, "16"));
+            RectangleMosaicArtist.Matching matching = cmd.hasOption(CMD_OPTION_MATCH_EFFORT)
+                    ? RectangleMosaicArtist.Matching.SIGNATURE : RectangleMosaicArtist.Matching.AVERAGE_COLOR;
+            int searchEffort = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_MATCH_EFFORT, "0"));
+            //All jobs share one pool of cores, so a job running alone may use all of them
+            daemon = new MosaicDaemon(jobs, waitingJobs, cores, matching, searchEffort);
+
+            if (cmd.hasOption(CMD_OPTION_PRELOAD_DIR)) {
+                int width = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_TILE_W, "10"));
+                int height = Integer.parseInt(cmd.getOptionValue(CMD_OPTION_TILE_H, "10"));
+                for (String directory : cmd.getOptionValues(CMD_OPTION_PRELOAD_DIR)) {
+                    daemon.getLibrary(new File(directory), width, height);
+                }
+            }
+            if (cmd.hasOption(CMD_OPTION_PORT)) {
+                daemon.listen(Integer.parseInt(cmd.getOptionValue(CMD_OPTION_PORT)));
+            }
+            if (cmd.hasOption(CMD_OPTION_SPOOL_DIR)) {
+                daemon.watchSpool(new File(cmd.getOptionValue(CMD_OPTION_SPOOL_DIR)));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Not a number: " + e.getMessage());
+            System.exit(1);
+            return;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    daemon.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Parse and check command line arguments
+     *
+     * @param args command line arguments given by the user
+     * @return CommandLine object encapsulating all options
+     * @throws ParseException if wrong command line parameters or arguments are given
+     */
+    private static CommandLine doCommandLineParsing(String[] args) throws ParseException {
+        Options options = new Options();
+        Option opt;
+
+        opt = new Option(CMD_OPTION_PORT, "port", true, "take jobs from this local port");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_SPOOL_DIR, "spool-dir", true, "take jobs from *.job files in this directory");
+        opt.setRequired(false);
+        opt.setType(String.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_JOBS, "jobs", true, "the number of jobs rendered at the same time");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_WAITING_JOBS, "backlog", true,
+                "the number of further jobs accepted while all jobs slots are in use");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_MATCH_EFFORT, "match-effort", true,
+                "match tiles by their color layout, searching the given number of candidates (e.g. 64)");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_PRELOAD_DIR, "library", true, "tile directory to load at startup");
+        opt.setRequired(false);
+        opt.setType(String.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_TILE_W, "tile-width", true, "the width of the tiles loaded at startup");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        opt = new Option(CMD_OPTION_TILE_H, "tile-height", true, "the height of the tiles loaded at startup");
+        opt.setRequired(false);
+        opt.setType(Integer.class);
+        options.addOption(opt);
+
+        CommandLineParser parser = new DefaultParser();
+        return parser.parse(options, args);
+    }
+}
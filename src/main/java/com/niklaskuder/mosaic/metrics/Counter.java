@@ -0,0 +1,85 @@
+package com.niklaskuder.mosaic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event counters of the mosaic pipeline. Counting is cheap enough to be always on. The values are process wide,
+ * see {@link RunMetrics} for those of a single run.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public enum Counter {
+    /**
+     * Tiles read from the tile cache.
+     */
+    TILES_CACHED,
+    /**
+     * Tiles decoded and prepared from their image files.
+     */
+    TILES_DECODED,
+    /**
+     * Cells a tile was chosen for.
+     */
+    CELLS_MATCHED,
+    /**
+     * Index entries whose distance to a target was computed.
+     */
+    CANDIDATES_EXAMINED,
+    /**
+     * Candidates passed over because their tile was used too recently.
+     */
+    COOLDOWN_SKIPS,
+    /**
+     * Bids placed by cells while assigning tiles globally.
+     */
+    AUCTION_BIDS,
+    /**
+     * Candidate lists of tiles widened while assigning tiles globally, because a required use of the tile kept
+     * losing its cells.
+     */
+    AUCTION_WIDENINGS,
+    /**
+     * Searches of all tiles or cells while assigning tiles globally, by cells priced out of all their candidates
+     * and by tiles whose widest candidate list did not suffice.
+     */
+    AUCTION_DENSE_SEARCHES,
+    /**
+     * Cells of the smallest tile size saved by covering uniform areas with larger tiles.
+     */
+    CELLS_MERGED,
+    /**
+     * Nearest color queries answered from the candidates cached for their quantized color.
+     */
+    MATCH_CACHE_HITS,
+    /**
+     * Nearest color queries whose candidates had to be looked up first or did not suffice.
+     */
+    MATCH_CACHE_MISSES,
+    /**
+     * Cells copied from the previous output instead of being matched and drawn again.
+     */
+    CELLS_REUSED;
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds to the process wide value and to the run the current thread is bound to.
+     * @param amount the amount.
+     */
+    public void add(long amount) {
+        value.add(amount);
+        RunMetrics run = Metrics.currentRun();
+        if (run != null) {
+            run.add(this, amount);
+        }
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
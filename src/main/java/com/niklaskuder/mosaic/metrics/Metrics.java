@@ -0,0 +1,171 @@
+package com.niklaskuder.mosaic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Entry point of the pipeline instrumentation. A phase is timed by
+ * <pre>
+ *     PhaseEvent event = Metrics.begin(Phase.DRAW);
+ *     ...
+ *     Metrics.end(event);
+ * </pre>
+ * which adds its time to the phase and emits a flight recorder event. All values are process wide, and threads
+ * bound to a {@link RunMetrics} with {@link #enter(RunMetrics)} count into that run as well. Work handed to other
+ * threads stays in the run if it is wrapped with {@link #bind(Runnable)}.
+ * <p>
+ * As long as no recording asks for phase events, every thread reuses one event per phase, so timing a phase
+ * allocates nothing.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class Metrics {
+    /**
+     * Tie lists of this size or larger share the last histogram bucket.
+     */
+    public static final int MAX_TIE_LIST_SIZE = 32;
+
+    private static final LongAdder[] TIE_LIST_SIZES = new LongAdder[MAX_TIE_LIST_SIZE + 1];
+
+    private static final ThreadLocal<ThreadState> STATE = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    static {
+        for (int i = 0; i < TIE_LIST_SIZES.length; i++) {
+            TIE_LIST_SIZES[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+        throw new IllegalAccessError();
+    }
+
+    /**
+     * Starts timing a phase.
+     * @param phase the phase.
+     * @return returns the event to pass to {@link #end(PhaseEvent)}.
+     */
+    public static PhaseEvent begin(Phase phase) {
+        ThreadState state = STATE.get();
+        PhaseEvent event = state.events[phase.ordinal()];
+        if (event.active || event.isEnabled()) {
+            //A recording wants the event, or the phase is nested in itself
+            event = new PhaseEvent();
+        }
+        event.active = true;
+        event.timed = phase;
+        event.run = state.run;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing a phase.
+     * @param event the event returned by {@link #begin(Phase)}.
+     */
+    public static void end(PhaseEvent event) {
+        long duration = System.nanoTime() - event.start;
+        event.timed.add(duration);
+        if (event.run != null) {
+            event.run.add(event.timed, duration);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = event.timed.name();
+            event.commit();
+        }
+        event.run = null;
+        event.active = false;
+    }
+
+    /**
+     * Binds the current thread to a run, so that everything it counts from now on counts into the run as well.
+     * @param run the run, or null to count into no run.
+     * @return returns the run the thread was bound to before, to pass to {@link #exit(RunMetrics)}.
+     */
+    public static RunMetrics enter(RunMetrics run) {
+        ThreadState state = STATE.get();
+        RunMetrics previous = state.run;
+        state.run = run;
+        return previous;
+    }
+
+    /**
+     * Binds the current thread to the run it was bound to before {@link #enter(RunMetrics)}.
+     * @param previous the run returned by {@link #enter(RunMetrics)}.
+     */
+    public static void exit(RunMetrics previous) {
+        STATE.get().run = previous;
+    }
+
+    /**
+     * @param task the task.
+     * @return returns a task that runs the given one bound to the run of the current thread.
+     */
+    public static Runnable bind(final Runnable task) {
+        final RunMetrics run = STATE.get().run;
+        if (run == null) {
+            return task;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                RunMetrics previous = enter(run);
+                try {
+                    task.run();
+                } finally {
+                    exit(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return returns the run the current thread is bound to, or null.
+     */
+    static RunMetrics currentRun() {
+        return STATE.get().run;
+    }
+
+    /**
+     * Records the number of candidates a tile was picked from.
+     * @param size the number of candidates.
+     */
+    public static void recordTieListSize(int size) {
+        TIE_LIST_SIZES[Math.min(size, MAX_TIE_LIST_SIZE)].increment();
+        RunMetrics run = currentRun();
+        if (run != null) {
+            run.recordTieListSize(size);
+        }
+    }
+
+    /**
+     * @return returns how often each tie list size was recorded, indexed by size.
+     */
+    public static long[] getTieListSizes() {
+        long[] sizes = new long[TIE_LIST_SIZES.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = TIE_LIST_SIZES[i].sum();
+        }
+        return sizes;
+    }
+
+    /**
+     * The run a thread is bound to and the events it reuses.
+     */
+    private static final class ThreadState {
+        private final PhaseEvent[] events = new PhaseEvent[Phase.values().length];
+        private RunMetrics run;
+
+        ThreadState() {
+            for (int i = 0; i < events.length; i++) {
+                events[i] = new PhaseEvent();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.niklaskuder.mosaic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The timed phases of creating a mosaic. Phases may be nested, e.g. scaling a tile is part of creating its shape,
+ * and phases running on several threads add up, so the total times of all phases can exceed the wall time.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public enum Phase {
+    LIST_DIRECTORY,
+    READ_IMAGE,
+    SCALE_AND_CROP,
+    CREATE_SHAPE,
+    BUILD_INDEX,
+    INTEGRAL_IMAGE,
+    AVERAGE_COLOR,
+    FIND_NEAREST,
+    ASSIGN,
+    DRAW,
+    SET_SUBIMAGE,
+    ENCODE;
+
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    void add(long duration) {
+        nanos.add(duration);
+        count.increment();
+    }
+
+    /**
+     * @return returns the total time spent in this phase in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * @return returns how often this phase was run.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,34 @@
+package com.niklaskuder.mosaic.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for one run of a {@link Phase}. Only runs longer than a millisecond are recorded by
+ * default, lower the threshold of {@value #NAME} to see every cell.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+@Name(PhaseEvent.NAME)
+@Label("Mosaic Phase")
+@Description("A phase of creating a mosaic")
+@Category("Mosaic")
+@Threshold("1 ms")
+@StackTrace(false)
+public final class PhaseEvent extends Event {
+    static final String NAME = "com.niklaskuder.mosaic.Phase";
+
+    @Label("Phase")
+    String phase;
+
+    transient Phase timed;
+    transient long start;
+    transient RunMetrics run;
+    transient boolean active;
+}
@@ -0,0 +1,74 @@
+package com.niklaskuder.mosaic.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The values of {@link Metrics} counted for a single run. A thread counts into the run it was bound to with
+ * {@link Metrics#enter(RunMetrics)} in addition to the process wide values, so that runs sharing a process, like
+ * the jobs of the daemon, do not mix their numbers.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class RunMetrics {
+    private final LongAdder[] phaseNanos = adders(Phase.values().length);
+    private final LongAdder[] phaseCounts = adders(Phase.values().length);
+    private final LongAdder[] counters = adders(Counter.values().length);
+    private final LongAdder[] tieListSizes = adders(Metrics.MAX_TIE_LIST_SIZE + 1);
+
+    private static LongAdder[] adders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void add(Phase phase, long duration) {
+        phaseNanos[phase.ordinal()].add(duration);
+        phaseCounts[phase.ordinal()].increment();
+    }
+
+    void add(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    void recordTieListSize(int size) {
+        tieListSizes[Math.min(size, Metrics.MAX_TIE_LIST_SIZE)].increment();
+    }
+
+    /**
+     * @param phase the phase.
+     * @return returns the time spent in the phase during this run in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase the phase.
+     * @return returns how often the phase was run during this run.
+     */
+    public long getCount(Phase phase) {
+        return phaseCounts[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param counter the counter.
+     * @return returns the value the counter was increased by during this run.
+     */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * @return returns how often each tie list size was recorded during this run, indexed by size.
+     */
+    public long[] getTieListSizes() {
+        long[] sizes = new long[tieListSizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = tieListSizes[i].sum();
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,121 @@
+package com.niklaskuder.mosaic.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Machine readable report of one run. The report holds the {@link RunMetrics} of the run, which the threads doing
+ * the run have to be bound to with {@link Metrics#enter(RunMetrics)}, so runs that overlap with other runs in the
+ * same process only report their own values.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class RunReport {
+    private final long start = System.nanoTime();
+    private final RunMetrics metrics = new RunMetrics();
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+
+    /**
+     * @return returns the values of the run, to bind its threads to.
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Adds a property describing the run, like the input file or the tile size.
+     * @param key the name of the property.
+     * @param value the value, numbers are written as numbers, everything else as string.
+     * @return returns this report.
+     */
+    public RunReport put(String key, Object value) {
+        properties.put(key, value);
+        return this;
+    }
+
+    /**
+     * @param output the output file of the run.
+     * @return returns the file the report for this output is written to, next to the output.
+     */
+    public static File reportFile(File output) {
+        String name = output.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(output.getAbsoluteFile().getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".report.json");
+    }
+
+    /**
+     * Writes the report as JSON.
+     * @param file the report file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(toJson());
+        }
+    }
+
+    /**
+     * @return returns the report as JSON.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            json.append("  ").append(quote(property.getKey())).append(": ");
+            Object value = property.getValue();
+            json.append(value instanceof Number ? value.toString() : quote(String.valueOf(value))).append(",\n");
+        }
+        json.append("  \"wallMillis\": ").append((System.nanoTime() - start) / 1000000).append(",\n");
+
+        json.append("  \"phases\": {");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            long count = metrics.getCount(phase);
+            long nanos = metrics.getNanos(phase);
+            json.append(separator).append("    ").append(quote(phase.name())).append(": {\"count\": ").append(count)
+                    .append(", \"totalMillis\": ").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6)).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"counters\": {");
+        separator = "\n";
+        for (Counter counter : Counter.values()) {
+            json.append(separator).append("    ").append(quote(counter.name())).append(": ")
+                    .append(metrics.get(counter));
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        long[] sizes = metrics.getTieListSizes();
+        json.append("  \"tieListSizes\": [");
+        for (int i = 0; i < sizes.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(sizes[i]);
+        }
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
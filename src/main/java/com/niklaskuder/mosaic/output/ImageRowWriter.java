@@ -0,0 +1,30 @@
+package com.niklaskuder.mosaic.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes an image row by row, so the image never has to exist in memory as a whole.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public interface ImageRowWriter extends Closeable {
+
+    /**
+     * Writes the next rows of the image.
+     * @param argb the pixels as argb.
+     * @param offset the index of the first pixel of the first row.
+     * @param scanlineStride the distance between two vertically adjacent pixels.
+     * @param rows the number of rows to write.
+     * @throws IOException if the rows cannot be written.
+     */
+    void writeRows(int[] argb, int offset, int scanlineStride, int rows) throws IOException;
+
+    /**
+     * Finishes the image and closes the underlying stream.
+     * @throws IOException if not all rows were written or the stream cannot be written.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,90 @@
+package com.niklaskuder.mosaic.output;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * The formats mosaics can be written in. PNG is compressed in parallel, RAW and TIFF are not compressed at all
+ * and meant for intermediate results that are processed further.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public enum OutputFormat {
+    /**
+     * RGBA PNG, see {@link PngRowWriter}.
+     */
+    PNG {
+        @Override
+        public ImageRowWriter open(OutputStream out, int width, int height, int compressionLevel, int numThreads)
+                throws IOException {
+            return new PngRowWriter(out, width, height, compressionLevel, numThreads);
+        }
+    },
+    /**
+     * Headerless RGBA bytes, see {@link RawRowWriter}.
+     */
+    RAW {
+        @Override
+        public ImageRowWriter open(OutputStream out, int width, int height, int compressionLevel, int numThreads) {
+            return new RawRowWriter(out, width, height);
+        }
+    },
+    /**
+     * Uncompressed RGBA TIFF, see {@link TiffRowWriter}.
+     */
+    TIFF {
+        @Override
+        public ImageRowWriter open(OutputStream out, int width, int height, int compressionLevel, int numThreads)
+                throws IOException {
+            return new TiffRowWriter(out, width, height);
+        }
+    };
+
+    /**
+     * Default deflate compression level of compressed formats.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /**
+     * Opens a writer for an image in this format.
+     * @param out the stream the image is written to. It is closed together with the writer.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param compressionLevel the deflate compression level (0-9), ignored by uncompressed formats.
+     * @param numThreads the number of threads compressing the image.
+     * @return returns the writer.
+     * @throws IOException if the header cannot be written.
+     */
+    public abstract ImageRowWriter open(OutputStream out, int width, int height, int compressionLevel,
+                                        int numThreads) throws IOException;
+
+    /**
+     * Writes a whole image to a file in this format.
+     * @param image the image.
+     * @param file the file to write.
+     * @param compressionLevel the deflate compression level (0-9), ignored by uncompressed formats.
+     * @param numThreads the number of threads compressing the image.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(BufferedArtImage image, File file, int compressionLevel, int numThreads) throws IOException {
+        try (OutputStream out = new FileOutputStream(file);
+             ImageRowWriter writer = open(out, image.getWidth(), image.getHeight(), compressionLevel, numThreads)) {
+            writer.writeRows(image.getData(), image.getOffset(), image.getScanlineStride(), image.getHeight());
+        }
+    }
+
+    /**
+     * @param name the name of a format, in any case.
+     * @return returns the format.
+     * @throws IllegalArgumentException if there is no format of that name.
+     */
+    public static OutputFormat forName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
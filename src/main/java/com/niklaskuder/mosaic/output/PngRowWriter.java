@@ -0,0 +1,437 @@
+package com.niklaskuder.mosaic.output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8 bit RGBA PNG image row by row, so the image never has to exist in memory as a whole.
+ * Every row is filtered with the PNG filter that yields the smallest sum of absolute differences.
+ * <p>
+ * The rows are split into segments of about a megabyte that are filtered and deflated independently, in parallel
+ * if more than one thread is given. Every segment but the last ends with a sync flush, so the compressed segments
+ * simply follow each other in one zlib stream. Segments do not refer back to earlier ones, which costs a little
+ * compression.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class PngRowWriter implements ImageRowWriter {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int BIT_DEPTH = 8;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int FILTER_TYPES = 5;
+    private static final int SEGMENT_BYTES = 1 << 20;
+    private static final int ADLER_BASE = 65521;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final int compressionLevel;
+    private final int rowsPerSegment;
+    private final ChunkOutputStream idat;
+    private final ExecutorService executor;
+    private final int maxPending;
+    /**
+     * The last row of the previous call of writeRows, which the filters of the next row refer to.
+     */
+    private final int[] lastRow;
+    private long adler = 1;
+    private int rowsWritten;
+
+    /**
+     * Creates a writer that compresses on the calling thread.
+     * @param out the stream the image is written to. It is closed together with this writer.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param compressionLevel the deflate compression level (0-9).
+     * @throws IOException if the header cannot be written.
+     */
+    public PngRowWriter(OutputStream out, int width, int height, int compressionLevel) throws IOException {
+        this(out, width, height, compressionLevel, 1);
+    }
+
+    /**
+     * @param out the stream the image is written to. It is closed together with this writer.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param compressionLevel the deflate compression level (0-9).
+     * @param numThreads the number of threads compressing segments of the image.
+     * @throws IOException if the header cannot be written.
+     */
+    public PngRowWriter(OutputStream out, int width, int height, int compressionLevel, int numThreads)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("image dimensions must be > 0");
+        }
+        if (compressionLevel < 0 || compressionLevel > 9 || numThreads <= 0) {
+            throw new IllegalArgumentException("compressionLevel must be 0-9 and numThreads > 0");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.width = width;
+        this.height = height;
+        this.compressionLevel = compressionLevel;
+        this.rowsPerSegment = Math.max(1, SEGMENT_BYTES / (width * BYTES_PER_PIXEL + 1));
+        this.lastRow = new int[width];
+        this.executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        this.maxPending = numThreads * 2;
+        this.out.write(SIGNATURE);
+        writeHeader(this.out, width, height);
+        this.idat = new ChunkOutputStream(this.out, "IDAT");
+        writeZlibHeader();
+    }
+
+    static void writeHeader(DataOutputStream out, int width, int height) throws IOException {
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = BIT_DEPTH;
+        header[9] = COLOR_TYPE_RGBA;
+        writeChunk(out, "IHDR", header, 0, header.length);
+    }
+
+    static void writeEnd(DataOutputStream out) throws IOException {
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    private void writeZlibHeader() throws IOException {
+        int compressionMethod = 0x78;
+        int levelFlag = compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : compressionLevel == 6 ? 2 : 3;
+        int flags = levelFlag << 6;
+        flags += 31 - (compressionMethod * 256 + flags) % 31;
+        idat.write(compressionMethod);
+        idat.write(flags);
+    }
+
+    @Override
+    public void writeRows(int[] argb, int offset, int scanlineStride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("image only has " + height + " rows");
+        }
+        boolean lastCall = rowsWritten + rows == height;
+        Deque<Future<Segment>> pending = new ArrayDeque<>();
+        try {
+            for (int first = 0; first < rows; first += rowsPerSegment) {
+                int count = Math.min(rowsPerSegment, rows - first);
+                SegmentTask task = new SegmentTask(argb, offset, scanlineStride, first, count,
+                        lastCall && first + count == rows);
+                if (executor == null) {
+                    writeSegment(task.call());
+                    continue;
+                }
+                if (pending.size() >= maxPending) {
+                    writeSegment(pending.poll().get());
+                }
+                pending.add(executor.submit(task));
+            }
+            while (!pending.isEmpty()) {
+                writeSegment(pending.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("compressing failed", e.getCause());
+        } finally {
+            for (Future<Segment> future : pending) {
+                future.cancel(true);
+            }
+        }
+        System.arraycopy(argb, offset + (rows - 1) * scanlineStride, lastRow, 0, width);
+        rowsWritten += rows;
+    }
+
+    private void writeSegment(Segment segment) throws IOException {
+        idat.write(segment.data, 0, segment.length);
+        adler = combineAdler32(adler, segment.adler, segment.rawLength);
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive pieces of data.
+     * @param first the checksum of the first piece.
+     * @param second the checksum of the second piece.
+     * @param secondLength the length of the second piece.
+     * @return returns the checksum of both pieces.
+     */
+    static long combineAdler32(long first, long second, long secondLength) {
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        sum1 %= ADLER_BASE;
+        sum2 %= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Finishes the image and closes the underlying stream.
+     * @throws IOException if not all rows were written or the stream cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("only " + rowsWritten + " of " + height + " rows were written");
+            }
+            idat.write((int) (adler >>> 24));
+            idat.write((int) (adler >>> 16));
+            idat.write((int) (adler >>> 8));
+            idat.write((int) adler);
+            idat.flush();
+            writeEnd(out);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * A compressed segment of rows.
+     */
+    private static final class Segment {
+        private final byte[] data;
+        private final int length;
+        private final long adler;
+        private final int rawLength;
+
+        private Segment(byte[] data, int length, long adler, int rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+
+    /**
+     * Filters and deflates one segment of the rows given to writeRows.
+     */
+    private final class SegmentTask implements Callable<Segment> {
+        private final int[] argb;
+        private final int offset;
+        private final int scanlineStride;
+        private final int firstRow;
+        private final int rows;
+        private final boolean last;
+
+        private SegmentTask(int[] argb, int offset, int scanlineStride, int firstRow, int rows, boolean last) {
+            this.argb = argb;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.last = last;
+        }
+
+        @Override
+        public Segment call() {
+            RowFilter filter = new RowFilter(width);
+            if (firstRow > 0) {
+                filter.setPreviousRow(argb, offset + (firstRow - 1) * scanlineStride);
+            } else if (rowsWritten > 0) {
+                filter.setPreviousRow(lastRow, 0);
+            }
+            int lineLength = width * BYTES_PER_PIXEL + 1;
+            byte[] raw = new byte[rows * lineLength];
+            for (int i = 0; i < rows; i++) {
+                byte[] line = filter.filterRow(argb, offset + (firstRow + i) * scanlineStride);
+                System.arraycopy(line, 0, raw, i * lineLength, lineLength);
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(raw, 0, raw.length);
+
+            Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                deflater.setInput(raw);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] data = new byte[Math.max(1024, raw.length / 2)];
+                int length = 0;
+                while (true) {
+                    if (length == data.length) {
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    int n = deflater.deflate(data, length, data.length - length,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    length += n;
+                    if (last ? deflater.finished() : length < data.length) {
+                        break;
+                    }
+                }
+                return new Segment(data, length, checksum.getValue(), raw.length);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Converts argb rows to filtered PNG scanlines. Keeps the previous row, which the filters refer to.
+     */
+    static final class RowFilter {
+        private final int rowBytes;
+        private byte[] previous;
+        private byte[] current;
+        private final byte[][] candidates;
+
+        RowFilter(int width) {
+            this.rowBytes = width * BYTES_PER_PIXEL;
+            this.previous = new byte[rowBytes];
+            this.current = new byte[rowBytes];
+            this.candidates = new byte[FILTER_TYPES][rowBytes + 1];
+        }
+
+        /**
+         * Sets the row above the next filtered row, for starting in the middle of an image.
+         */
+        void setPreviousRow(int[] argb, int offset) {
+            toBytes(argb, offset, previous);
+        }
+
+        private void toBytes(int[] argb, int offset, byte[] bytes) {
+            for (int i = 0, b = 0; i < rowBytes / BYTES_PER_PIXEL; i++, b += BYTES_PER_PIXEL) {
+                int pixel = argb[offset + i];
+                bytes[b] = (byte) (pixel >> 16);
+                bytes[b + 1] = (byte) (pixel >> 8);
+                bytes[b + 2] = (byte) pixel;
+                bytes[b + 3] = (byte) (pixel >>> 24);
+            }
+        }
+
+        /**
+         * @return returns the filtered scanline including its leading filter type byte. The array is reused by the
+         * next call.
+         */
+        byte[] filterRow(int[] argb, int offset) {
+            toBytes(argb, offset, current);
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int type = 0; type < FILTER_TYPES; type++) {
+                byte[] line = candidates[type];
+                line[0] = (byte) type;
+                long sum = 0;
+                for (int i = 0; i < rowBytes; i++) {
+                    int raw = current[i] & 0xFF;
+                    int left = i >= BYTES_PER_PIXEL ? current[i - BYTES_PER_PIXEL] & 0xFF : 0;
+                    int up = previous[i] & 0xFF;
+                    int upLeft = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xFF : 0;
+                    byte value = (byte) (raw - predict(type, left, up, upLeft));
+                    line[i + 1] = value;
+                    sum += Math.abs(value);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = type;
+                }
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            return candidates[best];
+        }
+
+        private static int predict(int type, int left, int up, int upLeft) {
+            switch (type) {
+                case 1:
+                    return left;
+                case 2:
+                    return up;
+                case 3:
+                    return (left + up) >>> 1;
+                case 4:
+                    int p = left + up - upLeft;
+                    int pa = Math.abs(p - left);
+                    int pb = Math.abs(p - up);
+                    int pc = Math.abs(p - upLeft);
+                    if (pa <= pb && pa <= pc) {
+                        return left;
+                    }
+                    return pb <= pc ? up : upLeft;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * Splits everything written to it into chunks of the given type.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private static final int CHUNK_SIZE = 1 << 16;
+
+        private final DataOutputStream out;
+        private final String type;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size;
+
+        private ChunkOutputStream(DataOutputStream out, String type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[size++] = (byte) b;
+            if (size == CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+                if (size == CHUNK_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (size > 0) {
+                writeChunk(out, type, buffer, 0, size);
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.niklaskuder.mosaic.output;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the pixels of an image as plain 8 bit RGBA bytes, row by row from the top, without any header.
+ * Nothing is compressed, so this is the fastest way to hand an image to another tool.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class RawRowWriter implements ImageRowWriter {
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] line;
+    private int rowsWritten;
+
+    /**
+     * @param out the stream the image is written to. It is closed together with this writer.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     */
+    public RawRowWriter(OutputStream out, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("image dimensions must be > 0");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.width = width;
+        this.height = height;
+        this.line = new byte[width * BYTES_PER_PIXEL];
+    }
+
+    @Override
+    public void writeRows(int[] argb, int offset, int scanlineStride, int rows) throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("image only has " + height + " rows");
+        }
+        for (int row = 0; row < rows; row++) {
+            int index = offset + row * scanlineStride;
+            for (int i = 0, b = 0; i < width; i++, b += BYTES_PER_PIXEL) {
+                int pixel = argb[index + i];
+                line[b] = (byte) (pixel >> 16);
+                line[b + 1] = (byte) (pixel >> 8);
+                line[b + 2] = (byte) pixel;
+                line[b + 3] = (byte) (pixel >>> 24);
+            }
+            out.write(line);
+        }
+        rowsWritten += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("only " + rowsWritten + " of " + height + " rows were written");
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.niklaskuder.mosaic.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes an uncompressed 8 bit RGBA baseline TIFF image row by row. The pixels are stored in strips of about a
+ * megabyte, so readers can decode parts of the image through source regions without reading all of it.
+ * All offsets are known in advance, so the header is written first and the rows follow as they come.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TiffRowWriter implements ImageRowWriter {
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int STRIP_BYTES = 1 << 20;
+    private static final int ENTRIES = 11;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+
+    private final RawRowWriter pixels;
+
+    /**
+     * @param out the stream the image is written to. It is closed together with this writer.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @throws IOException if the header cannot be written.
+     */
+    public TiffRowWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("image dimensions must be > 0");
+        }
+        long rowBytes = (long) width * BYTES_PER_PIXEL;
+        int rowsPerStrip = (int) Math.max(1, Math.min(height, STRIP_BYTES / rowBytes));
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        int ifdSize = 2 + ENTRIES * 12 + 4;
+        int bitsOffset = 8 + ifdSize;
+        int offsetsOffset = bitsOffset + 8;
+        int countsOffset = offsetsOffset + (strips > 1 ? strips * 4 : 0);
+        int dataOffset = countsOffset + (strips > 1 ? strips * 4 : 0);
+        if (dataOffset + rowBytes * height > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("image too large for TIFF");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) ENTRIES);
+        putEntry(header, 256, TYPE_LONG, 1, width);
+        putEntry(header, 257, TYPE_LONG, 1, height);
+        putEntry(header, 258, TYPE_SHORT, BYTES_PER_PIXEL, bitsOffset);
+        // no compression
+        putShortEntry(header, 259, 1);
+        // RGB
+        putShortEntry(header, 262, 2);
+        putEntry(header, 273, TYPE_LONG, strips, strips > 1 ? offsetsOffset : dataOffset);
+        putShortEntry(header, 277, BYTES_PER_PIXEL);
+        putEntry(header, 278, TYPE_LONG, 1, rowsPerStrip);
+        putEntry(header, 279, TYPE_LONG, strips, strips > 1 ? countsOffset : (int) (rowBytes * height));
+        // chunky
+        putShortEntry(header, 284, 1);
+        // unassociated alpha
+        putShortEntry(header, 338, 2);
+        header.putInt(0);
+        for (int i = 0; i < BYTES_PER_PIXEL; i++) {
+            header.putShort((short) 8);
+        }
+        if (strips > 1) {
+            for (int i = 0; i < strips; i++) {
+                header.putInt((int) (dataOffset + i * rowsPerStrip * rowBytes));
+            }
+            for (int i = 0; i < strips; i++) {
+                header.putInt((int) (Math.min(rowsPerStrip, height - i * rowsPerStrip) * rowBytes));
+            }
+        }
+        out.write(header.array());
+        this.pixels = new RawRowWriter(out, width, height);
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, short type, int count, int value) {
+        buffer.putShort((short) tag).putShort(type).putInt(count).putInt(value);
+    }
+
+    private static void putShortEntry(ByteBuffer buffer, int tag, int value) {
+        buffer.putShort((short) tag).putShort(TYPE_SHORT).putInt(1).putShort((short) value).putShort((short) 0);
+    }
+
+    @Override
+    public void writeRows(int[] argb, int offset, int scanlineStride, int rows) throws IOException {
+        pixels.writeRows(argb, offset, scanlineStride, rows);
+    }
+
+    @Override
+    public void close() throws IOException {
+        pixels.close();
+    }
+}
@@ -0,0 +1,104 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.TileAssignment;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Easel that matches all cells at once instead of one after another. The tiles are assigned with a
+ * {@link TileAssignment}, so that every tile is used at least minUses and at most maxUses times and the total
+ * color error of the mosaic is as low as these limits allow. Cells and tiles are compared by average color only.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class AssignmentMosaicEasel implements MosaicEasel {
+    private final int numThreads;
+    private final int minUses;
+    private final int maxUses;
+
+    /**
+     * @param numThreads the number of worker threads.
+     * @param minUses the number of times every tile is used at least, as far as there are enough cells.
+     * @param maxUses the number of times every tile is used at most.
+     */
+    public AssignmentMosaicEasel(int numThreads, int minUses, int maxUses) {
+        if (numThreads <= 0 || minUses < 0 || maxUses <= 0 || minUses > maxUses) {
+            throw new IllegalArgumentException("numThreads and maxUses must be > 0 and minUses 0-maxUses");
+        }
+        this.numThreads = numThreads;
+        this.minUses = minUses;
+        this.maxUses = maxUses;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the tiles used at most maxUses times cannot cover all cells.
+     */
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        BufferedArtImage image = new BufferedArtImage(input);
+        IntegralImage integral = new IntegralImage(image, numThreads);
+        CellScheduler scheduler = new CellScheduler(image.getWidth(), image.getHeight(), artist.getTileWidth(),
+                artist.getTileHeight(), CellScheduler.Order.ROWS);
+
+        int columns = scheduler.getColumns();
+        int[] cellColors = new int[scheduler.getCellCount()];
+        PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+        for (int row = 0; row < scheduler.getRows(); row++) {
+            for (int column = 0; column < columns; column++) {
+                cellColors[row * columns + column] = integral.averageColor(scheduler.getCellX(column),
+                        scheduler.getCellY(row), scheduler.getCellWidth(column), scheduler.getCellHeight(row));
+            }
+        }
+        Metrics.end(event);
+
+        List<MosaicShape> shapes = artist.getShapes();
+        int[] tileColors = new int[shapes.size()];
+        for (int i = 0; i < tileColors.length; i++) {
+            tileColors[i] = shapes.get(i).getAverageColor();
+        }
+        event = Metrics.begin(Phase.ASSIGN);
+        int[] tiles = new TileAssignment(tileColors, minUses, maxUses, numThreads).assign(cellColors);
+        Metrics.end(event);
+
+        scheduler.run(numThreads, new DrawTask(scheduler, image, shapes, tiles));
+        return image.toBufferedImage();
+    }
+
+    /**
+     * Draws the assigned tile of a cell.
+     */
+    private static final class DrawTask implements CellScheduler.CellTask {
+        private final CellScheduler scheduler;
+        private final BufferedArtImage image;
+        private final List<MosaicShape> shapes;
+        private final int[] tiles;
+
+        DrawTask(CellScheduler scheduler, BufferedArtImage image, List<MosaicShape> shapes, int[] tiles) {
+            this.scheduler = scheduler;
+            this.image = image;
+            this.shapes = shapes;
+            this.tiles = tiles;
+        }
+
+        @Override
+        public void run(int column, int row) {
+            int x = scheduler.getCellX(column);
+            int y = scheduler.getCellY(row);
+            BufferedArtImage sub = image.getSubimage(x, y, scheduler.getCellWidth(column),
+                    scheduler.getCellHeight(row));
+            shapes.get(tiles[row * scheduler.getColumns() + column]).drawMe(sub);
+            image.setSubimage(x, y, sub);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.metrics.Metrics;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Easel that creates mosaics asynchronously on an executor owned by the caller and returns a future of the
+ * mosaic right away.
+ * <p>
+ * Every mosaic runs as at most the given number of worker tasks, which take cells until none are left and
+ * never block. Several easels and mosaics can therefore share one pool sized to the number of cores: their
+ * workers queue up instead of oversubscribing the cores, and no mosaic waits for a thread of the pool while
+ * holding one. Blocking stages like reading and writing images belong on a different executor.
+ * <p>
+ * The future fails with the first exception thrown by a worker. Once it is done, be it cancelled, timed out or
+ * failed, the remaining workers stop after their current chunk of cells.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class AsyncMosaicEasel implements MosaicEasel {
+    private final Executor executor;
+    private final int parallelism;
+    private final CellScheduler.Order order;
+
+    /**
+     * @param executor the executor running the workers.
+     * @param parallelism the maximum number of workers of one mosaic.
+     * @param order the order in which the workers walk the cells.
+     */
+    public AsyncMosaicEasel(Executor executor, int parallelism, CellScheduler.Order order) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be > 0");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.order = order;
+    }
+
+    /**
+     * Starts creating a mosaic.
+     * @param input the input image.
+     * @param artist the artist providing the tiles, which must not be used by another mosaic at the same time.
+     * @return returns the future of the mosaic. Cancelling it stops the workers.
+     */
+    public CompletableFuture<BufferedImage> createMosaicAsync(final BufferedImage input, final MosaicArtist artist) {
+        final CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!result.isDone()) {
+                        startWorkers(input, artist, result);
+                    }
+                } catch (RuntimeException | Error e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }, result);
+        return result;
+    }
+
+    /**
+     * Starts creating a mosaic that has to be done before a deadline.
+     * @param input the input image.
+     * @param artist the artist providing the tiles, which must not be used by another mosaic at the same time.
+     * @param timeout the time the mosaic may take.
+     * @param unit the unit of the timeout.
+     * @return returns the future of the mosaic, which fails with a {@link java.util.concurrent.TimeoutException}
+     * and stops the workers once the timeout expired.
+     */
+    public CompletableFuture<BufferedImage> createMosaicAsync(BufferedImage input, MosaicArtist artist,
+                                                              long timeout, TimeUnit unit) {
+        return createMosaicAsync(input, artist).orTimeout(timeout, unit);
+    }
+
+    /**
+     * Creates a mosaic and waits for it. If the waiting thread is interrupted, the mosaic is cancelled.
+     */
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        CompletableFuture<BufferedImage> mosaic = createMosaicAsync(input, artist);
+        try {
+            return mosaic.get();
+        } catch (InterruptedException e) {
+            mosaic.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while creating mosaic", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("creating mosaic failed", e.getCause());
+        }
+    }
+
+    private void startWorkers(BufferedImage input, MosaicArtist artist, CompletableFuture<BufferedImage> result) {
+        final BufferedArtImage image = new BufferedArtImage(input);
+        IntegralImage integral = new IntegralImage(image);
+        CellScheduler scheduler = new CellScheduler(image.getWidth(), image.getHeight(), artist.getTileWidth(),
+                artist.getTileHeight(), order);
+        int workers = Math.min(parallelism, scheduler.getCellCount());
+        final AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers && !result.isDone(); i++) {
+            final MosaicRunnable cells = new MosaicRunnable(scheduler, image, integral, artist, image, result);
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cells.run();
+                    } catch (RuntimeException | Error e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        if (running.decrementAndGet() == 0) {
+                            result.complete(image.toBufferedImage());
+                        }
+                    }
+                }
+            }, result);
+        }
+    }
+
+    private void execute(Runnable task, CompletableFuture<?> result) {
+        try {
+            executor.execute(Metrics.bind(task));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicProgressListener;
+import com.niklaskuder.mosaic.base.MosaicProgressListener.Pass;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
+import com.niklaskuder.mosaic.output.ImageRowWriter;
+import com.niklaskuder.mosaic.output.OutputFormat;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders mosaics of images too large to be held in memory. The input is read in horizontal bands of whole tile
+ * rows through source regions, every band is rendered like a small mosaic, and its rows are written straight to
+ * an encoder. Memory use therefore depends on the band size only.
+ * <p>
+ * Readers of sequential formats like JPEG or PNG decode all rows above a band again for every band, so bands
+ * should be as large as memory allows. Tiled or striped TIFF inputs can be read without that overhead.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class BandedMosaicRenderer {
+    /**
+     * Bytes held per pixel of a band at the peak: the argb pixels (4), the integral image (16) and, while the band
+     * is converted after reading, the decoded input (up to 4). Encoding needs less, the argb pixels plus about 6
+     * bytes of filtered and compressed rows, as the integral image is dropped by then.
+     */
+    public static final int BAND_BYTES_PER_PIXEL = 24;
+    /**
+     * Default memory for rendering one band.
+     */
+    public static final long DEFAULT_BAND_BYTES = 512L * 1024 * 1024;
+    /**
+     * Default number of pixels per band, so that rendering a band takes about {@link #DEFAULT_BAND_BYTES}.
+     */
+    public static final int DEFAULT_BAND_PIXELS = (int) (DEFAULT_BAND_BYTES / BAND_BYTES_PER_PIXEL);
+
+    private final int numThreads;
+    private final int bandPixels;
+    private final int compressionLevel;
+    private final OutputFormat format;
+    private final MosaicProgressListener listener;
+
+    public BandedMosaicRenderer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BAND_PIXELS, OutputFormat.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * @param numThreads the number of threads rendering the cells of a band.
+     * @param bandPixels the maximum number of pixels per band, a band always holds at least one row of tiles.
+     * @param compressionLevel the deflate compression level of the output (0-9).
+     */
+    public BandedMosaicRenderer(int numThreads, int bandPixels, int compressionLevel) {
+        this(numThreads, bandPixels, compressionLevel, OutputFormat.PNG);
+    }
+
+    /**
+     * @param numThreads the number of threads rendering the cells of a band and compressing the output.
+     * @param bandPixels the maximum number of pixels per band, a band always holds at least one row of tiles.
+     * @param compressionLevel the deflate compression level of the output (0-9).
+     * @param format the format of the output.
+     */
+    public BandedMosaicRenderer(int numThreads, int bandPixels, int compressionLevel, OutputFormat format) {
+        this(numThreads, bandPixels, compressionLevel, format, null);
+    }
+
+    /**
+     * @param numThreads the number of threads rendering the cells of a band and compressing the output.
+     * @param bandPixels the maximum number of pixels per band, a band always holds at least one row of tiles.
+     * @param compressionLevel the deflate compression level of the output (0-9).
+     * @param format the format of the output.
+     * @param listener the listener receiving the share of the {@link Pass#DRAW} pass done after every band, or
+     *                 null. The bands are not published.
+     */
+    public BandedMosaicRenderer(int numThreads, int bandPixels, int compressionLevel, OutputFormat format,
+                                MosaicProgressListener listener) {
+        if (numThreads <= 0 || bandPixels <= 0) {
+            throw new IllegalArgumentException("numThreads and bandPixels must be > 0");
+        }
+        this.numThreads = numThreads;
+        this.bandPixels = bandPixels;
+        this.compressionLevel = compressionLevel;
+        this.format = format;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates the mosaic of an image file and writes it in the format of this renderer.
+     * @param input the input image file.
+     * @param artist the artist providing the tiles.
+     * @param output the file to write.
+     * @throws IOException if the input cannot be read or the output cannot be written.
+     */
+    public void createMosaic(File input, MosaicArtist artist, File output) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = createReader(input, stream);
+            try {
+                render(reader, artist, output, executor);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ImageReader createReader(File input, ImageInputStream stream) throws IOException {
+        Iterator<ImageReader> readers = stream == null
+                ? null : ImageIO.getImageReaders(stream);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("no image reader for " + input);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, false, true);
+        return reader;
+    }
+
+    private void render(ImageReader reader, MosaicArtist artist, File output, ExecutorService executor)
+            throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int tileHeight = artist.getTileHeight();
+        int bandHeight = Math.max(1, bandPixels / width / tileHeight) * tileHeight;
+
+        try (OutputStream out = new FileOutputStream(output);
+             ImageRowWriter writer = format.open(out, width, height, compressionLevel, numThreads)) {
+            for (int y = 0; y < height; y += bandHeight) {
+                int rows = Math.min(bandHeight, height - y);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y, width, rows));
+                PhaseEvent event = Metrics.begin(Phase.READ_IMAGE);
+                BufferedArtImage band = new BufferedArtImage(reader.read(0, param));
+                Metrics.end(event);
+                renderBand(band, artist, executor);
+                event = Metrics.begin(Phase.ENCODE);
+                writer.writeRows(band.getData(), band.getOffset(), band.getScanlineStride(), rows);
+                Metrics.end(event);
+                if (listener != null) {
+                    listener.progressChanged(Pass.DRAW, (int) (100L * (y + rows) / height));
+                }
+            }
+        }
+    }
+
+    private void renderBand(BufferedArtImage band, MosaicArtist artist, ExecutorService executor) {
+        IntegralImage integral = new IntegralImage(band, numThreads);
+        CellScheduler scheduler = new CellScheduler(band.getWidth(), band.getHeight(), artist.getTileWidth(),
+                artist.getTileHeight(), CellScheduler.Order.ROWS);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(executor.submit(Metrics.bind(new MosaicRunnable(scheduler, band, integral, artist, band))));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while creating mosaic", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("creating mosaic failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.KdTreeColorIndex;
+import com.niklaskuder.mosaic.base.MatchMap;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.NearestColorIndex;
+import com.niklaskuder.mosaic.metrics.Counter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Easel that saves its matches in a {@link MatchMap} and reuses the previous output where nothing changed.
+ * A cell whose input pixels are the same as those of a cell of the previous run, at the same or at another
+ * position, is copied from the previous output, so moving the crop by whole tiles keeps most of the mosaic.
+ * Only cells with new input pixels, cells whose tile left the library and cells for which a newly added tile is
+ * closer than the previous one by more than the threshold are matched and drawn again.
+ * <p>
+ * Without a compatible map and previous output of the same tile size, every cell is drawn and the map is
+ * created.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class IncrementalMosaicEasel implements MosaicEasel {
+    /**
+     * Default distance in rgb by which a new tile has to be closer to a cell than its previous tile.
+     */
+    public static final double DEFAULT_THRESHOLD = 8;
+
+    private static final NearestColorIndex.Filter ALL_TILES = new NearestColorIndex.Filter() {
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    private final int numThreads;
+    private final File mapFile;
+    private final BufferedImage previousOutput;
+    private final double threshold;
+    private final AtomicInteger reusedCells = new AtomicInteger();
+
+    /**
+     * @param numThreads the number of worker threads.
+     * @param mapFile the file the map of the previous run is read from and the new map is saved to.
+     * @param previousOutput the output of the previous run, or null to draw every cell.
+     * @param threshold the distance in rgb by which a new tile has to be closer to a cell than its previous tile
+     *                  for the cell to be drawn again.
+     */
+    public IncrementalMosaicEasel(int numThreads, File mapFile, BufferedImage previousOutput, double threshold) {
+        if (numThreads <= 0 || threshold < 0) {
+            throw new IllegalArgumentException("numThreads must be > 0 and threshold >= 0");
+        }
+        this.numThreads = numThreads;
+        this.mapFile = mapFile;
+        this.previousOutput = previousOutput;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        BufferedArtImage image = new BufferedArtImage(input);
+        IntegralImage integral = new IntegralImage(image, numThreads);
+        CellScheduler scheduler = new CellScheduler(image.getWidth(), image.getHeight(), artist.getTileWidth(),
+                artist.getTileHeight(), CellScheduler.Order.ROWS);
+        Render render = new Render(scheduler, image, integral, artist);
+        reusedCells.set(0);
+
+        scheduler.run(numThreads, render);
+        try {
+            new MatchMap(image.getWidth(), image.getHeight(), artist.getTileWidth(), artist.getTileHeight(),
+                    render.library, render.tiles, render.averages, render.regionHashes).write(mapFile);
+        } catch (IOException e) {
+            System.err.println("Could not write match map " + mapFile + ": " + e.getMessage());
+        }
+        return image.toBufferedImage();
+    }
+
+    /**
+     * @return returns the number of cells the last mosaic copied from the previous output.
+     */
+    public int getReusedCells() {
+        return reusedCells.get();
+    }
+
+    private static int distance(int a, int b) {
+        int dist = 0;
+        for (int channel = 24; channel >= 0; channel -= 8) {
+            int d = ((a >>> channel) & 0xFF) - ((b >>> channel) & 0xFF);
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    /**
+     * One mosaic. Every worker thread runs it for the cells it takes from the scheduler.
+     */
+    private final class Render implements CellScheduler.CellTask {
+        private final CellScheduler scheduler;
+        private final BufferedArtImage image;
+        private final IntegralImage integral;
+        private final MosaicArtist artist;
+        private final List<MosaicShape> shapes;
+        private final long[] library;
+        private final Map<Long, Integer> tilesByHash = new HashMap<>();
+        private final long[] tiles;
+        private final int[] averages;
+        private final long[] regionHashes;
+
+        private MatchMap previous;
+        private BufferedArtImage previousImage;
+        private boolean sameGrid;
+        private final Map<Long, List<Integer>> cellsByHash = new HashMap<>();
+        private NearestColorIndex newTileIndex;
+        private int[] newTiles;
+
+        Render(CellScheduler scheduler, BufferedArtImage image, IntegralImage integral, MosaicArtist artist) {
+            this.scheduler = scheduler;
+            this.image = image;
+            this.integral = integral;
+            this.artist = artist;
+            this.shapes = artist.getShapes();
+            this.library = new long[shapes.size()];
+            for (int i = 0; i < library.length; i++) {
+                library[i] = MatchMap.tileHash(shapes.get(i));
+                tilesByHash.put(library[i], i);
+            }
+            this.tiles = new long[scheduler.getCellCount()];
+            this.averages = new int[tiles.length];
+            this.regionHashes = new long[tiles.length];
+            loadPrevious();
+        }
+
+        private void loadPrevious() {
+            MatchMap map = previousOutput == null ? null : MatchMap.read(mapFile);
+            if (map == null || map.getTileWidth() != artist.getTileWidth()
+                    || map.getTileHeight() != artist.getTileHeight() || map.getWidth() != previousOutput.getWidth()
+                    || map.getHeight() != previousOutput.getHeight()) {
+                return;
+            }
+            previous = map;
+            previousImage = new BufferedArtImage(previousOutput);
+            sameGrid = map.getWidth() == image.getWidth() && map.getHeight() == image.getHeight();
+            for (int cell = 0; cell < map.getCellCount(); cell++) {
+                List<Integer> cells = cellsByHash.get(map.getRegionHash(cell));
+                if (cells == null) {
+                    cells = new ArrayList<>();
+                    cellsByHash.put(map.getRegionHash(cell), cells);
+                }
+                cells.add(cell);
+            }
+            if (map.hasLibrary(library)) {
+                return;
+            }
+            List<Integer> added = new ArrayList<>();
+            for (int i = 0; i < library.length; i++) {
+                if (!map.containsTile(library[i])) {
+                    added.add(i);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            newTiles = new int[added.size()];
+            int[] colors = new int[added.size()];
+            for (int i = 0; i < newTiles.length; i++) {
+                newTiles[i] = added.get(i);
+                colors[i] = shapes.get(newTiles[i]).getAverageColor();
+            }
+            newTileIndex = new KdTreeColorIndex(colors);
+        }
+
+        @Override
+        public void run(int column, int row) {
+            int cell = row * scheduler.getColumns() + column;
+            int x = scheduler.getCellX(column);
+            int y = scheduler.getCellY(row);
+            int w = scheduler.getCellWidth(column);
+            int h = scheduler.getCellHeight(row);
+            long regionHash = MatchMap.hash(image, x, y, w, h);
+            int source = previous == null ? -1 : findPreviousCell(cell, regionHash);
+            Integer stored = source < 0 ? null : tilesByHash.get(previous.getTile(source));
+            int tile;
+            int average;
+            if (stored != null) {
+                average = previous.getAverage(source);
+                tile = findBetterTile(average, stored);
+                if (tile < 0) {
+                    tile = stored;
+                    copyPreviousCell(source, x, y, w, h);
+                    reusedCells.incrementAndGet();
+                    Counter.CELLS_REUSED.increment();
+                } else {
+                    drawCell(tile, x, y, w, h);
+                }
+            } else {
+                average = integral.averageColor(x, y, w, h);
+                tile = artist.matchTile(image.getSubimage(x, y, w, h), integral, x, y);
+                drawCell(tile, x, y, w, h);
+            }
+            tiles[cell] = library[tile];
+            averages[cell] = average;
+            regionHashes[cell] = regionHash;
+        }
+
+        /**
+         * @return returns a cell of the previous run with the same input pixels, preferably the one at the same
+         *     position, or -1 if there is none.
+         */
+        private int findPreviousCell(int cell, long regionHash) {
+            if (sameGrid && previous.getRegionHash(cell) == regionHash) {
+                return cell;
+            }
+            List<Integer> cells = cellsByHash.get(regionHash);
+            //Spread equal cells, like those of a flat sky, over all their previous counterparts
+            return cells == null ? -1 : cells.get(cell % cells.size());
+        }
+
+        /**
+         * @return returns a new tile closer to the average by more than the threshold than the stored tile, or
+         *     -1 if there is none.
+         */
+        private int findBetterTile(int average, int stored) {
+            if (newTileIndex == null) {
+                return -1;
+            }
+            int[] nearest = new int[1];
+            if (newTileIndex.findNearest(average, 1, 0, 1, ALL_TILES, nearest) == 0) {
+                return -1;
+            }
+            int candidate = newTiles[nearest[0]];
+            double storedDistance = Math.sqrt(distance(average, shapes.get(stored).getAverageColor()));
+            double candidateDistance = Math.sqrt(distance(average, shapes.get(candidate).getAverageColor()));
+            return storedDistance - candidateDistance > threshold ? candidate : -1;
+        }
+
+        private void copyPreviousCell(int source, int x, int y, int w, int h) {
+            int columns = previous.getColumns();
+            int sourceX = (source % columns) * previous.getTileWidth();
+            int sourceY = (source / columns) * previous.getTileHeight();
+            int[] from = previousImage.getData();
+            int[] to = image.getData();
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(from, previousImage.getIndex(sourceX, sourceY + row, w), to,
+                        image.getIndex(x, y + row, w), w);
+            }
+        }
+
+        private void drawCell(int tile, int x, int y, int w, int h) {
+            BufferedArtImage sub = image.getSubimage(x, y, w, h);
+            shapes.get(tile).drawMe(sub);
+            image.setSubimage(x, y, sub);
+        }
+    }
+}
@@ -1,69 +1,62 @@
 package com.niklaskuder.mosaic.rectangle;
 
 import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
 import com.niklaskuder.mosaic.base.MosaicArtist;
-import com.niklaskuder.mosaic.base.MosaicShape;
 
-public final class MosaicRunnable implements Runnable {
-    private static int heightIndex = 0;
-    private static int widthIndex = 0;
+import java.util.concurrent.Future;
 
-    private final int tileWidth;
-    private final int tileHeight;
+/**
+ * Renders the cells of a mosaic. As a runnable, it takes chunks from the scheduler until none are left or the job
+ * is done, as a {@link CellScheduler.CellTask} it renders the single cells handed to it.
+ */
+public final class MosaicRunnable implements Runnable, CellScheduler.CellTask {
+    private final CellScheduler scheduler;
     private final BufferedArtImage image;
     private final MosaicArtist artist;
     private final BufferedArtImage result;
+    private final IntegralImage integral;
+    private final Future<?> job;
 
-    public MosaicRunnable(BufferedArtImage image, MosaicArtist artist, BufferedArtImage result) {
+    public MosaicRunnable(CellScheduler scheduler, BufferedArtImage image, IntegralImage integral,
+                          MosaicArtist artist, BufferedArtImage result) {
+        this(scheduler, image, integral, artist, result, null);
+    }
+
+    /**
+     * Creates a runnable that stops after its current chunk once the given job is done, which it is when it
+     * was cancelled, timed out or failed on another thread.
+     * @param job the future of the mosaic the cells belong to, or null.
+     */
+    public MosaicRunnable(CellScheduler scheduler, BufferedArtImage image, IntegralImage integral,
+                          MosaicArtist artist, BufferedArtImage result, Future<?> job) {
+        this.job = job;
+        this.scheduler = scheduler;
         this.artist = artist;
-        this.tileWidth = artist.getTileWidth();
-        this.tileHeight = artist.getTileHeight();
+        this.integral = integral;
         this.image = image;
         this.result = result;
     }
 
     @Override
     public void run() {
-        while (heightIndex <= image.getHeight()) {
-            int[] bounds = getBounds();
-            int x = bounds[0];
-            int y = bounds[1];
-            System.out.println("Working in: " + x + ", " + y);
-            int width = x + tileWidth < image.getWidth() ? tileWidth : image.getWidth() - x;
-            int height = y + tileHeight < image.getHeight() ? tileHeight : image.getHeight() - y;
-            if (width <= 0 || height <= 0) {
-                break;
-            }
-            BufferedArtImage sub = image.getSubimage(x, y, width, height);
-            BufferedArtImage tile = artist.getTileForRegion(sub);
-            decreaseDisabledCounts();
-            result.setSubimage(x, y, tile);
-        }
-    }
-
-    private synchronized void decreaseDisabledCounts() {
-        for (MosaicShape shape : artist.getShapes()) {
-            if (shape.isDisabled()) {
-                shape.decreaseDisabled();
+        CellScheduler.Chunk chunk;
+        while ((job == null || !job.isDone()) && (chunk = scheduler.next()) != null) {
+            for (int row = chunk.getFirstRow(); row < chunk.getEndRow(); row++) {
+                for (int column = chunk.getFirstColumn(); column < chunk.getEndColumn(); column++) {
+                    run(column, row);
+                }
             }
         }
     }
 
-    public static void resetBounds() {
-        heightIndex = 0;
-        widthIndex = 0;
-    }
-
-    private synchronized int[] getBounds() {
-        int[] bounds = new int[2];
-        bounds[0] = widthIndex;
-        bounds[1] = heightIndex;
-        if (widthIndex >= image.getWidth() - tileWidth) {
-            widthIndex = 0;
-            heightIndex += tileHeight;
-        } else {
-            widthIndex += tileWidth;
-        }
-        return bounds;
+    @Override
+    public void run(int column, int row) {
+        int x = scheduler.getCellX(column);
+        int y = scheduler.getCellY(row);
+        BufferedArtImage sub = image.getSubimage(x, y, scheduler.getCellWidth(column), scheduler.getCellHeight(row));
+        BufferedArtImage tile = artist.getTileForRegion(sub, integral, x, y);
+        result.setSubimage(x, y, tile);
     }
 }
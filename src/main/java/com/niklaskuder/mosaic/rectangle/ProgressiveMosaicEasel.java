@@ -0,0 +1,231 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.base.MosaicProgressListener;
+import com.niklaskuder.mosaic.base.MosaicProgressListener.Pass;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.metrics.Metrics;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Easel that renders in passes and reports its progress to a listener. A flat preview made of the average
+ * colors of the cells is published right away. Then a tile is matched to every cell, and finally the tiles are
+ * color corrected and drawn over the preview, which is published regularly while this pass runs.
+ * The mosaic can be cancelled from any thread at any time.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class ProgressiveMosaicEasel implements MosaicEasel {
+    /**
+     * Default time between two publications of the partial image in milliseconds.
+     */
+    public static final long DEFAULT_PUBLISH_INTERVAL = 500;
+
+    private final int numThreads;
+    private final MosaicProgressListener listener;
+    private final long publishInterval;
+    private volatile boolean cancelled;
+
+    /**
+     * @param listener the listener receiving the progress.
+     */
+    public ProgressiveMosaicEasel(MosaicProgressListener listener) {
+        this(Runtime.getRuntime().availableProcessors(), listener, DEFAULT_PUBLISH_INTERVAL);
+    }
+
+    /**
+     * @param numThreads the number of worker threads.
+     * @param listener the listener receiving the progress.
+     * @param publishInterval the time between two publications of the partial image in milliseconds.
+     */
+    public ProgressiveMosaicEasel(int numThreads, MosaicProgressListener listener, long publishInterval) {
+        if (numThreads <= 0 || publishInterval <= 0) {
+            throw new IllegalArgumentException("numThreads and publishInterval must be > 0");
+        }
+        this.numThreads = numThreads;
+        this.listener = listener;
+        this.publishInterval = publishInterval;
+    }
+
+    /**
+     * Cancels the mosaic being created and all mosaics created by this easel later on. The workers stop after
+     * their current cells and {@link #createMosaic(BufferedImage, MosaicArtist)} throws a
+     * {@link CancellationException}.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if the mosaic was cancelled.
+     */
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        checkCancelled();
+        final BufferedArtImage image = new BufferedArtImage(input);
+        final IntegralImage integral = new IntegralImage(image, numThreads);
+        final BufferedArtImage preview = new BufferedArtImage(image.getWidth(), image.getHeight());
+        final MosaicArtist mosaicArtist = artist;
+        int tileWidth = artist.getTileWidth();
+        int tileHeight = artist.getTileHeight();
+
+        final CellScheduler matchCells = new CellScheduler(image.getWidth(), image.getHeight(), tileWidth,
+                tileHeight, CellScheduler.Order.ROWS);
+        paintPreview(preview, integral, matchCells);
+        listener.progressChanged(Pass.PREVIEW, 100);
+        listener.imageUpdated(preview, Pass.PREVIEW);
+
+        final int[] matches = new int[matchCells.getCellCount()];
+        final List<MosaicShape> shapes = artist.getShapes();
+        final CellScheduler drawCells = new CellScheduler(image.getWidth(), image.getHeight(), tileWidth,
+                tileHeight, CellScheduler.Order.ROWS);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            runPass(Pass.MATCH, executor, null, new CellWork(matchCells) {
+                @Override
+                void process(int column, int row, int x, int y, int width, int height) {
+                    BufferedArtImage region = image.getSubimage(x, y, width, height);
+                    matches[row * matchCells.getColumns() + column] = mosaicArtist.matchTile(region, integral,
+                            x, y);
+                }
+            });
+            runPass(Pass.DRAW, executor, preview, new CellWork(drawCells) {
+                @Override
+                void process(int column, int row, int x, int y, int width, int height) {
+                    shapes.get(matches[row * drawCells.getColumns() + column]).drawMe(image, x, y);
+                    copyRegion(image, preview, x, y, width, height);
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+        return preview.toBufferedImage();
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("mosaic cancelled");
+        }
+    }
+
+    private static void paintPreview(BufferedArtImage preview, IntegralImage integral, CellScheduler cells) {
+        int[] data = preview.getData();
+        for (int row = 0; row < cells.getRows(); row++) {
+            int y = cells.getCellY(row);
+            int height = cells.getCellHeight(row);
+            for (int column = 0; column < cells.getColumns(); column++) {
+                int x = cells.getCellX(column);
+                int width = cells.getCellWidth(column);
+                int average = integral.averageColor(x, y, width, height);
+                for (int i = 0; i < height; i++) {
+                    int index = preview.getIndex(x, y + i, width);
+                    Arrays.fill(data, index, index + width, average);
+                }
+            }
+        }
+    }
+
+    private static void copyRegion(BufferedArtImage from, BufferedArtImage to, int x, int y, int width,
+                                   int height) {
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(from.getData(), from.getIndex(x, y + i, width), to.getData(),
+                    to.getIndex(x, y + i, width), width);
+        }
+    }
+
+    /**
+     * Runs one pass over all cells and reports its progress until it is done.
+     * @param published the image to publish while the pass runs, or null.
+     */
+    private void runPass(Pass pass, ExecutorService executor, BufferedArtImage published, CellWork work) {
+        CellScheduler cells = work.cells;
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(executor.submit(Metrics.bind(work)));
+        }
+        int reported = -1;
+        try {
+            for (Future<?> worker : workers) {
+                while (true) {
+                    try {
+                        worker.get(publishInterval, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        reported = report(pass, work.done.get(), cells.getCellCount(), reported);
+                        if (published != null) {
+                            listener.imageUpdated(published, pass);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while creating mosaic", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("creating mosaic failed", e.getCause());
+        }
+        checkCancelled();
+        report(pass, cells.getCellCount(), cells.getCellCount(), reported);
+        if (published != null) {
+            listener.imageUpdated(published, pass);
+        }
+    }
+
+    private int report(Pass pass, int done, int total, int reported) {
+        int percent = (int) (100L * done / total);
+        if (percent != reported) {
+            listener.progressChanged(pass, percent);
+        }
+        return percent;
+    }
+
+    /**
+     * Work done for every cell of a pass. The same instance runs on all worker threads.
+     */
+    private abstract class CellWork implements Runnable {
+        private final AtomicInteger done = new AtomicInteger();
+        private final CellScheduler cells;
+
+        CellWork(CellScheduler cells) {
+            this.cells = cells;
+        }
+
+        @Override
+        public void run() {
+            CellScheduler.Chunk chunk;
+            while (!cancelled && (chunk = cells.next()) != null) {
+                for (int row = chunk.getFirstRow(); row < chunk.getEndRow(); row++) {
+                    for (int column = chunk.getFirstColumn(); column < chunk.getEndColumn(); column++) {
+                        process(column, row, cells.getCellX(column), cells.getCellY(row),
+                                cells.getCellWidth(column), cells.getCellHeight(row));
+                    }
+                    done.addAndGet(chunk.getEndColumn() - chunk.getFirstColumn());
+                }
+            }
+        }
+
+        abstract void process(int column, int row, int x, int y, int width, int height);
+    }
+}
@@ -0,0 +1,143 @@
+package com.niklaskuder.mosaic.rectangle;
+
+import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicEasel;
+import com.niklaskuder.mosaic.metrics.Counter;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Easel that subdivides the input adaptively instead of laying out a uniform grid. The image is cut into blocks
+ * of the largest tile size, and every block is split into four quarters for as long as its color variance is too
+ * high and a smaller tile size is left. Uniform areas like sky or walls are covered with few large tiles, and only
+ * detailed areas are matched and drawn tile by tile at the smallest size.
+ * <p>
+ * The artist passed to {@link #createMosaic(BufferedImage, MosaicArtist)} provides the smallest tiles. The artists
+ * of the larger levels are given to the constructor, each with tiles twice as wide and high as the level before.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class QuadtreeMosaicEasel implements MosaicEasel {
+    /**
+     * Default color deviation up to which a region counts as uniform.
+     */
+    public static final double DEFAULT_MAX_DEVIATION = 12;
+
+    private final int numThreads;
+    private final List<MosaicArtist> largerArtists;
+    private final double maxVariance;
+    private volatile AtomicIntegerArray cellCounts;
+
+    /**
+     * @param numThreads the number of worker threads.
+     * @param largerArtists the artists of the larger levels, the first with tiles twice as wide and high as the
+     *                      smallest tiles, the next twice as large again and so on.
+     * @param maxDeviation the standard deviation of the colors of a region, as a distance in rgb, up to which the
+     *                     region is covered with a single tile.
+     */
+    public QuadtreeMosaicEasel(int numThreads, List<MosaicArtist> largerArtists, double maxDeviation) {
+        if (numThreads <= 0 || maxDeviation < 0) {
+            throw new IllegalArgumentException("numThreads must be > 0 and maxDeviation >= 0");
+        }
+        this.numThreads = numThreads;
+        this.largerArtists = new ArrayList<>(largerArtists);
+        this.maxVariance = maxDeviation * maxDeviation;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the larger artists do not double the tile size from level to level.
+     */
+    @Override
+    public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
+        List<MosaicArtist> levels = new ArrayList<>();
+        levels.add(artist);
+        levels.addAll(largerArtists);
+        for (int level = 1; level < levels.size(); level++) {
+            if (levels.get(level).getTileWidth() != artist.getTileWidth() << level
+                    || levels.get(level).getTileHeight() != artist.getTileHeight() << level) {
+                throw new IllegalArgumentException("tiles of level " + level + " must be "
+                        + (artist.getTileWidth() << level) + "x" + (artist.getTileHeight() << level));
+            }
+        }
+        BufferedArtImage image = new BufferedArtImage(input);
+        IntegralImage integral = new IntegralImage(image, numThreads, true);
+        MosaicArtist top = levels.get(levels.size() - 1);
+        CellScheduler scheduler = new CellScheduler(image.getWidth(), image.getHeight(), top.getTileWidth(),
+                top.getTileHeight(), CellScheduler.Order.ROWS);
+        cellCounts = new AtomicIntegerArray(levels.size());
+
+        scheduler.run(numThreads, new BlockTask(scheduler, image, integral, levels));
+        return image.toBufferedImage();
+    }
+
+    /**
+     * @return returns the number of tiles drawn per level by the last mosaic, starting with the smallest tiles.
+     */
+    public int[] getCellCounts() {
+        AtomicIntegerArray counts = cellCounts;
+        int[] result = new int[counts == null ? 0 : counts.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Subdivides and draws a block of the largest tile size.
+     */
+    private final class BlockTask implements CellScheduler.CellTask {
+        private final CellScheduler scheduler;
+        private final BufferedArtImage image;
+        private final IntegralImage integral;
+        private final List<MosaicArtist> levels;
+
+        BlockTask(CellScheduler scheduler, BufferedArtImage image, IntegralImage integral,
+                  List<MosaicArtist> levels) {
+            this.scheduler = scheduler;
+            this.image = image;
+            this.integral = integral;
+            this.levels = levels;
+        }
+
+        @Override
+        public void run(int column, int row) {
+            renderRegion(scheduler.getCellX(column), scheduler.getCellY(row), levels.size() - 1);
+        }
+
+        /**
+         * Covers the region of the given level at (x, y) with one tile if it is uniform enough, and splits it
+         * into its quarters otherwise. Regions are clipped at the border of the image.
+         */
+        private void renderRegion(int x, int y, int level) {
+            MosaicArtist artist = levels.get(level);
+            int w = Math.min(artist.getTileWidth(), image.getWidth() - x);
+            int h = Math.min(artist.getTileHeight(), image.getHeight() - y);
+            if (level > 0 && integral.variance(x, y, w, h) > maxVariance) {
+                int halfWidth = artist.getTileWidth() / 2;
+                int halfHeight = artist.getTileHeight() / 2;
+                for (int dy = 0; dy < h; dy += halfHeight) {
+                    for (int dx = 0; dx < w; dx += halfWidth) {
+                        renderRegion(x + dx, y + dy, level - 1);
+                    }
+                }
+                return;
+            }
+            BufferedArtImage sub = image.getSubimage(x, y, w, h);
+            BufferedArtImage tile = artist.getTileForRegion(sub, integral, x, y);
+            image.setSubimage(x, y, tile);
+            cellCounts.incrementAndGet(level);
+            //Count the cells of the smallest size this tile stands in for
+            MosaicArtist smallest = levels.get(0);
+            int covered = ((w + smallest.getTileWidth() - 1) / smallest.getTileWidth())
+                    * ((h + smallest.getTileHeight() - 1) / smallest.getTileHeight());
+            Counter.CELLS_MERGED.add(covered - 1);
+        }
+    }
+}
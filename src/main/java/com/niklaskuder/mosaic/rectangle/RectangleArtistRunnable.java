@@ -3,21 +3,30 @@ package com.niklaskuder.mosaic.rectangle;
 import com.niklaskuder.mosaic.base.MosaicShape;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Prepares the shapes of a range of images. Every runnable writes its own range of the shared array, so
+ * several of them can run concurrently without any locking.
+ */
 public class RectangleArtistRunnable implements Runnable {
     private final int startIndex;
     private final int endIndex;
     private final int width;
     private final int height;
-    private final List<MosaicShape> shapes;
-    private final List<MosaicShape> newShapes;
+    private final MosaicShape[] shapes;
     private final List<BufferedImage> images;
 
-    public RectangleArtistRunnable(List<MosaicShape> shapes, List<BufferedImage> images, int start, int end,
+    /**
+     * @param shapes the array receiving the shape of image i at index i.
+     * @param images the images.
+     * @param start the index of the first image to prepare.
+     * @param end the index after the last image to prepare.
+     * @param w the width of the shapes.
+     * @param h the height of the shapes.
+     */
+    public RectangleArtistRunnable(MosaicShape[] shapes, List<BufferedImage> images, int start, int end,
                                    int w, int h) {
-        this.newShapes = new ArrayList<>();
         this.startIndex = start;
         this.endIndex = end;
         this.shapes = shapes;
@@ -27,16 +36,8 @@ public class RectangleArtistRunnable implements Runnable {
     }
 
     public void run() {
-        for (int i = startIndex; i <= endIndex; i++) {
-            if (i == images.size()) {
-                break;
-            }
-            this.newShapes.add(new RectangleMosaicShape(images.get(i), width, height));
+        for (int i = startIndex; i < endIndex; i++) {
+            shapes[i] = new RectangleMosaicShape(images.get(i), width, height);
         }
-        addAll();
-    }
-
-    private synchronized void addAll() {
-        this.shapes.addAll(this.newShapes);
     }
 }
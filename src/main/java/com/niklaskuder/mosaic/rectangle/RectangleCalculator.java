@@ -1,8 +1,7 @@
 package com.niklaskuder.mosaic.rectangle;
 
 import com.niklaskuder.mosaic.base.AbstractCalculator;
-
-import java.awt.image.BufferedImage;
+import com.niklaskuder.mosaic.base.ShapeMask;
 
 public final class RectangleCalculator extends AbstractCalculator {
 
@@ -20,28 +19,13 @@ public final class RectangleCalculator extends AbstractCalculator {
   }
 
   @Override
-  public int xStart(BufferedImage region) {
-    return 0;
-  }
-
-  @Override
-  public int yStart(BufferedImage region, int x) {
-    return 0;
-  }
-
-  @Override
-  public int getCorrectRow(BufferedImage region, int y) {
-    return y;
-  }
-
-  @Override
-  public int getXBound(BufferedImage region) {
-    return region.getWidth();
+  public boolean isRectangular() {
+    return true;
   }
 
   @Override
-  public float getYBound(BufferedImage region, int x) {
-    return region.getHeight();
+  protected ShapeMask createMask(int width, int height) {
+    return ShapeMask.rectangle(width, height);
   }
 
 }
@@ -1,28 +1,93 @@
 package com.niklaskuder.mosaic.rectangle;
 
+import com.niklaskuder.mosaic.base.AppendedColorIndex;
 import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CachedColorIndex;
+import com.niklaskuder.mosaic.base.ColorSignature;
+import com.niklaskuder.mosaic.base.HnswSignatureIndex;
+import com.niklaskuder.mosaic.base.IntegralImage;
+import com.niklaskuder.mosaic.base.KdTreeColorIndex;
 import com.niklaskuder.mosaic.base.MosaicArtist;
 import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.NearestColorIndex;
+import com.niklaskuder.mosaic.base.NearestSignatureIndex;
+import com.niklaskuder.mosaic.base.TileCooldown;
+import com.niklaskuder.mosaic.metrics.Counter;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 public class RectangleMosaicArtist implements MosaicArtist {
 
-    private static final double EPS = 1E-5;
-    private static final double TOLERANCE = 10;
+    private static final int TOLERANCE = 10;
     private static final int MIN_PICTURES = 2;
     private static final int LIST_SIZE = 20;
     private static final int TILE_SPACING = 5;
+    /**
+     * Signature tolerance, a color difference of about 5 in every grid cell.
+     */
+    private static final float SIGNATURE_TOLERANCE = ColorSignature.GRID * ColorSignature.GRID * 5 * 5;
+
+    /**
+     * How tiles are matched to regions.
+     */
+    public enum Matching {
+        /**
+         * Match the average color of the whole tile.
+         */
+        AVERAGE_COLOR,
+        /**
+         * Match the {@link ColorSignature} of the tile, which also reflects the color layout.
+         */
+        SIGNATURE
+    }
+
+    private final NearestColorIndex.Filter enabledFilter = new NearestColorIndex.Filter() {
+        @Override
+        public boolean accept(int index) {
+            if (liveIndices != null && liveIndices[index] < 0) {
+                return false;
+            }
+            if (cooldown.isEnabled(index)) {
+                return true;
+            }
+            Counter.COOLDOWN_SKIPS.increment();
+            return false;
+        }
+    };
 
     private List<MosaicShape> shapes;
+    /**
+     * The shapes in the order of the indexes, including those removed by {@link #update(List, Collection)}.
+     */
+    private List<MosaicShape> indexedShapes;
+    /**
+     * The position of every indexed shape in {@link #shapes}, -1 for removed shapes, or null if the indexed
+     * shapes are the shapes.
+     */
+    private int[] liveIndices;
+    private int[] averageColors;
+    /**
+     * The color index built over all indexed shapes by the last full build, without the cache.
+     */
+    private NearestColorIndex builtColorIndex;
+    private NearestColorIndex colorIndex;
+    private Matching matching = Matching.AVERAGE_COLOR;
+    private int searchEffort;
+    private NearestSignatureIndex signatureIndex;
+    private TileCooldown cooldown;
     private int tileWidth;
     private int tileHeight;
 
@@ -34,6 +99,127 @@ public class RectangleMosaicArtist implements MosaicArtist {
         initialize(images, tileWidth, tileHeight, numThreads);
     }
 
+    /**
+     * Creates an artist from already prepared shapes, all of which must have the same dimensions.
+     * @param shapes the prepared shapes.
+     */
+    public RectangleMosaicArtist(List<MosaicShape> shapes) {
+        this(shapes, Matching.AVERAGE_COLOR, 0);
+    }
+
+    /**
+     * Creates an artist from already prepared shapes, all of which must have the same dimensions.
+     * @param shapes the prepared shapes.
+     * @param matching how tiles are matched to regions.
+     * @param searchEffort the search effort of the signature index, higher values find closer matches but take
+     *                     longer. Ignored when matching average colors.
+     */
+    public RectangleMosaicArtist(List<MosaicShape> shapes, Matching matching, int searchEffort) {
+        if (shapes.isEmpty()) {
+            throw new IllegalArgumentException("no tiles provided");
+        }
+        this.shapes = new ArrayList<>(shapes);
+        this.indexedShapes = this.shapes;
+        this.tileWidth = shapes.get(0).getWidth();
+        this.tileHeight = shapes.get(0).getHeight();
+        for (MosaicShape shape : shapes) {
+            if (shape.getWidth() != tileWidth || shape.getHeight() != tileHeight) {
+                throw new IllegalArgumentException("all tiles must have the same dimensions");
+            }
+        }
+        if (matching == Matching.SIGNATURE && searchEffort <= 0) {
+            throw new IllegalArgumentException("searchEffort must be > 0");
+        }
+        this.matching = matching;
+        this.searchEffort = searchEffort;
+        buildColorIndex();
+    }
+
+    /**
+     * Creates an artist that shares the shapes and indexes of another artist, but keeps track of used tiles on
+     * its own. Building the indexes is the expensive part of creating an artist, so this is the way to render
+     * several mosaics with the same tiles, even concurrently.
+     * @param prototype the artist whose shapes and indexes are shared.
+     */
+    public RectangleMosaicArtist(RectangleMosaicArtist prototype) {
+        this.shapes = prototype.shapes;
+        this.indexedShapes = prototype.indexedShapes;
+        this.liveIndices = prototype.liveIndices;
+        this.averageColors = prototype.averageColors;
+        this.tileWidth = prototype.tileWidth;
+        this.tileHeight = prototype.tileHeight;
+        this.matching = prototype.matching;
+        this.searchEffort = prototype.searchEffort;
+        this.builtColorIndex = prototype.builtColorIndex;
+        this.colorIndex = prototype.colorIndex;
+        this.signatureIndex = prototype.signatureIndex;
+        this.cooldown = new TileCooldown(indexedShapes.size(), TILE_SPACING);
+    }
+
+    /**
+     * Creates a prototype (see {@link #RectangleMosaicArtist(RectangleMosaicArtist)}) with shapes added to and
+     * removed from those of this artist. The indexes are extended instead of built again: added shapes are
+     * inserted into them, removed shapes stay indexed but are never matched again. This artist and all artists
+     * sharing its indexes are not changed, so mosaics rendered with them meanwhile keep using the previous shapes.
+     * @param added the shapes to add, with the dimensions of the other shapes.
+     * @param removed the shapes to remove. Shapes that are not shapes of this artist are ignored.
+     * @return returns the new prototype.
+     * @throws IllegalArgumentException if the added shapes have other dimensions or no shapes remain.
+     */
+    public RectangleMosaicArtist update(List<MosaicShape> added, Collection<MosaicShape> removed) {
+        for (MosaicShape shape : added) {
+            if (shape.getWidth() != tileWidth || shape.getHeight() != tileHeight) {
+                throw new IllegalArgumentException("all tiles must have the same dimensions");
+            }
+        }
+        PhaseEvent event = Metrics.begin(Phase.BUILD_INDEX);
+        int indexed = indexedShapes.size();
+        Map<MosaicShape, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < indexed; i++) {
+            if (liveIndices == null || liveIndices[i] >= 0) {
+                positions.put(indexedShapes.get(i), i);
+            }
+        }
+        boolean[] dropped = new boolean[indexed];
+        for (MosaicShape shape : removed) {
+            Integer position = positions.get(shape);
+            if (position != null) {
+                dropped[position] = true;
+            }
+        }
+
+        RectangleMosaicArtist result = new RectangleMosaicArtist(this);
+        result.indexedShapes = new ArrayList<>(indexedShapes);
+        result.indexedShapes.addAll(added);
+        result.shapes = new ArrayList<>();
+        result.liveIndices = new int[result.indexedShapes.size()];
+        for (int i = 0; i < result.liveIndices.length; i++) {
+            boolean live = i >= indexed || !dropped[i] && (liveIndices == null || liveIndices[i] >= 0);
+            result.liveIndices[i] = live ? result.shapes.size() : -1;
+            if (live) {
+                result.shapes.add(result.indexedShapes.get(i));
+            }
+        }
+        if (result.shapes.isEmpty()) {
+            throw new IllegalArgumentException("no tiles left");
+        }
+
+        result.averageColors = Arrays.copyOf(averageColors, result.liveIndices.length);
+        for (int i = 0; i < added.size(); i++) {
+            result.averageColors[indexed + i] = added.get(i).getAverageColor();
+        }
+        if (!added.isEmpty()) {
+            result.colorIndex = new CachedColorIndex(new AppendedColorIndex(builtColorIndex, result.averageColors),
+                    result.averageColors);
+            if (signatureIndex != null) {
+                result.signatureIndex = signatureIndex.append(computeSignatures(added));
+            }
+        }
+        result.cooldown = new TileCooldown(result.liveIndices.length, TILE_SPACING);
+        Metrics.end(event);
+        return result;
+    }
+
     /*public RectangleMosaicArtist(List<BufferedImage> images, int tileWidth, int tileHeight, int numThreads) {
         if (images.isEmpty()) {
             throw new IllegalArgumentException("no tiles provided");
@@ -46,29 +232,58 @@ public class RectangleMosaicArtist implements MosaicArtist {
     }
 
     private void initialize(List<BufferedImage> images, int tileWidth, int tileHeight, int numThreads) {
-        this.shapes = new ArrayList<>();
         this.tileHeight = tileHeight;
         this.tileWidth = tileWidth;
         int totalLength = images.size();
-        int divider = totalLength / numThreads;
-        int remainder = totalLength % numThreads;
+        int threads = Math.min(numThreads, totalLength);
+        MosaicShape[] prepared = new MosaicShape[totalLength];
 
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(numThreads);
-        executor.execute(new RectangleArtistRunnable(shapes, images, 0, divider, tileWidth, tileHeight));
-        for (int i = 2; i <= numThreads; i++) {
-            executor.execute(new RectangleArtistRunnable(shapes, images, (i - 1) * divider + 1, i * divider,
-                    tileWidth, tileHeight));
-        }
-        if (remainder != 0) {
-            executor.execute(new RectangleArtistRunnable(shapes, images, totalLength - remainder, totalLength,
-                    tileWidth, tileHeight));
-        }
-        executor.shutdown();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            executor.awaitTermination(1, TimeUnit.MINUTES);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(Metrics.bind(new RectangleArtistRunnable(prepared, images,
+                        totalLength * i / threads, totalLength * (i + 1) / threads, tileWidth, tileHeight))));
+            }
+            //Wait for every tile, however long that takes
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while preparing tiles", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("preparing tiles failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        this.shapes = new ArrayList<>(Arrays.asList(prepared));
+        this.indexedShapes = shapes;
+        buildColorIndex();
+    }
+
+    private void buildColorIndex() {
+        PhaseEvent event = Metrics.begin(Phase.BUILD_INDEX);
+        this.averageColors = new int[shapes.size()];
+        for (int i = 0; i < averageColors.length; i++) {
+            averageColors[i] = shapes.get(i).getAverageColor();
+        }
+        this.builtColorIndex = createColorIndex(averageColors);
+        this.colorIndex = new CachedColorIndex(builtColorIndex, averageColors);
+        if (matching == Matching.SIGNATURE) {
+            this.signatureIndex = createSignatureIndex(computeSignatures(shapes));
+        }
+        this.cooldown = new TileCooldown(averageColors.length, TILE_SPACING);
+        Metrics.end(event);
+    }
+
+    private static float[] computeSignatures(List<MosaicShape> shapes) {
+        float[] signatures = new float[shapes.size() * ColorSignature.LENGTH];
+        for (int i = 0; i < shapes.size(); i++) {
+            ColorSignature.compute(new BufferedArtImage(shapes.get(i).getThumbnail()), signatures,
+                    i * ColorSignature.LENGTH);
         }
+        return signatures;
     }
 
     @Override
@@ -92,97 +307,140 @@ public class RectangleMosaicArtist implements MosaicArtist {
 
     @Override
     public BufferedArtImage getTileForRegion(BufferedArtImage region) {
+        checkRegion(region);
+        int tile;
+        if (matching == Matching.SIGNATURE) {
+            float[] signature = new float[ColorSignature.LENGTH];
+            PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+            ColorSignature.compute(region, signature, 0);
+            Metrics.end(event);
+            tile = pickNearest(signature);
+        } else {
+            PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+            int average = RectangleCalculator.getInstance().averageColor(region);
+            Metrics.end(event);
+            tile = pickNearest(average);
+        }
+        cooldown.advance();
+        shapes.get(tile).drawMe(region);
+        return region;
+    }
+
+    @Override
+    public BufferedArtImage getTileForRegion(BufferedArtImage region, IntegralImage integral, int x, int y) {
+        shapes.get(matchTile(region, integral, x, y)).drawMe(region);
+        return region;
+    }
+
+    @Override
+    public int matchTile(BufferedArtImage region, IntegralImage integral, int x, int y) {
+        checkRegion(region);
+        int tile;
+        if (matching == Matching.SIGNATURE) {
+            float[] signature = new float[ColorSignature.LENGTH];
+            PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+            ColorSignature.compute(integral, x, y, region.getWidth(), region.getHeight(), signature, 0);
+            Metrics.end(event);
+            tile = pickNearest(signature);
+        } else {
+            PhaseEvent event = Metrics.begin(Phase.AVERAGE_COLOR);
+            int average = RectangleCalculator.getInstance().averageColor(region, integral, x, y);
+            Metrics.end(event);
+            tile = pickNearest(average);
+        }
+        cooldown.advance();
+        return tile;
+    }
+
+    @Override
+    public int matchColor(int average) {
+        int tile = pickNearest(average);
+        cooldown.advance();
+        return tile;
+    }
+
+    private void checkRegion(BufferedArtImage region) {
         if (region.getWidth() > this.tileWidth || region.getHeight() > this.tileHeight) {
             throw new IllegalArgumentException("requested tiling is greater than tileWidth or tileHeight");
         }
-        int average = RectangleCalculator.getInstance().averageColor(region.toBufferedImage());
-        MosaicShape tile = findNearest(average, shapes);
-        tile.drawMe(region);
-        return region;
     }
 
     /**
-     * Find the shape with the best matching color from a list of shapes.
+     * Find the shape with the best matching color from the indexed shapes.
+     * One of the {@value #LIST_SIZE} nearest enabled shapes is picked at random, preferring those within
+     * the tolerance but always choosing from at least {@value #MIN_PICTURES} candidates.
      *
      * @param target the target color as argb.
-     * @param shapes the available shapes (cannot be empty)
      * @return the best matching shape
      */
-    protected final MosaicShape findNearest(int target, Collection<MosaicShape> shapes) {
-        List<MosaicShape> nearest = new ArrayList<>();
-        int additionalListSize = 0;
-
-        Iterator<MosaicShape> iter = shapes.iterator();
-        MosaicShape first = iter.next();
-        while (first.isDisabled()) {
-            //System.out.println("First is disabled.");
-            if (!iter.hasNext()) {
-                throw new IllegalStateException("All tiles disabled.");
-            }
-            first = iter.next();
-        }
-        nearest.add(first);
-
-        double closestDist = colorError(target, first.getAverageColor());
+    protected final MosaicShape findNearest(int target) {
+        return shapes.get(pickNearest(target));
+    }
 
-        while (iter.hasNext()) {
-            MosaicShape next = iter.next();
+    private int pickNearest(int target) {
+        PhaseEvent event = Metrics.begin(Phase.FIND_NEAREST);
+        int[] nearest = new int[LIST_SIZE];
+        int size = colorIndex.findNearest(target, LIST_SIZE, TOLERANCE * TOLERANCE, MIN_PICTURES,
+                enabledFilter, nearest);
+        Metrics.end(event);
+        return pick(nearest, size);
+    }
 
-            while (next.isDisabled()) {
-                //System.out.println("Next is disabled.");
-                if (!iter.hasNext()) {
-                    return nearest.get(0);
-                }
-                //Skip disabled Tile
-                next = iter.next();
-            }
+    /**
+     * Find the shape with the best matching signature, picking like {@link #findNearest(int)}.
+     * Only available when matching signatures.
+     *
+     * @param target the target signature, see {@link ColorSignature}.
+     * @return the best matching shape
+     */
+    protected final MosaicShape findNearest(float[] target) {
+        return shapes.get(pickNearest(target));
+    }
 
-            double nextDist = colorError(target, next.getAverageColor());
-            if (Math.abs(closestDist - nextDist) < EPS) {
-                //Distances equal
-                additionalListSize++;
-                nearest.add(next);
-            } else if (nextDist < closestDist) {
-                //New smallest
-                if (nearest.size() >= LIST_SIZE + additionalListSize) {
-                    nearest.remove(0);
-                }
-                if (nextDist + TOLERANCE < closestDist) {
-                    nearest.remove(nearest.size() - 1);
-                }
-                nearest.add(next);
-                closestDist = nextDist;
-            }
+    private int pickNearest(float[] target) {
+        if (signatureIndex == null) {
+            throw new IllegalStateException("artist does not match signatures");
         }
-        System.out.println("Size: " + nearest.size());
+        PhaseEvent event = Metrics.begin(Phase.FIND_NEAREST);
+        int[] nearest = new int[LIST_SIZE];
+        int size = signatureIndex.findNearest(target, LIST_SIZE, SIGNATURE_TOLERANCE, MIN_PICTURES,
+                enabledFilter, nearest);
+        Metrics.end(event);
+        return pick(nearest, size);
+    }
 
-        List<MosaicShape> toRemove = new ArrayList<>();
-        for (MosaicShape shape : nearest) {
-            if (colorError(target, shape.getAverageColor()) > TOLERANCE && nearest.size() - toRemove.size() > MIN_PICTURES) {
-                toRemove.add(shape);
-            }
+    private int pick(int[] nearest, int size) {
+        if (size == 0) {
+            throw new IllegalStateException("All tiles disabled.");
         }
-        nearest.removeAll(toRemove);
-        MosaicShape returnShape = nearest.get((int) (Math.random() * nearest.size()));
-        returnShape.setDisabled(TILE_SPACING);
-        return returnShape;
+        Metrics.recordTieListSize(size);
+        Counter.CELLS_MATCHED.increment();
+
+        int picked = nearest[(int) (Math.random() * size)];
+        cooldown.markUsed(picked);
+        return liveIndices == null ? picked : liveIndices[picked];
+    }
+
+    /**
+     * Creates the index used for finding the best matching shapes. The artist puts a {@link CachedColorIndex} in
+     * front of it, which artists sharing the index also share. A rebuilt or extended index starts with an empty
+     * cache.
+     *
+     * @param averageColors the average colors of all shapes as argb, in the order of the shapes.
+     * @return the index over the given colors
+     */
+    protected NearestColorIndex createColorIndex(int[] averageColors) {
+        return new CachedColorIndex(new KdTreeColorIndex(averageColors), averageColors);
     }
 
     /**
-     * Calculate the difference between two argb colors as euclidean distance.<br> Range: [0, sqrt(4 *
-     * pow(255, 2))]
+     * Creates the index used for finding the best matching shapes by signature.
      *
-     * @param colorA the first color
-     * @param colorB the second color
-     * @return the difference of the colors
+     * @param signatures the signatures of all shapes, {@value ColorSignature#LENGTH} floats each, in the order of
+     *                   the shapes.
+     * @return the index over the given signatures
      */
-    private static double colorError(int colorA, int colorB) {
-        Color a = new Color(colorA, true);
-        Color b = new Color(colorB, true);
-        int colorError = (int) Math.pow(a.getRed() - b.getRed(), 2);
-        colorError += (int) Math.pow(a.getGreen() - b.getGreen(), 2);
-        colorError += (int) Math.pow(a.getBlue() - b.getBlue(), 2);
-        colorError += (int) Math.pow(a.getAlpha() - b.getAlpha(), 2);
-        return Math.sqrt(colorError);
+    protected NearestSignatureIndex createSignatureIndex(float[] signatures) {
+        return new HnswSignatureIndex(signatures, ColorSignature.LENGTH, searchEffort);
     }
 }
@@ -1,45 +1,50 @@
 package com.niklaskuder.mosaic.rectangle;
 
 import com.niklaskuder.mosaic.base.BufferedArtImage;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.IntegralImage;
 import com.niklaskuder.mosaic.base.MosaicArtist;
 import com.niklaskuder.mosaic.base.MosaicEasel;
 
 import java.awt.image.BufferedImage;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 public class RectangleMosaicEasel implements MosaicEasel {
     private final int numThreads;
-
-    /*public RectangleMosaicEasel(int numThreads) {
-        this.numThreads = numThreads;
-        //System.out.println("Available Threads: " + numThreads);
-    }*/
+    private final CellScheduler.Order order;
 
     public RectangleMosaicEasel() {
-        this.numThreads = Runtime.getRuntime().availableProcessors();
+        this(CellScheduler.Order.ROWS);
+    }
+
+    /**
+     * @param order the order in which the worker threads walk the cells.
+     */
+    public RectangleMosaicEasel(CellScheduler.Order order) {
+        this(Runtime.getRuntime().availableProcessors(), order);
         System.out.println("Available Threads: " + numThreads);
     }
 
+    /**
+     * @param numThreads the number of worker threads.
+     * @param order the order in which the worker threads walk the cells.
+     */
+    public RectangleMosaicEasel(int numThreads, CellScheduler.Order order) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be > 0");
+        }
+        this.numThreads = numThreads;
+        this.order = order;
+    }
+
     @Override
     public BufferedImage createMosaic(BufferedImage input, MosaicArtist artist) {
         BufferedArtImage image = new BufferedArtImage(input);
-        System.out.println("Creating blank image...");
-        //BufferedArtImage result = image.createBlankImage();
+        IntegralImage integral = new IntegralImage(image, numThreads);
+        CellScheduler scheduler = new CellScheduler(image.getWidth(), image.getHeight(), artist.getTileWidth(),
+                artist.getTileHeight(), order);
 
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(numThreads);
-        for (int i = 0; i < numThreads; i++) {
-            System.out.println("Creating Thread " + i);
-            executor.execute(new MosaicRunnable(image, artist, image));
-        }
-        executor.shutdown();
-        try {
-            executor.awaitTermination(1, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        MosaicRunnable.resetBounds();
+        //Wait for every cell, however long that takes
+        scheduler.run(numThreads, new MosaicRunnable(scheduler, image, integral, artist, image));
         return image.toBufferedImage();
     }
 }
@@ -3,69 +3,105 @@ package com.niklaskuder.mosaic.rectangle;
 import com.niklaskuder.mosaic.base.BufferedArtImage;
 import com.niklaskuder.mosaic.base.ImageUtils;
 import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.base.ThumbnailAtlas;
+import com.niklaskuder.mosaic.metrics.Metrics;
+import com.niklaskuder.mosaic.metrics.Phase;
+import com.niklaskuder.mosaic.metrics.PhaseEvent;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 
 public class RectangleMosaicShape implements MosaicShape {
-    private static final int CORRECTION_INTENSITY = 15;
+    /**
+     * One row of a thumbnail per thread, so that drawing allocates nothing.
+     */
+    private static final ThreadLocal<int[]> ROWS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[0];
+        }
+    };
 
-    private final BufferedImage image;
+    private final ThumbnailAtlas atlas;
+    private final int index;
     private final int width;
     private final int height;
     private final int average;
-    private int disabledCounter;
 
     public RectangleMosaicShape(BufferedImage image, int w, int h) {
-        this.image = ImageUtils.scaleAndCrop(image, w, h);
-        this.width = w;
-        this.height = h;
-        this.average = calcAverage(this.image, w, h);
-        this.disabledCounter = 0;
+        this(image, w, h, ThumbnailAtlas.onHeap(w, h, 1));
     }
 
-    @Override
-    public synchronized void decreaseDisabled() {
-        if (this.disabledCounter > 0) {
-            this.disabledCounter--;
-        }
+    /**
+     * Creates a shape whose thumbnail is stored in an atlas shared with other shapes.
+     * @param image the image, scaled and cropped to the tile size.
+     * @param w the width of the tile.
+     * @param h the height of the tile.
+     * @param atlas the atlas of the thumbnail, of the same tile size.
+     */
+    public RectangleMosaicShape(BufferedImage image, int w, int h, ThumbnailAtlas atlas) {
+        PhaseEvent event = Metrics.begin(Phase.CREATE_SHAPE);
+        BufferedArtImage thumbnail = new BufferedArtImage(ImageUtils.scaleAndCrop(image, w, h));
+        this.atlas = atlas;
+        this.index = atlas.add(thumbnail.getData(), thumbnail.getOffset(), thumbnail.getScanlineStride());
+        this.width = w;
+        this.height = h;
+        this.average = calcAverage(thumbnail, w, h);
+        Metrics.end(event);
     }
 
-    @Override
-    public synchronized void setDisabled(int amount) {
-        this.disabledCounter = amount;
+    /**
+     * Creates a shape from an already prepared thumbnail.
+     * @param thumbnail the thumbnail, already scaled and cropped to the tile size.
+     * @param average the average color of the thumbnail as argb.
+     */
+    public RectangleMosaicShape(BufferedImage thumbnail, int average) {
+        BufferedArtImage image = new BufferedArtImage(thumbnail);
+        this.atlas = ThumbnailAtlas.onHeap(image.getWidth(), image.getHeight(), 1);
+        this.index = atlas.add(image.getData(), image.getOffset(), image.getScanlineStride());
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.average = average;
     }
 
-    @Override
-    public synchronized boolean isDisabled() {
-        return this.disabledCounter > 0;
+    /**
+     * Creates a shape from a thumbnail already stored in an atlas.
+     * @param atlas the atlas.
+     * @param index the index of the thumbnail in the atlas.
+     * @param average the average color of the thumbnail as argb.
+     */
+    public RectangleMosaicShape(ThumbnailAtlas atlas, int index, int average) {
+        this.atlas = atlas;
+        this.index = index;
+        this.width = atlas.getTileWidth();
+        this.height = atlas.getTileHeight();
+        this.average = average;
     }
 
-    private int calcAverage(BufferedImage region, int w, int h) {
+    private int calcAverage(BufferedArtImage region, int w, int h) {
+        int[] data = region.getData();
         long r = 0;
         long g = 0;
         long b = 0;
         long a = 0;
         int ctr = 0;
 
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                int col = region.getRGB(x, y);
-
-                Color c = new Color(col, true);
-                r += c.getRed();
-                g += c.getGreen();
-                b += c.getBlue();
-                a += c.getAlpha();
+        for (int y = 0; y < h; y++) {
+            int index = region.getIndex(0, y, w);
+            for (int x = 0; x < w; x++) {
+                int col = data[index + x];
+                a += col >>> 24;
+                r += (col >> 16) & 0xFF;
+                g += (col >> 8) & 0xFF;
+                b += col & 0xFF;
                 ctr++;
             }
         }
-        return new Color((int) (r / ctr), (int) (g / ctr), (int) (b / ctr), (int) (a / ctr)).getRGB();
+        return ImageUtils.argb((int) (a / ctr), (int) (r / ctr), (int) (g / ctr), (int) (b / ctr));
     }
 
     @Override
     public BufferedImage getThumbnail() {
-        return this.image;
+        return this.atlas.toBufferedImage(this.index);
     }
 
     @Override
@@ -78,66 +114,39 @@ public class RectangleMosaicShape implements MosaicShape {
         if (image.getWidth() > this.getWidth() || image.getHeight() > this.getHeight()) {
             throw new IllegalArgumentException("dimensions of target are too big for this tile");
         }
-        int w = Math.min(this.getWidth(), image.getWidth());
-        int h = Math.min(this.getHeight(), image.getHeight());
-
-        BufferedArtImage correctedImage = getColorCorrectedMe(image);
+        draw(image, 0, 0, false);
+    }
 
-        for (int x = 0; x < w; x++) {
-            for (int y = 0; y < h; y++) {
-                image.setRGB(x, y, correctedImage.getRGB(x, y));
-            }
-        }
+    @Override
+    public void drawMe(BufferedArtImage image, int x, int y) {
+        draw(image, x, y, true);
     }
 
-    private int getOptimalCorrectionIntensity(int goal, int current) {
-        if (current + CORRECTION_INTENSITY < goal
-                || current - CORRECTION_INTENSITY > goal) {
-            return CORRECTION_INTENSITY;
-        } else if (current + CORRECTION_INTENSITY > goal) {
-            return goal - current;
-        } else if (current - CORRECTION_INTENSITY < goal) {
-            return current - goal;
+    private void draw(BufferedArtImage image, int x, int y, boolean composite) {
+        int firstRow = Math.max(0, -y);
+        int endRow = Math.min(this.height, image.getHeight() - y);
+        int firstColumn = Math.max(0, -x);
+        int length = Math.min(this.width, image.getWidth() - x) - firstColumn;
+        if (length <= 0) {
+            return;
         }
-        return CORRECTION_INTENSITY;
-    }
 
-    private BufferedArtImage getColorCorrectedMe(BufferedArtImage input) {
-        BufferedArtImage correctedMe = new BufferedArtImage(this.image);
-        for (int x = 0; x < input.getWidth(); x++) {
-            for (int y = 0; y < input.getHeight(); y++) {
-                int inputRGB = input.getRGB(x, y);
-                Color inputPixelColor = new Color(inputRGB);
-                int tileRGB = this.image.getRGB(x, y);
-                Color tilePixelColor = new Color(tileRGB);
-                int correctionIntensity = getOptimalCorrectionIntensity(inputRGB, tileRGB);
-                int newRed = tilePixelColor.getRed() < inputPixelColor.getRed()
-                        ? tilePixelColor.getRed() + correctionIntensity
-                        : tilePixelColor.getRed() - correctionIntensity;
-                int newGreen = tilePixelColor.getGreen() < inputPixelColor.getGreen()
-                        ? tilePixelColor.getGreen() + correctionIntensity
-                        : tilePixelColor.getGreen() - correctionIntensity;
-                int newBlue = tilePixelColor.getBlue() < inputPixelColor.getBlue()
-                        ? tilePixelColor.getBlue() + correctionIntensity
-                        : tilePixelColor.getBlue() - correctionIntensity;
-                int newAlpha = tilePixelColor.getAlpha() < inputPixelColor.getAlpha()
-                        ? tilePixelColor.getAlpha() + correctionIntensity
-                        : tilePixelColor.getAlpha() - correctionIntensity;
-
-                newRed = Math.min(newRed, 255);
-                newRed = Math.max(newRed, 0);
-                newGreen = Math.min(newGreen, 255);
-                newGreen = Math.max(newGreen, 0);
-                newBlue = Math.min(newBlue, 255);
-                newBlue = Math.max(newBlue, 0);
-                newAlpha = Math.min(newAlpha, 255);
-                newAlpha = Math.max(newAlpha, 0);
-
-                Color correctedColor = new Color(newRed, newGreen, newBlue, newAlpha);
-                correctedMe.setRGB(x, y, correctedColor.getRGB());
+        PhaseEvent event = Metrics.begin(Phase.DRAW);
+        int[] row = ROWS.get();
+        if (row.length < this.width) {
+            row = new int[this.width];
+            ROWS.set(row);
+        }
+        int[] target = image.getData();
+        for (int tileRow = firstRow; tileRow < endRow; tileRow++) {
+            this.atlas.readRow(this.index, tileRow, row, 0);
+            int targetIndex = image.getIndex(x + firstColumn, y + tileRow, length);
+            for (int i = 0; i < length; i++) {
+                int pixel = ImageUtils.correctColor(target[targetIndex + i], row[firstColumn + i]);
+                target[targetIndex + i] = composite ? ImageUtils.srcOver(pixel, pixel) : pixel;
             }
         }
-        return correctedMe;
+        Metrics.end(event);
     }
 
     @Override
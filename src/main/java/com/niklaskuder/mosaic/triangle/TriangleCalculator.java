@@ -0,0 +1,53 @@
+package com.niklaskuder.mosaic.triangle;
+
+import com.niklaskuder.mosaic.base.AbstractCalculator;
+import com.niklaskuder.mosaic.base.ShapeMask;
+
+/**
+ * Calculator for isosceles triangles filling their bounding box, with the apex at the center of the top edge
+ * (pointing up) or of the bottom edge (pointing down). A pixel belongs to the triangle if its center lies inside,
+ * or on the left edge, so that triangles of alternating orientation, each shifted by half the width, tile the plane
+ * without gaps or overlaps.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public final class TriangleCalculator extends AbstractCalculator {
+    private static final TriangleCalculator UP = new TriangleCalculator(true);
+    private static final TriangleCalculator DOWN = new TriangleCalculator(false);
+
+    private final boolean pointingUp;
+
+    private TriangleCalculator(boolean pointingUp) {
+        this.pointingUp = pointingUp;
+    }
+
+    /**
+     * @param pointingUp true for triangles with the apex at the top.
+     * @return returns the calculator for triangles of the given orientation.
+     */
+    public static TriangleCalculator getInstance(boolean pointingUp) {
+        return pointingUp ? UP : DOWN;
+    }
+
+    public boolean isPointingUp() {
+        return pointingUp;
+    }
+
+    @Override
+    protected ShapeMask createMask(int width, int height) {
+        int[] starts = new int[height];
+        int[] lengths = new int[height];
+        int center = width / 2;
+        for (int y = 0; y < height; y++) {
+            int row = pointingUp ? y : height - 1 - y;
+            //Half the width of the triangle at the center of the row is width * (2 * row + 1) / (4 * height)
+            int halfWidth = width * (2 * row + 1);
+            int start = center - Math.floorDiv(halfWidth + 2 * height, 4 * height);
+            int end = center - Math.floorDiv(2 * height - halfWidth, 4 * height);
+            starts[y] = start;
+            lengths[y] = Math.max(0, end - start);
+        }
+        return new ShapeMask(width, height, starts, lengths);
+    }
+}
@@ -0,0 +1,80 @@
+package com.niklaskuder.mosaic.triangle;
+
+import com.niklaskuder.mosaic.base.AbstractCalculator;
+import com.niklaskuder.mosaic.base.CellScheduler;
+import com.niklaskuder.mosaic.base.MaskedMosaicEasel;
+import com.niklaskuder.mosaic.base.MaskedMosaicShape;
+import com.niklaskuder.mosaic.base.MosaicArtist;
+import com.niklaskuder.mosaic.base.MosaicShape;
+import com.niklaskuder.mosaic.rectangle.RectangleMosaicArtist;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Easel covering the image with rows of triangles of the tile size, pointing up and down in turns. Every
+ * triangle is shifted by half the tile width against the one before it, and the first triangle of every row
+ * starts half a tile left of the image, so that the border is covered as well.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class TriangleMosaicEasel extends MaskedMosaicEasel {
+    private static final int UP = 0;
+    private static final int DOWN = 1;
+
+    /**
+     * @param numThreads the number of worker threads.
+     */
+    public TriangleMosaicEasel(int numThreads) {
+        super(numThreads);
+    }
+
+    @Override
+    protected void checkTileSize(int tileWidth, int tileHeight) {
+        if (tileWidth % 2 != 0) {
+            throw new IllegalArgumentException("the width of triangular tiles must be even");
+        }
+    }
+
+    @Override
+    protected CellScheduler createScheduler(int width, int height, int tileWidth, int tileHeight) {
+        //Column c holds the triangle starting at (c - 1) * tileWidth / 2
+        return new CellScheduler(width + tileWidth / 2, height, tileWidth / 2, tileHeight, CellScheduler.Order.ROWS);
+    }
+
+    @Override
+    protected int getCellX(int column, int row, int tileWidth) {
+        return (column - 1) * (tileWidth / 2);
+    }
+
+    @Override
+    protected int getCellY(int row, int tileHeight) {
+        return row * tileHeight;
+    }
+
+    @Override
+    protected int getOrientations() {
+        return 2;
+    }
+
+    @Override
+    protected int getOrientation(int column, int row) {
+        return (column + row) % 2 == 1 ? UP : DOWN;
+    }
+
+    @Override
+    protected AbstractCalculator getCalculator(int orientation) {
+        return TriangleCalculator.getInstance(orientation == UP);
+    }
+
+    @Override
+    protected MaskedMosaicShape createShape(BufferedImage thumbnail, int orientation) {
+        return new TriangleMosaicShape(thumbnail, orientation == UP);
+    }
+
+    @Override
+    protected MosaicArtist createArtist(List<MosaicShape> shapes) {
+        return new RectangleMosaicArtist(shapes);
+    }
+}
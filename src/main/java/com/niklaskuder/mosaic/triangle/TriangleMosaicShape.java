@@ -0,0 +1,39 @@
+package com.niklaskuder.mosaic.triangle;
+
+import com.niklaskuder.mosaic.base.ImageUtils;
+import com.niklaskuder.mosaic.base.MaskedMosaicShape;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Triangular tile, see {@link TriangleCalculator} for the pixels it covers.
+ *
+ * @author Niklas Kuder
+ * @version 1.0
+ */
+public class TriangleMosaicShape extends MaskedMosaicShape {
+    private final boolean pointingUp;
+
+    /**
+     * @param image the image of the tile.
+     * @param w the width of the tile.
+     * @param h the height of the tile.
+     * @param pointingUp true for a triangle with the apex at the top.
+     */
+    public TriangleMosaicShape(BufferedImage image, int w, int h, boolean pointingUp) {
+        this(ImageUtils.scaleAndCrop(image, w, h), pointingUp);
+    }
+
+    /**
+     * @param thumbnail the thumbnail, already scaled and cropped to the tile size.
+     * @param pointingUp true for a triangle with the apex at the top.
+     */
+    public TriangleMosaicShape(BufferedImage thumbnail, boolean pointingUp) {
+        super(thumbnail, TriangleCalculator.getInstance(pointingUp));
+        this.pointingUp = pointingUp;
+    }
+
+    public boolean isPointingUp() {
+        return pointingUp;
+    }
+}